@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wisp.api;
+
+import java.util.Map;
+
+/**
+ * Callback interface for reading a {@link MetricsRegistry}; {@link #family} is called once for each metric name
+ * before the values of all its series.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface MetricsCollector {
+    enum Type { COUNTER, GAUGE, HISTOGRAM }
+
+    void family(String name, String help, Type type);
+
+    void value(String name, Map<String, String> labels, long value);
+
+    void histogram(String name, Map<String, String> labels, LatencyHistogram histogram);
+}
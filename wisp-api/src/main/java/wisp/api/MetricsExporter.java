@@ -0,0 +1,31 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wisp.api;
+
+/**
+ * Service interface for classes which publish the contents of the {@link MetricsRegistry} to a monitoring system,
+ * e.g. by serving the Prometheus text format over HTTP.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface MetricsExporter extends Configurable, Destroyable {
+    boolean canHandle(String exporterType);
+
+    /**
+     * Starts publishing; called once, after {@link #configure(Configuration)}.
+     */
+    void export(MetricsRegistry registry);
+}
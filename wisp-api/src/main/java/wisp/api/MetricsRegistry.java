@@ -0,0 +1,38 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wisp.api;
+
+import java.util.Map;
+
+/**
+ * Central registry which modules publish their metrics to so that a {@link MetricsExporter} can report them. Metric
+ * names follow Prometheus conventions, e.g. wisp_websocket_frames_in_total, and each registration under a name is
+ * one series distinguished by its labels.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface MetricsRegistry {
+    void register(String name, String help, Map<String, String> labels, Counter counter);
+
+    void register(String name, String help, Map<String, String> labels, Gauge gauge);
+
+    void register(String name, String help, Map<String, String> labels, LatencyHistogram histogram);
+
+    /**
+     * Reads the current value of every registered series, grouped by name in registration order.
+     */
+    void collect(MetricsCollector collector);
+}
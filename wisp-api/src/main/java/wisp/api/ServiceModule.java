@@ -16,25 +16,69 @@
 
 package wisp.api;
 
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Plugin which loads some functionality into the Wisp server.
  *
+ * <p>Modules start and stop asynchronously: the server starts every module whose {@link #getDependencies()
+ * dependencies} have finished starting in parallel, and stops them in the reverse order. Modules which only
+ * implement the blocking {@link #start()} and {@link #stop()} are run on a lifecycle thread of their own.</p>
+ *
  * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
  */
 public interface ServiceModule extends Configurable, Destroyable {
+    /**
+     * Hands the module the server-wide registry to publish its metrics to; called before {@link
+     * #configure(Configuration)}.
+     */
+    default void bindMetrics(MetricsRegistry metrics) { }
+
     @Override
     default void configure(Configuration config) { }
 
+    /**
+     * Gets the name other modules use to declare a dependency on this one; defaults to the class name.
+     */
+    default String getName() {
+        return getClass().getName();
+    }
+
+    /**
+     * Gets the names of modules which must finish starting before this one starts, and stop only after it stops.
+     */
+    default Set<String> getDependencies() {
+        return Set.of();
+    }
+
     /**
      * Starts up provided services, e.g. opening sockets, starting threads, etc..
      */
     default void start() { }
 
+    /**
+     * Starts up provided services, completing once they are ready for use; by default calls {@link #start()}.
+     */
+    default CompletionStage<Void> startAsync() {
+        start();
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Cleanly shuts down provided services, e.g. closing resources, stopping threads, etc..
      */
     default void stop() { }
 
+    /**
+     * Cleanly shuts down provided services, completing once they have stopped; by default calls {@link #stop()}.
+     */
+    default CompletionStage<Void> stopAsync() {
+        stop();
+        return CompletableFuture.completedFuture(null);
+    }
+
     @Override
     default void destroy() { }
 }
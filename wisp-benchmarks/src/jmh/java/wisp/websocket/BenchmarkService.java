@@ -0,0 +1,82 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.Channel;
+import wisp.websocket.api.WebSocketService;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Service which asks for every message up front and discards them, so that benchmarks measure the server rather
+ * than the service.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class BenchmarkService implements WebSocketService {
+    private final boolean lazyTextDecoding;
+    private long received;
+
+    BenchmarkService(boolean lazyTextDecoding) {
+        this.lazyTextDecoding = lazyTextDecoding;
+    }
+
+    @Override
+    public String getPath() {
+        return "/bench";
+    }
+
+    @Override
+    public boolean isLazyTextDecoding() {
+        return lazyTextDecoding;
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket) {
+        webSocket.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        received += data.length();
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        received += data.remaining();
+        return null;
+    }
+
+    long getReceived() {
+        return received;
+    }
+
+    /**
+     * Opens a session on the given channel the way {@link WebSocketFrameHandler} does at handshake completion.
+     */
+    WebSocketSessionImpl openSession(Channel channel) {
+        var session = new WebSocketSessionImpl(channel, null, this, CallbackDispatcher.INLINE,
+                new ServiceMetrics("/bench", new StallDetector(Duration.ZERO)));
+        channel.attr(WebSocketSessionImpl.SESSION).set(session);
+        session.open();
+        return session;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import wisp.api.Configuration;
+
+import java.time.Duration;
+import java.time.Period;
+
+/**
+ * Configuration with nothing in it, so benchmarks run against the server's defaults.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class EmptyConfiguration implements Configuration {
+    @Override
+    public boolean hasPath(String path) {
+        return false;
+    }
+
+    @Override
+    public boolean getBoolean(String path) {
+        throw missing(path);
+    }
+
+    @Override
+    public int getInt(String path) {
+        throw missing(path);
+    }
+
+    @Override
+    public long getLong(String path) {
+        throw missing(path);
+    }
+
+    @Override
+    public double getDouble(String path) {
+        throw missing(path);
+    }
+
+    @Override
+    public String getString(String path) {
+        throw missing(path);
+    }
+
+    @Override
+    public <T extends Enum<T>> T getEnum(Class<T> enumClass, String path) {
+        throw missing(path);
+    }
+
+    @Override
+    public Duration getDuration(String path) {
+        throw missing(path);
+    }
+
+    @Override
+    public Period getPeriod(String path) {
+        throw missing(path);
+    }
+
+    private static IllegalArgumentException missing(String path) {
+        return new IllegalArgumentException("no configuration at " + path);
+    }
+}
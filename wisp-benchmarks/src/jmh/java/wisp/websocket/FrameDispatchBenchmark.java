@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the inbound hot path: decoding a masked client frame off the wire, optionally inflating it, and
+ * dispatching it through {@link WebSocketFrameHandler#channelRead0} and the session's demand queue to the service.
+ * Run with -prof gc to see the per-frame allocation rate.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FrameDispatchBenchmark {
+    @Param({ "64", "4096" })
+    private int payloadSize;
+
+    @Param({ "false", "true" })
+    private boolean lazyTextDecoding;
+
+    @Param({ "false", "true" })
+    private boolean deflate;
+
+    private BenchmarkService service;
+    private EmbeddedChannel channel;
+    private ByteBuf textFrame;
+    private ByteBuf binaryFrame;
+
+    @Setup
+    public void setUp() {
+        service = new BenchmarkService(lazyTextDecoding);
+        var settings = new ServiceSettings(service.getPath(), new EmptyConfiguration());
+        var metrics = new ServiceMetrics("/bench", new StallDetector(Duration.ZERO));
+        var dispatcher = new CallbackDispatcher(settings, metrics.getCallbacksRejected());
+        var frameHandler = new WebSocketFrameHandler(service, settings, dispatcher, metrics,
+                new ShardedSessionRegistry());
+
+        channel = new EmbeddedChannel(new WebSocket13FrameDecoder(true, true, 1 << 20));
+        if (deflate) {
+            channel.pipeline().addLast(PerMessageDeflate.negotiate().newExtensionDecoder());
+        }
+        channel.pipeline().addLast(frameHandler);
+        service.openSession(channel);
+
+        var payload = "x".repeat(payloadSize);
+        textFrame = aClientFrame(new TextWebSocketFrame(payload));
+        binaryFrame = aClientFrame(new BinaryWebSocketFrame(Unpooled.copiedBuffer(payload, StandardCharsets.UTF_8)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        textFrame.release();
+        binaryFrame.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public long dispatchText() {
+        channel.writeInbound(textFrame.retainedDuplicate());
+        return service.getReceived();
+    }
+
+    @Benchmark
+    public long dispatchBinary() {
+        channel.writeInbound(binaryFrame.retainedDuplicate());
+        return service.getReceived();
+    }
+
+    /**
+     * Encodes a frame as a client would send it: compressed if deflate is on, then masked.
+     */
+    private ByteBuf aClientFrame(WebSocketFrame frame) {
+        var client = new EmbeddedChannel(new WebSocket13FrameEncoder(true));
+        if (deflate) {
+            client.pipeline().addLast(PerMessageDeflate.negotiate().newExtensionEncoder());
+        }
+        client.writeOutbound(frame);
+        var wire = Unpooled.buffer();
+        ByteBuf part;
+        while ((part = client.readOutbound()) != null) {
+            wire.writeBytes(part);
+            part.release();
+        }
+        client.finishAndReleaseAll();
+        return wire;
+    }
+}
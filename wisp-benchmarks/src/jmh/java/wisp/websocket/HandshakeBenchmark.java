@@ -0,0 +1,93 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures connection setup: building the pipeline in {@link WebSocketServerInitializer}, routing the upgrade
+ * request and completing the handshake, with and without negotiating permessage-deflate.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HandshakeBenchmark {
+    @Param({ "false", "true" })
+    private boolean deflate;
+
+    private WebSocketServerInitializer initializer;
+    private ByteBuf upgradeRequest;
+
+    @Setup
+    public void setUp() {
+        var service = new BenchmarkService(false);
+        var settings = new ServiceSettings(service.getPath(), new EmptyConfiguration());
+        var metrics = new ServiceMetrics("/bench", new StallDetector(Duration.ZERO));
+        var dispatcher = new CallbackDispatcher(settings, metrics.getCallbacksRejected());
+        var frameHandler = new WebSocketFrameHandler(service, settings, dispatcher, metrics,
+                new ShardedSessionRegistry());
+        initializer = new WebSocketServerInitializer(null, Map.of(service.getPath(), frameHandler),
+                new DefaultChannelGroup(GlobalEventExecutor.INSTANCE), new AdmissionControl(), new IdleTimers());
+
+        var request = "GET /bench HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + (deflate ? "Sec-WebSocket-Extensions: permessage-deflate\r\n" : "")
+                + "\r\n";
+        upgradeRequest = Unpooled.copiedBuffer(request, StandardCharsets.US_ASCII);
+    }
+
+    @TearDown
+    public void tearDown() {
+        upgradeRequest.release();
+    }
+
+    @Benchmark
+    public boolean handshake() {
+        var channel = new EmbeddedChannel(initializer);
+        channel.writeInbound(upgradeRequest.retainedDuplicate());
+        Object response = channel.readOutbound();
+        boolean upgraded = response != null;
+        ReferenceCountUtil.release(response);
+        channel.finishAndReleaseAll();
+        return upgraded;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+import java.util.HashMap;
+
+/**
+ * Negotiates permessage-deflate as a client offering no context takeover in either direction would, so every
+ * message compresses independently and a single pre-built frame can be replayed on each benchmark invocation.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class PerMessageDeflate {
+    private PerMessageDeflate() { }
+
+    static WebSocketServerExtension negotiate() {
+        var handshaker = new PerMessageDeflateServerExtensionHandshaker(6, false, 15, true, true);
+        var params = new HashMap<String, String>();
+        params.put("server_no_context_takeover", null);
+        params.put("client_no_context_takeover", null);
+        return handshaker.handshakeExtension(new WebSocketExtensionData("permessage-deflate", params));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameEncoder;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the outbound hot path: a service calling sendText or sendBinary on its session, through frame encoding
+ * and optional compression, up to the bytes handed to the transport at the end-of-tick flush.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendBenchmark {
+    @Param({ "64", "4096" })
+    private int payloadSize;
+
+    @Param({ "false", "true" })
+    private boolean deflate;
+
+    private EmbeddedChannel channel;
+    private WebSocketSessionImpl session;
+    private String text;
+    private ByteBuffer binary;
+
+    @Setup
+    public void setUp() {
+        channel = new EmbeddedChannel(new WebSocket13FrameEncoder(false));
+        if (deflate) {
+            channel.pipeline().addLast(PerMessageDeflate.negotiate().newExtensionEncoder());
+        }
+        session = new BenchmarkService(false).openSession(channel);
+
+        text = "x".repeat(payloadSize);
+        binary = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public int sendText() {
+        session.sendText(text, true);
+        return flush();
+    }
+
+    @Benchmark
+    public int sendBinary() {
+        session.sendBinary(binary.duplicate(), true);
+        return flush();
+    }
+
+    private int flush() {
+        channel.runPendingTasks();
+        int written = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+            written++;
+        }
+        return written;
+    }
+}
@@ -1,4 +1,5 @@
 import wisp.boot.HoconConfigurationFactory;
+import wisp.boot.PrometheusExporter;
 import wisp.boot.PropertiesConfigurationFactory;
 
 module wisp.boot {
@@ -6,6 +7,7 @@ module wisp.boot {
 
    requires args4j;
    requires com.google.common;
+   requires jdk.httpserver;
    requires jsr305;
    requires typesafe.config;
 
@@ -13,8 +15,10 @@ module wisp.boot {
 
    uses wisp.api.ConfigurationFactory;
    uses wisp.api.LogInitializer;
+   uses wisp.api.MetricsExporter;
    uses wisp.api.ServiceModule;
 
    provides wisp.api.ConfigurationFactory
            with HoconConfigurationFactory, PropertiesConfigurationFactory;
+   provides wisp.api.MetricsExporter with PrometheusExporter;
 }
\ No newline at end of file
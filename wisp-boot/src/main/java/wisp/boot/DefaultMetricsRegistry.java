@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wisp.boot;
+
+import wisp.api.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Default {@link MetricsRegistry} which keeps series grouped by metric name in registration order. Registration
+ * and collection are synchronized, which is fine since both are rare; updates go straight to the lock-free metric
+ * objects and never touch the registry.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class DefaultMetricsRegistry implements MetricsRegistry {
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    @Override
+    public void register(String name, String help, Map<String, String> labels, Counter counter) {
+        add(name, help, MetricsCollector.Type.COUNTER, labels, counter);
+    }
+
+    @Override
+    public void register(String name, String help, Map<String, String> labels, Gauge gauge) {
+        add(name, help, MetricsCollector.Type.GAUGE, labels, gauge);
+    }
+
+    @Override
+    public void register(String name, String help, Map<String, String> labels, LatencyHistogram histogram) {
+        add(name, help, MetricsCollector.Type.HISTOGRAM, labels, histogram);
+    }
+
+    @Override
+    public synchronized void collect(MetricsCollector collector) {
+        for (var entry : families.entrySet()) {
+            var name = entry.getKey();
+            var family = entry.getValue();
+            collector.family(name, family.help, family.type);
+            for (var series : family.series) {
+                if (series.metric instanceof Counter) {
+                    collector.value(name, series.labels, ((Counter) series.metric).get());
+                } else if (series.metric instanceof Gauge) {
+                    collector.value(name, series.labels, ((Gauge) series.metric).get());
+                } else {
+                    collector.histogram(name, series.labels, (LatencyHistogram) series.metric);
+                }
+            }
+        }
+    }
+
+    private synchronized void add(String name, String help, MetricsCollector.Type type, Map<String, String> labels,
+                                  Object metric) {
+        var family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " already registered as " + family.type);
+        }
+        family.series.add(new Series(new TreeMap<>(labels), metric));
+    }
+
+    private static class Family {
+        private final String help;
+        private final MetricsCollector.Type type;
+        private final List<Series> series = new ArrayList<>();
+
+        private Family(String help, MetricsCollector.Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static class Series {
+        private final Map<String, String> labels;
+        private final Object metric;
+
+        private Series(Map<String, String> labels, Object metric) {
+            this.labels = labels;
+            this.metric = metric;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package wisp.boot;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpServer;
+import wisp.api.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link MetricsExporter} which serves every registered metric in the Prometheus text exposition format from a
+ * small HTTP server on its own port, so that scrapes never touch the service event loops. Enable it with
+ * wisp.metrics.exporter = prometheus; wisp.metrics.port and wisp.metrics.path control where it listens.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public class PrometheusExporter implements MetricsExporter {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private String host = "0.0.0.0";
+    private int port = 9400;
+    private String path = "/metrics";
+    private HttpServer server;
+
+    @Override
+    public boolean canHandle(String exporterType) {
+        return "prometheus".equals(exporterType);
+    }
+
+    @Override
+    public void configure(Configuration config) {
+        if (config.hasPath("wisp.metrics.host")) {
+            host = config.getString("wisp.metrics.host");
+        }
+
+        if (config.hasPath("wisp.metrics.port")) {
+            port = config.getInt("wisp.metrics.port");
+        }
+
+        if (config.hasPath("wisp.metrics.path")) {
+            path = config.getString("wisp.metrics.path");
+        }
+    }
+
+    @Override
+    public void export(MetricsRegistry registry) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        server.createContext(path, exchange -> {
+            try {
+                var body = format(registry).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("wisp-metrics").setDaemon(true).build()));
+        server.start();
+        System.out.println("Serving Prometheus metrics on http://" + host + ":" + port + path);
+    }
+
+    @Override
+    public void destroy() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Renders the registry's current contents in the Prometheus text format.
+     */
+    static String format(MetricsRegistry registry) {
+        var out = new StringBuilder();
+        registry.collect(new MetricsCollector() {
+            @Override
+            public void family(String name, String help, Type type) {
+                out.append("# HELP ").append(name).append(' ').append(escapeHelp(help)).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(type.name().toLowerCase(Locale.US)).append('\n');
+            }
+
+            @Override
+            public void value(String name, Map<String, String> labels, long value) {
+                appendSample(out, name, labels, Long.toString(value));
+            }
+
+            @Override
+            public void histogram(String name, Map<String, String> labels, LatencyHistogram histogram) {
+                var bounds = histogram.getBucketBoundsNanos();
+                var counts = histogram.getCumulativeCounts();
+                for (int i = 0; i <= bounds.length; i++) {
+                    var bucketLabels = new LinkedHashMap<>(labels);
+                    bucketLabels.put("le", i < bounds.length ? seconds(bounds[i]) : "+Inf");
+                    appendSample(out, name + "_bucket", bucketLabels, Long.toString(counts[i]));
+                }
+                appendSample(out, name + "_sum", labels, seconds(histogram.getSumNanos()));
+                appendSample(out, name + "_count", labels, Long.toString(counts[bounds.length]));
+            }
+        });
+        return out.toString();
+    }
+
+    private static void appendSample(StringBuilder out, String name, Map<String, String> labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{');
+            boolean first = true;
+            for (var label : labels.entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                out.append(label.getKey()).append("=\"").append(escapeLabel(label.getValue())).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String escapeLabel(String value) {
+        return escapeHelp(value).replace("\"", "\\\"");
+    }
+}
@@ -16,21 +16,38 @@
 
 package wisp.boot;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import wisp.api.*;
 
 import javax.annotation.Nonnull;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 /**
  * Default implementation which tracks registered modules and extracts the supported service interfaces.
  *
+ * <p>Modules are started and stopped along their declared dependency graph: each module starts as soon as
+ * everything it depends on has started, so independent modules start in parallel, and stops only once everything
+ * depending on it has stopped. Lifecycle calls run on a pool of daemon threads so that a module with a blocking
+ * start() or stop() does not hold up its neighbours.</p>
+ *
  * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
  */
 class ServiceModuleSet implements Iterable<ServiceModule>, Configurable, Destroyable {
     private List<ServiceModule> loadedModules = new ArrayList<>();
 
+    private final ExecutorService lifecycleExecutor = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("wisp-lifecycle-%d").setDaemon(true).build());
+
     void registerServiceModule(ServiceModule smod) {
         loadedModules.add(smod);
     }
@@ -41,6 +58,12 @@ class ServiceModuleSet implements Iterable<ServiceModule>, Configurable, Destroy
         return loadedModules.iterator();
     }
 
+    void bindMetrics(MetricsRegistry metrics) {
+        for (ServiceModule service : this) {
+            service.bindMetrics(metrics);
+        }
+    }
+
     @Override
     public void configure(@Nonnull Configuration config) {
         for (ServiceModule service : this) {
@@ -53,17 +76,90 @@ class ServiceModuleSet implements Iterable<ServiceModule>, Configurable, Destroy
         for (ServiceModule service : this) {
             service.destroy();
         }
+        lifecycleExecutor.shutdown();
+    }
+
+    /**
+     * Starts every module once its dependencies have started, completing when all have started or exceptionally
+     * as soon as any fails; modules depending on a failed module are never started.
+     */
+    CompletableFuture<Void> startAll() {
+        var byName = indexByName();
+        var dependencies = new HashMap<String, Set<String>>();
+        for (ServiceModule service : loadedModules) {
+            for (var dependency : service.getDependencies()) {
+                if (!byName.containsKey(dependency)) {
+                    throw new IllegalStateException(service.getName() + " depends on unknown module " + dependency);
+                }
+            }
+            dependencies.put(service.getName(), service.getDependencies());
+        }
+        return runAlong(dependencies, byName, service -> service.startAsync().toCompletableFuture(), false);
     }
 
-    void startAll() {
+    /**
+     * Stops every module once the modules depending on it have stopped, completing when all have stopped. A
+     * failure to stop one module is reported but does not prevent the others from stopping.
+     */
+    CompletableFuture<Void> stopAll() {
+        var byName = indexByName();
+        var dependents = new HashMap<String, Set<String>>();
         for (ServiceModule service : loadedModules) {
-            service.start();
+            dependents.computeIfAbsent(service.getName(), name -> new HashSet<>());
+            for (var dependency : service.getDependencies()) {
+                dependents.computeIfAbsent(dependency, name -> new HashSet<>()).add(service.getName());
+            }
         }
+        return runAlong(dependents, byName, service -> service.stopAsync().toCompletableFuture(), true);
     }
 
-    void stopAll() {
+    private Map<String, ServiceModule> indexByName() {
+        var byName = new HashMap<String, ServiceModule>();
         for (ServiceModule service : loadedModules) {
-            service.stop();
+            if (byName.put(service.getName(), service) != null) {
+                throw new IllegalStateException("duplicate ServiceModule#getName(): " + service.getName());
+            }
         }
+        return byName;
+    }
+
+    /**
+     * Runs the given lifecycle action on every module after the actions on the modules it waits for complete.
+     */
+    private CompletableFuture<Void> runAlong(Map<String, Set<String>> waitsFor, Map<String, ServiceModule> byName,
+                                             Function<ServiceModule, CompletableFuture<Void>> action,
+                                             boolean tolerateFailures) {
+        var scheduled = new HashMap<String, CompletableFuture<Void>>();
+        for (var name : byName.keySet()) {
+            schedule(name, waitsFor, byName, action, tolerateFailures, scheduled, new HashSet<>());
+        }
+        return CompletableFuture.allOf(scheduled.values().toArray(new CompletableFuture<?>[0]));
+    }
+
+    private CompletableFuture<Void> schedule(String name, Map<String, Set<String>> waitsFor,
+                                             Map<String, ServiceModule> byName,
+                                             Function<ServiceModule, CompletableFuture<Void>> action,
+                                             boolean tolerateFailures,
+                                             Map<String, CompletableFuture<Void>> scheduled, Set<String> visiting) {
+        var existing = scheduled.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        if (!visiting.add(name)) {
+            throw new IllegalStateException("ServiceModule dependency cycle through " + name);
+        }
+
+        var prerequisites = new ArrayList<CompletableFuture<Void>>();
+        for (var prerequisite : waitsFor.getOrDefault(name, Set.of())) {
+            var future = schedule(prerequisite, waitsFor, byName, action, tolerateFailures, scheduled, visiting);
+            prerequisites.add(tolerateFailures ? future.exceptionally(e -> null) : future);
+        }
+        visiting.remove(name);
+
+        var service = byName.get(name);
+        var future = CompletableFuture.allOf(prerequisites.toArray(new CompletableFuture<?>[0]))
+                .thenComposeAsync(ignored -> action.apply(service), lifecycleExecutor);
+        scheduled.put(name, future);
+        return future;
     }
 }
@@ -28,19 +28,24 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.ServiceLoader;
 import java.util.TreeSet;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 /**
  * Main entry point for the Wisp microservices server. WispBoot takes care of loading all {@link ServiceModule}
  * instances from a directory provided on the command line and manages their lifecycles: linking, configuring
- * and then starting each discovered {@link ServiceModule}.
+ * and then starting each discovered {@link ServiceModule}. Modules are stopped and destroyed from a shutdown hook.
  *
  * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
  */
 public class WispBoot implements Destroyable {
     private ServiceModuleSet locator;
+    private final List<MetricsExporter> metricsExporters = new ArrayList<>();
+    private final AtomicBoolean destroyed = new AtomicBoolean();
 
     @Option(name="-b", aliases={ "--base-dir"}, usage="Base installation directory")
     private String baseDir;
@@ -139,19 +144,53 @@ public class WispBoot implements Destroyable {
         for (var smod : ServiceLoader.load(layer, ServiceModule.class)) {
             locator.registerServiceModule(smod);
         }
-        
+
+        // initialize metrics export
+        var metrics = new DefaultMetricsRegistry();
+        String exporterType = "none";
+        if (configuration.hasPath("wisp.metrics.exporter")) {
+            exporterType = configuration.getString("wisp.metrics.exporter");
+        }
+        for (MetricsExporter exporter : ServiceLoader.load(layer, MetricsExporter.class)) {
+            if (exporter.canHandle(exporterType)) {
+                exporter.configure(configuration);
+                exporter.export(metrics);
+                metricsExporters.add(exporter);
+            }
+        }
+
+        locator.bindMetrics(metrics);
         locator.configure(configuration);
-        locator.startAll();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::destroy, "wisp-shutdown"));
+
+        long startTime = System.nanoTime();
+        try {
+            locator.startAll().join();
+        } catch (CompletionException e) {
+            destroy();
+            throw new IllegalStateException("failed to start ServiceModules", e.getCause());
+        }
+        System.out.println("Started all ServiceModules in " + (System.nanoTime() - startTime) / 1_000_000 + " ms");
     }
 
-    @SuppressWarnings("unused")
+    @SuppressWarnings("WeakerAccess")
     void stopAll() {
-        locator.stopAll();
+        try {
+            locator.stopAll().join();
+        } catch (CompletionException e) {
+            System.err.println("failed to stop all ServiceModules cleanly: " + e.getCause());
+        }
     }
 
     @Override
     public void destroy() {
-
+        if (locator != null && destroyed.compareAndSet(false, true)) {
+            stopAll();
+            locator.destroy();
+            for (var exporter : metricsExporters) {
+                exporter.destroy();
+            }
+        }
     }
 
     private class ServiceModuleDir {
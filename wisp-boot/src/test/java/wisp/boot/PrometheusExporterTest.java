@@ -0,0 +1,67 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.boot;
+
+import org.junit.Test;
+import wisp.api.Counter;
+import wisp.api.LatencyHistogram;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class PrometheusExporterTest {
+    @Test
+    public void formatsCountersAndGaugesWithLabels() {
+        var registry = new DefaultMetricsRegistry();
+        var counter = new Counter();
+        counter.add(3);
+        registry.register("wisp_frames_total", "Frames seen.", Map.of("service", "/echo"), counter);
+        registry.register("wisp_sessions", "Open sessions.", Map.of("service", "/echo"), () -> 7);
+
+        var text = PrometheusExporter.format(registry);
+        assertTrue(text.contains("# TYPE wisp_frames_total counter\n"));
+        assertTrue(text.contains("wisp_frames_total{service=\"/echo\"} 3\n"));
+        assertTrue(text.contains("# TYPE wisp_sessions gauge\n"));
+        assertTrue(text.contains("wisp_sessions{service=\"/echo\"} 7\n"));
+    }
+
+    @Test
+    public void formatsHistogramBucketsInSeconds() {
+        var registry = new DefaultMetricsRegistry();
+        var histogram = new LatencyHistogram();
+        histogram.record(3, TimeUnit.MICROSECONDS);
+        histogram.record(2, TimeUnit.SECONDS);
+        registry.register("wisp_callback_seconds", "Callback time.", Map.of(), histogram);
+
+        var text = PrometheusExporter.format(registry);
+        assertTrue(text.contains("wisp_callback_seconds_bucket{le=\"0.000001\"} 0\n"));
+        assertTrue(text.contains("wisp_callback_seconds_bucket{le=\"0.000005\"} 1\n"));
+        assertTrue(text.contains("wisp_callback_seconds_bucket{le=\"10\"} 2\n"));
+        assertTrue(text.contains("wisp_callback_seconds_bucket{le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("wisp_callback_seconds_sum 2.000003\n"));
+        assertTrue(text.contains("wisp_callback_seconds_count 2\n"));
+    }
+
+    @Test
+    public void escapesLabelValues() {
+        var registry = new DefaultMetricsRegistry();
+        registry.register("wisp_test", "Test.", Map.of("path", "a\"b"), () -> 1);
+        assertTrue(PrometheusExporter.format(registry).contains("wisp_test{path=\"a\\\"b\"} 1\n"));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.boot;
+
+import org.junit.Test;
+import wisp.api.ServiceModule;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceModuleSetTest {
+    @Test
+    public void startsIndependentModulesInParallel() throws Exception {
+        // each blocking start() waits for the other, so this only finishes if both run at once
+        var barrier = new CyclicBarrier(2);
+        var modules = new ServiceModuleSet();
+        modules.registerServiceModule(aBlockingModule("a", barrier));
+        modules.registerServiceModule(aBlockingModule("b", barrier));
+        modules.startAll().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void startsDependenciesFirst() throws Exception {
+        var aStarted = new CompletableFuture<Void>();
+        var a = new TestModule("a", Set.of(), aStarted);
+        var b = new TestModule("b", Set.of("a"), CompletableFuture.completedFuture(null));
+        var modules = new ServiceModuleSet();
+        modules.registerServiceModule(b);
+        modules.registerServiceModule(a);
+
+        var started = modules.startAll();
+        Thread.sleep(100);
+        assertFalse(b.started);
+
+        aStarted.complete(null);
+        started.get(5, TimeUnit.SECONDS);
+        assertTrue(b.started);
+    }
+
+    @Test
+    public void stopsDependentsFirst() throws Exception {
+        List<String> stopped = new CopyOnWriteArrayList<>();
+        var modules = new ServiceModuleSet();
+        modules.registerServiceModule(new TestModule("a", Set.of(), null) {
+            @Override
+            public void stop() {
+                stopped.add(getName());
+            }
+        });
+        modules.registerServiceModule(new TestModule("b", Set.of("a"), null) {
+            @Override
+            public void stop() {
+                stopped.add(getName());
+            }
+        });
+        modules.stopAll().get(5, TimeUnit.SECONDS);
+        assertEquals(List.of("b", "a"), stopped);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsDependencyCycle() {
+        var modules = new ServiceModuleSet();
+        modules.registerServiceModule(new TestModule("a", Set.of("b"), null));
+        modules.registerServiceModule(new TestModule("b", Set.of("a"), null));
+        modules.startAll();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsUnknownDependency() {
+        var modules = new ServiceModuleSet();
+        modules.registerServiceModule(new TestModule("a", Set.of("missing"), null));
+        modules.startAll();
+    }
+
+    private ServiceModule aBlockingModule(String name, CyclicBarrier barrier) {
+        return new TestModule(name, Set.of(), null) {
+            @Override
+            public void start() {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    private static class TestModule implements ServiceModule {
+        private final String name;
+        private final Set<String> dependencies;
+        private final CompletionStage<Void> startResult;
+        private volatile boolean started;
+
+        private TestModule(String name, Set<String> dependencies, CompletionStage<Void> startResult) {
+            this.name = name;
+            this.dependencies = dependencies;
+            this.startResult = startResult;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Set<String> getDependencies() {
+            return dependencies;
+        }
+
+        @Override
+        public CompletionStage<Void> startAsync() {
+            if (startResult == null) {
+                return ServiceModule.super.startAsync();
+            }
+            started = true;
+            return startResult;
+        }
+    }
+}
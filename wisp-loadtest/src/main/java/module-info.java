@@ -0,0 +1,14 @@
+module wisp.loadtest {
+    requires args4j;
+    requires io.netty.buffer;
+    requires io.netty.codec;
+    requires io.netty.codec.http;
+    requires io.netty.common;
+    requires io.netty.handler;
+    requires io.netty.transport;
+    requires io.netty.transport.epoll;
+    requires io.netty.transport.unix.common;
+    requires org.HdrHistogram;
+
+    opens wisp.loadtest to args4j;
+}
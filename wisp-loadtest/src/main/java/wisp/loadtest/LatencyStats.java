@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe round-trip latency recorder shared by every connection. Each echoed message is recorded twice: once
+ * from when it was actually written, and once from when the schedule said it should have been written. When the
+ * server or client stalls, sends fall behind schedule and only the second figure shows the delay the stalled
+ * messages really saw; the first suffers from coordinated omission.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class LatencyStats {
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Recorder uncorrected = new Recorder(SIGNIFICANT_DIGITS);
+    private final Recorder corrected = new Recorder(SIGNIFICANT_DIGITS);
+    private final Histogram uncorrectedTotal = new Histogram(SIGNIFICANT_DIGITS);
+    private final Histogram correctedTotal = new Histogram(SIGNIFICANT_DIGITS);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    void sent() {
+        sent.increment();
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    void received(long intendedNanos, long sentNanos, long receivedNanos) {
+        uncorrected.recordValue(receivedNanos - sentNanos);
+        corrected.recordValue(receivedNanos - intendedNanos);
+    }
+
+    /**
+     * Prints figures for the interval since the last call and folds them into the totals unless warming up.
+     */
+    void reportInterval(PrintStream out, long elapsedSeconds, boolean warmup) {
+        var uncorrectedInterval = uncorrected.getIntervalHistogram();
+        var correctedInterval = corrected.getIntervalHistogram();
+        out.printf("%4ds%s %8d msg/s  p50 %8.1f  p99 %8.1f  max %8.1f  (corrected p99 %8.1f)  sent %d errors %d%n",
+                elapsedSeconds, warmup ? "*" : " ", uncorrectedInterval.getTotalCount(),
+                micros(uncorrectedInterval.getValueAtPercentile(50)),
+                micros(uncorrectedInterval.getValueAtPercentile(99)),
+                micros(uncorrectedInterval.getMaxValue()),
+                micros(correctedInterval.getValueAtPercentile(99)),
+                sent.sumThenReset(), errors.sum());
+        if (!warmup) {
+            uncorrectedTotal.add(uncorrectedInterval);
+            correctedTotal.add(correctedInterval);
+        }
+    }
+
+    void reportSummary(PrintStream out) {
+        out.println();
+        out.printf("%-24s %10s %10s %10s %10s %10s%n", "round-trip latency (us)", "p50", "p99", "p99.9", "max",
+                "count");
+        printSummaryLine(out, "uncorrected", uncorrectedTotal);
+        printSummaryLine(out, "corrected for CO", correctedTotal);
+        out.println("errors: " + errors.sum());
+    }
+
+    /**
+     * Writes the full corrected distribution in HdrHistogram's percentile format, in microseconds, for plotting.
+     */
+    void writeDistribution(PrintStream out) {
+        correctedTotal.outputPercentileDistribution(out, (double) TimeUnit.MICROSECONDS.toNanos(1));
+    }
+
+    private static void printSummaryLine(PrintStream out, String label, Histogram histogram) {
+        out.printf("%-24s %10.1f %10.1f %10.1f %10.1f %10d%n", label,
+                micros(histogram.getValueAtPercentile(50)),
+                micros(histogram.getValueAtPercentile(99)),
+                micros(histogram.getValueAtPercentile(99.9)),
+                micros(histogram.getMaxValue()),
+                histogram.getTotalCount());
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.loadtest;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives one connection: once the handshake completes it sends a text or binary message every interval on the
+ * channel's event loop and records the round trip of each echoed reply. Every message carries the time the schedule
+ * said it should go out and the time it actually did as fixed-width ASCII decimal fields, which survive the echo
+ * service's upper-casing of text unchanged.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class LoadClientHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
+    private static final int TIMESTAMP_DIGITS = 19;
+    // System.nanoTime() may be negative, so timestamps are written relative to this
+    private static final long ORIGIN_NANOS = System.nanoTime();
+    static final int MIN_MESSAGE_SIZE = 2 * TIMESTAMP_DIGITS + 2;
+
+    private final LatencyStats stats;
+    private final CountDownLatch connected;
+    private final long intervalNanos;
+    private final String filler;
+    private final boolean binary;
+
+    private ScheduledFuture<?> sender;
+    private long startNanos;
+    private long sequence;
+
+    LoadClientHandler(LatencyStats stats, CountDownLatch connected, long intervalNanos, int messageSize,
+                      boolean binary) {
+        this.stats = stats;
+        this.connected = connected;
+        this.intervalNanos = intervalNanos;
+        this.filler = " " + "x".repeat(messageSize - MIN_MESSAGE_SIZE);
+        this.binary = binary;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+            connected.countDown();
+            // spread connections across the interval so they do not all send in lockstep
+            long offset = (long) (Math.random() * intervalNanos);
+            startNanos = System.nanoTime() + offset;
+            sender = ctx.executor().scheduleAtFixedRate(() -> send(ctx), offset, intervalNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) {
+        long now = System.nanoTime();
+        ByteBuf content = frame.content();
+        int start = content.readerIndex();
+        long intended = parseTimestamp(content, start);
+        long sent = parseTimestamp(content, start + TIMESTAMP_DIGITS + 1);
+        stats.received(intended, sent, now);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stopSending();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        stats.error();
+        ctx.close();
+    }
+
+    void stopSending() {
+        if (sender != null) {
+            sender.cancel(false);
+        }
+    }
+
+    private void send(ChannelHandlerContext ctx) {
+        // fixed-rate scheduling runs late ticks back to back, so the intended time comes from the sequence alone
+        long intended = startNanos + sequence++ * intervalNanos;
+        var message = pad(intended) + " " + pad(System.nanoTime()) + filler;
+        WebSocketFrame frame;
+        if (binary) {
+            var content = ctx.alloc().buffer(message.length());
+            content.writeCharSequence(message, CharsetUtil.US_ASCII);
+            frame = new BinaryWebSocketFrame(content);
+        } else {
+            frame = new TextWebSocketFrame(message);
+        }
+        ctx.writeAndFlush(frame).addListener(future -> {
+            if (future.isSuccess()) {
+                stats.sent();
+            } else {
+                stats.error();
+            }
+        });
+    }
+
+    private static String pad(long nanos) {
+        var digits = Long.toString(nanos - ORIGIN_NANOS);
+        return "0".repeat(TIMESTAMP_DIGITS - digits.length()) + digits;
+    }
+
+    private static long parseTimestamp(ByteBuf content, int index) {
+        return ORIGIN_NANOS + Long.parseLong(content.toString(index, TIMESTAMP_DIGITS, CharsetUtil.US_ASCII));
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.loadtest;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketClientCompressionHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open-loop load generator for Wisp services: opens a number of websocket connections, sends fixed-size text
+ * messages at a steady aggregate rate regardless of how quickly replies come back, and reports round-trip latency
+ * every second and in total. Meant to be pointed at an echo-style service such as wisp-websocket-echo so that the
+ * same load can be replayed against different transports, compression and dispatch settings.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public class LoadTest {
+    private static final int MAX_MESSAGE_SIZE = 1 << 20;
+
+    @Option(name="-u", aliases={ "--url" }, usage="Websocket URL to load, e.g. ws://localhost:8080/echo")
+    private String url = "ws://localhost:8080/echo";
+
+    @Option(name="-c", aliases={ "--connections" }, usage="Number of connections to open")
+    private int connections = 100;
+
+    @Option(name="-r", aliases={ "--rate" }, usage="Total messages per second across all connections")
+    private int rate = 10_000;
+
+    @Option(name="-s", aliases={ "--size" }, usage="Message size in bytes; at least 40")
+    private int messageSize = 64;
+
+    @Option(name="-d", aliases={ "--duration" }, usage="Seconds to measure for")
+    private int durationSeconds = 30;
+
+    @Option(name="-w", aliases={ "--warmup" }, usage="Seconds to run before measuring")
+    private int warmupSeconds = 5;
+
+    @Option(name="-t", aliases={ "--transport" }, usage="Client transport: nio or epoll")
+    private String transport = "nio";
+
+    @Option(name="-z", aliases={ "--compress" }, usage="Offer permessage-deflate")
+    private boolean compress = false;
+
+    @Option(name="-b", aliases={ "--binary" }, usage="Send binary rather than text messages")
+    private boolean binary = false;
+
+    @Option(name="-o", aliases={ "--histogram" }, usage="File to write the corrected latency distribution to")
+    private String histogramFile;
+
+    public static void main(String[] args) throws Exception {
+        var loadTest = new LoadTest();
+        var parser = new CmdLineParser(loadTest);
+        try {
+            parser.parseArgument(args);
+            loadTest.validate(parser);
+        } catch (CmdLineException e) {
+            System.err.println(e.getMessage());
+            parser.printUsage(System.err);
+            System.exit(1);
+        }
+        loadTest.run();
+    }
+
+    private void validate(CmdLineParser parser) throws CmdLineException {
+        if (connections < 1 || rate < 1 || durationSeconds < 1 || warmupSeconds < 0) {
+            throw new CmdLineException(parser, "connections, rate and duration must be positive", null);
+        }
+        if (messageSize < LoadClientHandler.MIN_MESSAGE_SIZE || messageSize > MAX_MESSAGE_SIZE) {
+            throw new CmdLineException(parser, "message size must be between " + LoadClientHandler.MIN_MESSAGE_SIZE
+                    + " and " + MAX_MESSAGE_SIZE, null);
+        }
+    }
+
+    private void run() throws Exception {
+        var uri = URI.create(url);
+        boolean secure = "wss".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() != -1 ? uri.getPort() : secure ? 443 : 80;
+        SslContext sslCtx = null;
+        if (secure) {
+            sslCtx = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+        }
+
+        boolean epoll = "epoll".equalsIgnoreCase(transport);
+        if (epoll && !Epoll.isAvailable()) {
+            System.err.println("epoll not available (" + Epoll.unavailabilityCause() + "); using nio");
+            epoll = false;
+        }
+        EventLoopGroup group = epoll ? new EpollEventLoopGroup() : new NioEventLoopGroup();
+
+        var stats = new LatencyStats();
+        var connected = new CountDownLatch(connections);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * connections / rate;
+        List<LoadClientHandler> handlers = new ArrayList<>();
+        List<Channel> channels = new ArrayList<>();
+        System.out.printf("%s: %d connection(s), %d %s msg/s of %d bytes, %s transport%s%n", uri, connections, rate,
+                binary ? "binary" : "text", messageSize, epoll ? "epoll" : "nio",
+                compress ? ", permessage-deflate" : "");
+        try {
+            var bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(epoll ? EpollSocketChannel.class : NioSocketChannel.class);
+            for (int i = 0; i < connections; i++) {
+                var handler = new LoadClientHandler(stats, connected, intervalNanos, messageSize, binary);
+                handlers.add(handler);
+                var handshaker = WebSocketClientHandshakerFactory.newHandshaker(uri, WebSocketVersion.V13, null,
+                        compress, new DefaultHttpHeaders(), MAX_MESSAGE_SIZE);
+                var ssl = sslCtx;
+                var connection = bootstrap.clone().handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        if (ssl != null) {
+                            ch.pipeline().addLast(ssl.newHandler(ch.alloc(), uri.getHost(), port));
+                        }
+                        ch.pipeline().addLast(new HttpClientCodec(), new HttpObjectAggregator(8192));
+                        if (compress) {
+                            ch.pipeline().addLast(WebSocketClientCompressionHandler.INSTANCE);
+                        }
+                        ch.pipeline().addLast(new WebSocketClientProtocolHandler(handshaker),
+                                new WebSocketFrameAggregator(MAX_MESSAGE_SIZE), handler);
+                    }
+                });
+                channels.add(connection.connect(uri.getHost(), port).sync().channel());
+            }
+            if (!connected.await(30, TimeUnit.SECONDS)) {
+                System.err.println("only " + (connections - connected.getCount()) + " connection(s) opened");
+            }
+
+            for (int second = 1; second <= warmupSeconds + durationSeconds; second++) {
+                Thread.sleep(1000);
+                stats.reportInterval(System.out, second, second <= warmupSeconds);
+            }
+
+            handlers.forEach(LoadClientHandler::stopSending);
+            stats.reportSummary(System.out);
+            if (histogramFile != null) {
+                writeHistogram(stats);
+            }
+            for (Channel ch : channels) {
+                ch.close();
+            }
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private void writeHistogram(LatencyStats stats) throws IOException {
+        try (var out = new PrintStream(new FileOutputStream(histogramFile))) {
+            stats.writeDistribution(out);
+        }
+        System.out.println("wrote corrected latency distribution to " + histogramFile);
+    }
+}
@@ -0,0 +1,16 @@
+module wisp.websocket.cluster {
+    exports wisp.websocket.cluster.spi;
+
+    requires io.netty.buffer;
+    requires io.netty.codec;
+    requires io.netty.common;
+    requires io.netty.transport;
+    requires slf4j.api;
+    requires wisp.api;
+    requires wisp.websocket;
+
+    provides wisp.api.ServiceModule with wisp.websocket.cluster.ClusterBridge;
+    provides wisp.websocket.api.BroadcastBridge with wisp.websocket.cluster.ClusterBridge;
+    provides wisp.websocket.cluster.spi.ClusterTransport with wisp.websocket.cluster.TcpMeshTransport;
+    uses wisp.websocket.cluster.spi.ClusterTransport;
+}
@@ -0,0 +1,176 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wisp.api.Configuration;
+import wisp.api.Counter;
+import wisp.api.MetricsRegistry;
+import wisp.api.ServiceModule;
+import wisp.websocket.api.BroadcastBridge;
+import wisp.websocket.api.BroadcastRelay;
+import wisp.websocket.cluster.spi.ClusterTransport;
+import wisp.websocket.cluster.spi.LocalNode;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Module which extends the websocket server's topics across a cluster of Wisp nodes, so a message published on
+ * any node reaches subscribers on all of them. It is both the {@link ServiceModule} which starts and stops the
+ * chosen {@link ClusterTransport} and the {@link BroadcastBridge} the server hands its topics and messages to;
+ * {@link #provider()} makes sure the two service lookups get the same instance. Messages which arrive from other
+ * nodes are published to local subscribers only, so nothing is passed on twice, and keep the sequence number the
+ * publishing node gave them so a client can resume a topic on any node.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public final class ClusterBridge implements ServiceModule, BroadcastBridge, LocalNode {
+    private static final Logger logger = LoggerFactory.getLogger(ClusterBridge.class);
+    private static final ClusterBridge INSTANCE = new ClusterBridge();
+
+    private final Set<String> topics = ConcurrentHashMap.newKeySet();
+    private final Counter messagesReceived = new Counter();
+    private volatile BroadcastRelay local;
+    private volatile ClusterTransport transport;
+
+    ClusterBridge() { }
+
+    /**
+     * Gets the one bridge shared by the module and broadcast bridge lookups.
+     */
+    public static ClusterBridge provider() {
+        return INSTANCE;
+    }
+
+    @Override
+    public Set<String> getDependencies() {
+        return Set.of("wisp.websocket.WebsocketServer");
+    }
+
+    @Override
+    public void bindMetrics(MetricsRegistry metrics) {
+        metrics.register("wisp_cluster_messages_received_total",
+                "Broadcast messages received from other cluster nodes.", Map.of(), messagesReceived);
+        metrics.register("wisp_cluster_topics", "Topics with subscribers on this node.", Map.of(), topics::size);
+    }
+
+    @Override
+    public void configure(Configuration config) {
+        String name = "tcp";
+        if (config.hasPath("wisp.cluster.transport")) {
+            name = config.getString("wisp.cluster.transport");
+        }
+
+        for (var candidate : ServiceLoader.load(getClass().getModule().getLayer(), ClusterTransport.class)) {
+            if (candidate.canHandle(name)) {
+                candidate.configure(config);
+                transport = candidate;
+                break;
+            }
+        }
+        if (transport == null) {
+            throw new IllegalArgumentException("unknown cluster transport: " + name);
+        }
+        logger.info("using {} cluster transport", transport.getClass().getSimpleName());
+    }
+
+    @Override
+    public CompletionStage<Void> startAsync() {
+        logger.info("starting {} module", getClass().getSimpleName());
+        return transport.start(this);
+    }
+
+    @Override
+    public CompletionStage<Void> stopAsync() {
+        var transport = this.transport;
+        return transport == null ? CompletableFuture.completedFuture(null) : transport.stop();
+    }
+
+    @Override
+    public void bind(BroadcastRelay local) {
+        this.local = local;
+    }
+
+    @Override
+    public void topicAdded(String topic) {
+        topics.add(topic);
+        var transport = this.transport;
+        if (transport != null) {
+            transport.topicAdded(topic);
+        }
+    }
+
+    @Override
+    public void topicRemoved(String topic) {
+        topics.remove(topic);
+        var transport = this.transport;
+        if (transport != null) {
+            transport.topicRemoved(topic);
+        }
+    }
+
+    @Override
+    public void published(String topic, CharSequence text) {
+        published(topic, 0, text);
+    }
+
+    @Override
+    public void published(String topic, ByteBuffer binary) {
+        published(topic, 0, binary);
+    }
+
+    @Override
+    public void published(String topic, long sequence, CharSequence text) {
+        var transport = this.transport;
+        if (transport != null) {
+            transport.send(topic, sequence, text);
+        }
+    }
+
+    @Override
+    public void published(String topic, long sequence, ByteBuffer binary) {
+        var transport = this.transport;
+        if (transport != null) {
+            transport.send(topic, sequence, binary);
+        }
+    }
+
+    @Override
+    public Set<String> getTopics() {
+        return Collections.unmodifiableSet(topics);
+    }
+
+    @Override
+    public void received(String topic, long sequence, CharSequence text) {
+        messagesReceived.increment();
+        local.relay(topic, sequence, text);
+    }
+
+    @Override
+    public void received(String topic, long sequence, ByteBuffer binary) {
+        messagesReceived.increment();
+        local.relay(topic, sequence, binary);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.cluster;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import wisp.websocket.api.Utf8Text;
+import wisp.websocket.cluster.spi.LocalNode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Wire format of the TCP mesh. Every frame is a four-byte length followed by a one-byte type:
+ *
+ * <ul>
+ *     <li>HELLO: the sender's node id, a long; sent first by each end so a node which finds itself in its peer
+ *     list can tell</li>
+ *     <li>SUBSCRIBE, UNSUBSCRIBE: one or more topics, each a two-byte length and UTF-8 name, which the receiving
+ *     end of a connection asks the sending end to start or stop forwarding</li>
+ *     <li>BATCH: one or more messages, each a one-byte kind, the topic as above, the eight-byte sequence
+ *     number the sending node gave it, or 0 if none, and a four-byte length and payload</li>
+ * </ul>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class MeshCodec {
+    static final int HELLO = 1;
+    static final int SUBSCRIBE = 2;
+    static final int UNSUBSCRIBE = 3;
+    static final int BATCH = 4;
+
+    private static final int TEXT = 1;
+    private static final int BINARY = 2;
+    static final int MAX_FRAME_LENGTH = 64 << 20;
+    private static final int MAX_TOPIC_LENGTH = 0xFFFF;
+
+    private MeshCodec() { }
+
+    static void addCodec(ChannelPipeline pipeline) {
+        pipeline.addLast(new LengthFieldBasedFrameDecoder(MAX_FRAME_LENGTH, 0, 4, 0, 4));
+        pipeline.addLast(new LengthFieldPrepender(4));
+    }
+
+    /**
+     * Whether a topic's name is short enough to send; topics with longer names stay local to the node.
+     */
+    static boolean canSend(String topic) {
+        return topic.length() <= MAX_TOPIC_LENGTH / 3 || ByteBufUtil.utf8Bytes(topic) <= MAX_TOPIC_LENGTH;
+    }
+
+    /**
+     * Whether an encoded message is small enough to go in a batch on its own; a peer closes the connection on any
+     * frame longer than {@link #MAX_FRAME_LENGTH}.
+     */
+    static boolean canBatch(ByteBuf message) {
+        return 1 + message.readableBytes() <= MAX_FRAME_LENGTH;
+    }
+
+    static ByteBuf hello(ByteBufAllocator alloc, long nodeId) {
+        return alloc.buffer(9).writeByte(HELLO).writeLong(nodeId);
+    }
+
+    static ByteBuf topics(ByteBufAllocator alloc, int type, Collection<String> topics) {
+        var buf = alloc.buffer().writeByte(type);
+        for (var topic : topics) {
+            writeTopic(buf, topic);
+        }
+        return buf;
+    }
+
+    /**
+     * Encodes a text message for any number of batches, without its frame header.
+     */
+    static ByteBuf text(ByteBufAllocator alloc, String topic, long sequence, CharSequence text) {
+        if (text instanceof Utf8Text) {
+            return message(alloc, topic, TEXT, sequence, ((Utf8Text) text).getBytes());
+        }
+        int length = ByteBufUtil.utf8Bytes(text);
+        var buf = messageHeader(alloc, topic, TEXT, sequence, length);
+        ByteBufUtil.writeUtf8(buf, text);
+        return buf;
+    }
+
+    /**
+     * Encodes a binary message for any number of batches, without its frame header.
+     */
+    static ByteBuf binary(ByteBufAllocator alloc, String topic, long sequence, ByteBuffer binary) {
+        return message(alloc, topic, BINARY, sequence, binary);
+    }
+
+    static void readTopics(ByteBuf frame, Consumer<String> topics) {
+        while (frame.isReadable()) {
+            topics.accept(readTopic(frame));
+        }
+    }
+
+    /**
+     * Hands each message in a batch to the node, as views over the frame which are only valid during the call.
+     */
+    static int readBatch(ByteBuf frame, LocalNode node) {
+        int messages = 0;
+        while (frame.isReadable()) {
+            int kind = frame.readByte();
+            var topic = readTopic(frame);
+            long sequence = frame.readLong();
+            int length = frame.readInt();
+            var payload = frame.nioBuffer(frame.readerIndex(), length);
+            frame.skipBytes(length);
+            if (kind == TEXT) {
+                node.received(topic, sequence, Utf8Text.wrap(payload));
+            } else {
+                node.received(topic, sequence, payload);
+            }
+            messages++;
+        }
+        return messages;
+    }
+
+    private static ByteBuf message(ByteBufAllocator alloc, String topic, int kind, long sequence,
+                                   ByteBuffer payload) {
+        var buf = messageHeader(alloc, topic, kind, sequence, payload.remaining());
+        buf.writeBytes(payload.duplicate());
+        return buf;
+    }
+
+    private static ByteBuf messageHeader(ByteBufAllocator alloc, String topic, int kind, long sequence,
+                                         int length) {
+        var buf = alloc.buffer(1 + 2 + topic.length() + 8 + 4 + length);
+        buf.writeByte(kind);
+        writeTopic(buf, topic);
+        buf.writeLong(sequence);
+        buf.writeInt(length);
+        return buf;
+    }
+
+    private static void writeTopic(ByteBuf buf, String topic) {
+        buf.writeShort(ByteBufUtil.utf8Bytes(topic));
+        ByteBufUtil.writeUtf8(buf, topic);
+    }
+
+    private static String readTopic(ByteBuf frame) {
+        int length = frame.readUnsignedShort();
+        return frame.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.cluster;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The receiving end of a connection a peer opened to this node. Once the peer has said hello it is sent this node's
+ * topics, and from then on every change to them, and the batches it sends back are handed to the local node.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class MeshReceiver extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(MeshReceiver.class);
+
+    private final TcpMeshTransport transport;
+
+    MeshReceiver(TcpMeshTransport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        var frame = (ByteBuf) msg;
+        try {
+            int type = frame.readByte();
+            if (type == MeshCodec.HELLO) {
+                var hello = ctx.writeAndFlush(MeshCodec.hello(ctx.alloc(), transport.getNodeId()));
+                if (frame.readLong() == transport.getNodeId()) {
+                    // our own hello tells the other end it has dialled itself
+                    hello.addListener(ChannelFutureListener.CLOSE);
+                } else {
+                    logger.info("accepted cluster peer {}", ctx.channel().remoteAddress());
+                    transport.accepted(ctx.channel());
+                }
+            } else if (type == MeshCodec.BATCH) {
+                transport.received(frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.warn("closing connection from cluster peer {}: {}", ctx.channel().remoteAddress(), cause.toString());
+        ctx.close();
+    }
+}
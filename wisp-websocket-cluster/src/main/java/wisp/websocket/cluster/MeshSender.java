@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.cluster;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The sending end of a connection this node opened to a peer. The peer replies with the topics it has subscribers
+ * for, and messages for those topics are appended to a batch on the connection's event loop, which is written out
+ * once the loop has run every append already queued or once it reaches the maximum batch size. A message which
+ * would take a batch over the maximum starts a new one, so only a message bigger than the maximum by itself is
+ * sent in a larger frame. Messages are
+ * dropped while the peer is not reading fast enough to keep the connection writable.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class MeshSender extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(MeshSender.class);
+
+    private final TcpMeshTransport transport;
+    private final InetSocketAddress peer;
+    private final Set<String> interest = ConcurrentHashMap.newKeySet();
+    private final Runnable flushTask = this::flush;
+
+    private volatile Channel channel;
+    private ByteBuf batch;
+    private boolean dropping;
+
+    MeshSender(TcpMeshTransport transport, InetSocketAddress peer) {
+        this.transport = transport;
+        this.peer = peer;
+    }
+
+    /**
+     * Whether the peer has subscribers to the topic.
+     */
+    boolean isInterested(String topic) {
+        return interest.contains(topic);
+    }
+
+    /**
+     * Queues an encoded message for the next batch, taking ownership of it; may be called from any thread.
+     */
+    void send(ByteBuf message) {
+        var channel = this.channel;
+        channel.eventLoop().execute(() -> append(channel, message));
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        ctx.writeAndFlush(MeshCodec.hello(ctx.alloc(), transport.getNodeId()));
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        var frame = (ByteBuf) msg;
+        try {
+            int type = frame.readByte();
+            if (type == MeshCodec.HELLO) {
+                if (frame.readLong() == transport.getNodeId()) {
+                    transport.foundSelf(peer);
+                    ctx.close();
+                } else {
+                    logger.info("connected to cluster peer {}", peer);
+                    channel = ctx.channel();
+                    transport.connected(this);
+                }
+            } else if (type == MeshCodec.SUBSCRIBE) {
+                MeshCodec.readTopics(frame, interest::add);
+            } else if (type == MeshCodec.UNSUBSCRIBE) {
+                MeshCodec.readTopics(frame, interest::remove);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (batch != null) {
+            batch.release();
+            batch = null;
+        }
+        transport.disconnected(this, peer);
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.warn("closing connection to cluster peer {}: {}", peer, cause.toString());
+        ctx.close();
+    }
+
+    private void append(Channel channel, ByteBuf message) {
+        try {
+            if (!channel.isActive()) {
+                return;
+            }
+            if (!channel.isWritable()) {
+                if (!dropping) {
+                    logger.warn("cluster peer {} is not keeping up; dropping messages until it does", peer);
+                    dropping = true;
+                }
+                return;
+            }
+            dropping = false;
+            if (batch != null && batch.readableBytes() + message.readableBytes() > transport.getMaxBatchSize()) {
+                flush();
+            }
+            if (batch == null) {
+                batch = channel.alloc().buffer(transport.getMaxBatchSize()).writeByte(MeshCodec.BATCH);
+                channel.eventLoop().execute(flushTask);
+            }
+            batch.writeBytes(message);
+            if (batch.readableBytes() >= transport.getMaxBatchSize()) {
+                flush();
+            }
+        } finally {
+            message.release();
+        }
+    }
+
+    private void flush() {
+        if (batch != null) {
+            channel.writeAndFlush(batch, channel.voidPromise());
+            batch = null;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.cluster;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wisp.api.Configuration;
+import wisp.websocket.cluster.spi.ClusterTransport;
+import wisp.websocket.cluster.spi.LocalNode;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Built-in {@link ClusterTransport} which connects every node directly to every other over TCP, so no broker sits
+ * between them. Each node listens on wisp.cluster.tcp.port and dials every address in wisp.cluster.tcp.peers,
+ * redialling any it loses; every node can share one peer list, since a node which dials itself notices and stops.
+ * The connection a node dials is the one it sends on: the far end answers with its topics and their changes, and
+ * each message goes only to the peers which asked for its topic, encoded once and batched per peer.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public class TcpMeshTransport implements ClusterTransport {
+    private static final Logger logger = LoggerFactory.getLogger(TcpMeshTransport.class);
+    private static final int DEFAULT_PORT = 7400;
+
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+    private final Set<MeshSender> senders = ConcurrentHashMap.newKeySet();
+    private final Set<InetSocketAddress> self = ConcurrentHashMap.newKeySet();
+    private final List<InetSocketAddress> peers = new ArrayList<>();
+
+    private String bindAddress = "0.0.0.0";
+    private int port = DEFAULT_PORT;
+    private Duration reconnectInterval = Duration.ofSeconds(1);
+    private int maxBatchSize = 65536;
+    private int threads = 1;
+
+    private volatile boolean running;
+    private LocalNode node;
+    private EventLoopGroup group;
+    private ChannelGroup receivers;
+    private Channel serverChannel;
+
+    @Override
+    public boolean canHandle(String name) {
+        return "tcp".equals(name);
+    }
+
+    @Override
+    public void configure(Configuration config) {
+        if (config.hasPath("wisp.cluster.tcp.bindAddress")) {
+            bindAddress = config.getString("wisp.cluster.tcp.bindAddress");
+        }
+
+        if (config.hasPath("wisp.cluster.tcp.port")) {
+            port = config.getInt("wisp.cluster.tcp.port");
+        }
+
+        if (config.hasPath("wisp.cluster.tcp.peers")) {
+            for (var peer : config.getString("wisp.cluster.tcp.peers").split(",")) {
+                peer = peer.trim();
+                if (!peer.isEmpty()) {
+                    int colon = peer.lastIndexOf(':');
+                    peers.add(colon < 0 ? InetSocketAddress.createUnresolved(peer, DEFAULT_PORT)
+                            : InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                                    Integer.parseInt(peer.substring(colon + 1))));
+                }
+            }
+        }
+
+        if (config.hasPath("wisp.cluster.tcp.reconnectInterval")) {
+            reconnectInterval = config.getDuration("wisp.cluster.tcp.reconnectInterval");
+        }
+
+        if (config.hasPath("wisp.cluster.tcp.maxBatchSize")) {
+            maxBatchSize = config.getInt("wisp.cluster.tcp.maxBatchSize");
+            if (maxBatchSize <= 0 || maxBatchSize > MeshCodec.MAX_FRAME_LENGTH) {
+                throw new IllegalArgumentException("wisp.cluster.tcp.maxBatchSize must be between 1 and "
+                        + MeshCodec.MAX_FRAME_LENGTH + ": " + maxBatchSize);
+            }
+        }
+
+        if (config.hasPath("wisp.cluster.tcp.threads")) {
+            threads = config.getInt("wisp.cluster.tcp.threads");
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> start(LocalNode node) {
+        this.node = node;
+        group = new NioEventLoopGroup(threads, new DefaultThreadFactory("wisp-cluster", true));
+        receivers = new DefaultChannelGroup("wisp-cluster", group.next());
+        var bound = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, alloc)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childHandler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        MeshCodec.addCodec(ch.pipeline());
+                        ch.pipeline().addLast(new MeshReceiver(TcpMeshTransport.this));
+                    }
+                })
+                .bind(bindAddress, port);
+        return toCompletableFuture(bound).thenRun(() -> {
+            serverChannel = bound.channel();
+            running = true;
+            logger.info("cluster node listening on {}", serverChannel.localAddress());
+            for (var peer : peers) {
+                connect(peer);
+            }
+        });
+    }
+
+    @Override
+    public CompletionStage<Void> stop() {
+        if (group == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // shutting the group down closes every connection on it, and no new ones are dialled once this is clear
+        running = false;
+        return toCompletableFuture(group.shutdownGracefully(0, 2, TimeUnit.SECONDS));
+    }
+
+    @Override
+    public void topicAdded(String topic) {
+        sendInterest(MeshCodec.SUBSCRIBE, topic);
+    }
+
+    @Override
+    public void topicRemoved(String topic) {
+        sendInterest(MeshCodec.UNSUBSCRIBE, topic);
+    }
+
+    @Override
+    public void send(String topic, long sequence, CharSequence text) {
+        send(topic, sequence, text, MeshCodec::text);
+    }
+
+    @Override
+    public void send(String topic, long sequence, ByteBuffer binary) {
+        send(topic, sequence, binary, MeshCodec::binary);
+    }
+
+    long getNodeId() {
+        return nodeId;
+    }
+
+    int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Gets the port actually listened on, for when wisp.cluster.tcp.port is zero.
+     */
+    int getPort() {
+        return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+    }
+
+    /**
+     * Whether any peer has asked for the topic's messages.
+     */
+    boolean isForwarding(String topic) {
+        for (var sender : senders) {
+            if (sender.isInterested(topic)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a peer address has turned out to be this node.
+     */
+    boolean isSelf(InetSocketAddress peer) {
+        return self.contains(peer);
+    }
+
+    void connected(MeshSender sender) {
+        senders.add(sender);
+    }
+
+    void disconnected(MeshSender sender, InetSocketAddress peer) {
+        if (senders.remove(sender)) {
+            logger.info("lost connection to cluster peer {}", peer);
+        }
+        if (running && !self.contains(peer)) {
+            group.schedule(() -> connect(peer), reconnectInterval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void foundSelf(InetSocketAddress peer) {
+        logger.info("cluster peer {} is this node; not connecting to it", peer);
+        self.add(peer);
+    }
+
+    /**
+     * Starts sending this node's topics to a peer which has connected to it; called on the peer's event loop.
+     */
+    void accepted(Channel channel) {
+        // joining the group first means any change made after the snapshot below is queued behind it
+        receivers.add(channel);
+        var topics = new ArrayList<String>();
+        for (var topic : node.getTopics()) {
+            if (MeshCodec.canSend(topic)) {
+                topics.add(topic);
+            }
+        }
+        if (!topics.isEmpty()) {
+            channel.writeAndFlush(MeshCodec.topics(channel.alloc(), MeshCodec.SUBSCRIBE, topics));
+        }
+    }
+
+    void received(ByteBuf batch) {
+        MeshCodec.readBatch(batch, node);
+    }
+
+    private void connect(InetSocketAddress peer) {
+        if (!running) {
+            return;
+        }
+        var sender = new MeshSender(this, peer);
+        new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, alloc)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        MeshCodec.addCodec(ch.pipeline());
+                        ch.pipeline().addLast(sender);
+                    }
+                })
+                .connect(new InetSocketAddress(peer.getHostString(), peer.getPort()))
+                .addListener((ChannelFuture future) -> {
+                    if (!future.isSuccess()) {
+                        logger.debug("unable to connect to cluster peer {}: {}", peer, future.cause().toString());
+                        if (running) {
+                            group.schedule(() -> connect(peer), reconnectInterval.toMillis(), TimeUnit.MILLISECONDS);
+                        }
+                    }
+                });
+    }
+
+    private void sendInterest(int type, String topic) {
+        var receivers = this.receivers;
+        if (receivers != null && MeshCodec.canSend(topic)) {
+            receivers.writeAndFlush(MeshCodec.topics(alloc, type, List.of(topic)));
+        }
+    }
+
+    private <T> void send(String topic, long sequence, T message, MessageEncoder<T> encoder) {
+        if (!MeshCodec.canSend(topic)) {
+            return;
+        }
+        ByteBuf encoded = null;
+        for (var sender : senders) {
+            if (sender.isInterested(topic)) {
+                if (encoded == null) {
+                    encoded = encoder.encode(alloc, topic, sequence, message);
+                    if (!MeshCodec.canBatch(encoded)) {
+                        logger.warn("not sending {} byte message on topic {} to cluster peers: over the {} byte "
+                                + "frame limit", encoded.readableBytes(), topic, MeshCodec.MAX_FRAME_LENGTH);
+                        encoded.release();
+                        return;
+                    }
+                }
+                sender.send(encoded.retainedDuplicate());
+            }
+        }
+        if (encoded != null) {
+            encoded.release();
+        }
+    }
+
+    private static CompletableFuture<Void> toCompletableFuture(Future<?> nettyFuture) {
+        var future = new CompletableFuture<Void>();
+        nettyFuture.addListener(f -> {
+            if (f.isSuccess()) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(f.cause());
+            }
+        });
+        return future;
+    }
+
+    @FunctionalInterface
+    private interface MessageEncoder<T> {
+        ByteBuf encode(ByteBufAllocator alloc, String topic, long sequence, T message);
+    }
+}
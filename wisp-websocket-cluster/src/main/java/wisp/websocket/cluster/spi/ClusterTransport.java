@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.cluster.spi;
+
+import wisp.api.Configurable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Plugin which carries broadcasts between the nodes of a cluster, selected by name with wisp.cluster.transport.
+ * A transport tells the other nodes which topics have subscribers on this one, and sends each message only to the
+ * nodes which asked for its topic.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface ClusterTransport extends Configurable {
+    /**
+     * Whether this is the transport with the given name, e.g. "tcp".
+     */
+    boolean canHandle(String name);
+
+    /**
+     * Connects to the cluster, completing once this node can accept connections from its peers.
+     *
+     * @param node this node, to read its topics from and hand messages from other nodes to
+     */
+    CompletionStage<Void> start(LocalNode node);
+
+    /**
+     * Disconnects from the cluster, completing once all connections are closed.
+     */
+    CompletionStage<Void> stop();
+
+    /**
+     * Called when a topic gains its first subscriber on this node; may be called before start.
+     */
+    void topicAdded(String topic);
+
+    /**
+     * Called when a topic loses its last subscriber on this node; may be called before start.
+     */
+    void topicRemoved(String topic);
+
+    /**
+     * Sends a text message to every other node with subscribers to the topic, along with the sequence number this
+     * node gave it, or 0 if none.
+     */
+    void send(String topic, long sequence, CharSequence text);
+
+    /**
+     * Sends a binary message to every other node with subscribers to the topic, along with the sequence number this
+     * node gave it, or 0 if none; the buffer must be copied before this returns.
+     */
+    void send(String topic, long sequence, ByteBuffer binary);
+}
@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.cluster.spi;
+
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * This node as seen by its {@link ClusterTransport}.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface LocalNode {
+    /**
+     * Gets the topics which currently have subscribers on this node.
+     */
+    Set<String> getTopics();
+
+    /**
+     * Hands a text message from another node to this node's subscribers, with the sequence number it was given
+     * there, or 0 if none. The text need only stay valid until this returns, so it may be a
+     * {@link wisp.websocket.api.Utf8Text} view over the received bytes.
+     */
+    void received(String topic, long sequence, CharSequence text);
+
+    /**
+     * Hands a binary message from another node to this node's subscribers, with the sequence number it was given
+     * there, or 0 if none; the buffer need only stay valid until this returns.
+     */
+    void received(String topic, long sequence, ByteBuffer binary);
+}
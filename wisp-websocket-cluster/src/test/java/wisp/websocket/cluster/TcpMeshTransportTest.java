@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.cluster;
+
+import org.junit.After;
+import org.junit.Test;
+import wisp.websocket.cluster.spi.LocalNode;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TcpMeshTransportTest {
+    private TcpMeshTransport first;
+    private TcpMeshTransport second;
+
+    @After
+    public void tearDown() {
+        for (var transport : new TcpMeshTransport[] { first, second }) {
+            if (transport != null) {
+                transport.stop().toCompletableFuture().join();
+            }
+        }
+    }
+
+    @Test
+    public void forwardsOnlyTopicsWithRemoteSubscribers() throws Exception {
+        var firstNode = new RecordingNode("ticks");
+        first = aStartedTransport(new MapConfiguration(), firstNode);
+        second = aStartedTransport(aPeerConfig(first.getPort()), new RecordingNode());
+        await(() -> second.isForwarding("ticks"));
+
+        second.send("news", 1, "ignored");
+        second.send("ticks", 1, "101.5");
+        second.send("ticks", 0, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        assertEquals("ticks 1 text 101.5", firstNode.next());
+        assertEquals("ticks 0 binary 3", firstNode.next());
+        assertNull(firstNode.messages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void startsNewBatchRatherThanOverfillingOne() throws Exception {
+        var firstNode = new RecordingNode("ticks");
+        first = aStartedTransport(new MapConfiguration(), firstNode);
+        second = aStartedTransport(aPeerConfig(first.getPort()).with("wisp.cluster.tcp.maxBatchSize", 32),
+                new RecordingNode());
+        await(() -> second.isForwarding("ticks"));
+
+        second.send("ticks", 1, ByteBuffer.allocate(10));
+        second.send("ticks", 2, ByteBuffer.allocate(100));
+        second.send("ticks", 3, ByteBuffer.allocate(10));
+        assertEquals("ticks 1 binary 10", firstNode.next());
+        assertEquals("ticks 2 binary 100", firstNode.next());
+        assertEquals("ticks 3 binary 10", firstNode.next());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBatchSizeOverFrameLimit() {
+        new TcpMeshTransport().configure(new MapConfiguration()
+                .with("wisp.cluster.tcp.maxBatchSize", MeshCodec.MAX_FRAME_LENGTH + 1));
+    }
+
+    @Test
+    public void followsTopicsAddedAndRemoved() throws Exception {
+        var firstNode = new RecordingNode();
+        first = aStartedTransport(new MapConfiguration(), firstNode);
+        second = aStartedTransport(aPeerConfig(first.getPort()), new RecordingNode());
+
+        firstNode.topics.add("news");
+        first.topicAdded("news");
+        await(() -> second.isForwarding("news"));
+
+        firstNode.topics.remove("news");
+        first.topicRemoved("news");
+        await(() -> !second.isForwarding("news"));
+    }
+
+    @Test
+    public void skipsItselfInPeerList() throws Exception {
+        int port;
+        try (var socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        first = aStartedTransport(aPeerConfig(port).with("wisp.cluster.tcp.port", port), new RecordingNode("ticks"));
+
+        await(() -> first.isSelf(InetSocketAddress.createUnresolved("localhost", port)));
+        assertFalse(first.isForwarding("ticks"));
+    }
+
+    private TcpMeshTransport aStartedTransport(MapConfiguration config, LocalNode node) {
+        if (!config.hasPath("wisp.cluster.tcp.port")) {
+            config.with("wisp.cluster.tcp.port", 0);
+        }
+        var transport = new TcpMeshTransport();
+        transport.configure(config
+                .with("wisp.cluster.tcp.bindAddress", "127.0.0.1")
+                .with("wisp.cluster.tcp.reconnectInterval", "PT0.1S"));
+        transport.start(node).toCompletableFuture().join();
+        return transport;
+    }
+
+    private MapConfiguration aPeerConfig(int port) {
+        return new MapConfiguration().with("wisp.cluster.tcp.peers", "localhost:" + port);
+    }
+
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class RecordingNode implements LocalNode {
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+
+        RecordingNode(String... topics) {
+            this.topics.addAll(List.of(topics));
+        }
+
+        String next() throws InterruptedException {
+            return messages.poll(5, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public Set<String> getTopics() {
+            return topics;
+        }
+
+        @Override
+        public void received(String topic, long sequence, CharSequence text) {
+            messages.add(topic + " " + sequence + " text " + text);
+        }
+
+        @Override
+        public void received(String topic, long sequence, ByteBuffer binary) {
+            messages.add(topic + " " + sequence + " binary " + binary.remaining());
+        }
+    }
+}
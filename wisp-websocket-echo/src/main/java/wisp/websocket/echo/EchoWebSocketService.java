@@ -19,11 +19,12 @@ package wisp.websocket.echo;
 import wisp.websocket.api.WebSocketService;
 
 import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
 import java.util.Locale;
 import java.util.concurrent.CompletionStage;
 
 /**
- * Simple websocket service that echoes back its input.
+ * Simple websocket service that echoes back its input: text upper-cased, binary unchanged.
  *
  * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
  */
@@ -35,7 +36,15 @@ public class EchoWebSocketService implements WebSocketService {
 
     @Override
     public CompletionStage<?> onText(WebSocket webSocket, CharSequence message, boolean lastMessage) {
-        webSocket.sendText(message.toString().toUpperCase(Locale.US), true);
+        webSocket.sendText(message.toString().toUpperCase(Locale.US), lastMessage);
+        webSocket.request(1);
         return null;
     }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        webSocket.request(1);
+        // sent as is, so the inbound buffer has to stay valid until the send completes
+        return webSocket.sendBinary(data, last);
+    }
 }
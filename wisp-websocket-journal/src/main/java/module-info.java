@@ -0,0 +1,10 @@
+module wisp.websocket.journal {
+    exports wisp.websocket.journal;
+
+    requires slf4j.api;
+    requires wisp.api;
+    requires wisp.websocket;
+
+    provides wisp.api.ServiceModule with wisp.websocket.journal.MessageJournal;
+    provides wisp.websocket.api.BroadcastBridge with wisp.websocket.journal.MessageJournal;
+}
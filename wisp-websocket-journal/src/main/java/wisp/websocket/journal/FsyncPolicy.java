@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.journal;
+
+import java.util.Locale;
+
+/**
+ * When the journal's writes are forced out to disk, selected via wisp.websocket.journal.fsync.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+enum FsyncPolicy {
+    /**
+     * After every batch of messages is written; nothing acknowledged is lost even if the machine fails.
+     */
+    ALWAYS,
+
+    /**
+     * At most once per wisp.websocket.journal.fsyncInterval; a machine failure loses at most that much.
+     */
+    INTERVAL,
+
+    /**
+     * Only as the operating system sees fit; survives the process dying but not the machine.
+     */
+    NEVER;
+
+    /**
+     * Parses a policy name as written in config, e.g. always, interval or never.
+     */
+    static FsyncPolicy fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.US).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown fsync policy: " + name);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only log of published messages kept as a directory of {@link JournalSegment}s. Only the newest segment is
+ * written to; once a record will not fit it is rolled over to a new one, and whole segments whose newest record has
+ * passed the retention period are deleted. Appending, rolling and deleting happen on a single writer thread, while
+ * any number of threads can read.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class Journal {
+    private static final Logger logger = LoggerFactory.getLogger(Journal.class);
+
+    private final Path dir;
+    private final int segmentSize;
+    private final Duration retention;
+    private final List<JournalSegment> segments = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> lastSequences = new ConcurrentHashMap<>();
+
+    /**
+     * @param segmentSize the size of each segment file in bytes
+     * @param retention   how long to keep a segment after its newest record was written, or zero to keep them all
+     */
+    Journal(Path dir, int segmentSize, Duration retention) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.retention = retention;
+    }
+
+    /**
+     * Opens the segments already in the directory, creating it if need be, and picks up each topic's numbering.
+     */
+    void open() throws IOException {
+        Files.createDirectories(dir);
+        var files = new ArrayList<Path>();
+        try (var listing = Files.list(dir)) {
+            listing.filter(JournalSegment::isSegment).forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(JournalSegment::getIndex));
+        for (var file : files) {
+            var segment = JournalSegment.open(file);
+            segments.add(segment);
+            segment.getLastSequences().forEach((topic, sequence) -> lastSequences.merge(topic, sequence, Math::max));
+        }
+        if (segments.isEmpty()) {
+            segments.add(JournalSegment.create(dir, 0, segmentSize));
+        }
+        logger.info("opened journal in {} with {} segments", dir, segments.size());
+    }
+
+    /**
+     * Appends a message, rolling over to a new segment if it does not fit in the current one.
+     *
+     * @param forceOnRoll whether to force the current segment out to disk before moving on from it
+     */
+    void append(String topic, long sequence, long timestamp, byte type, ByteBuffer payload, boolean forceOnRoll)
+            throws IOException {
+        var topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        if (topicBytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("topic name too long to journal: " + topic.substring(0, 64) + "...");
+        }
+        var active = getActive();
+        if (!active.append(topic, topicBytes, sequence, timestamp, type, payload)) {
+            if (forceOnRoll) {
+                active.force();
+            }
+            int size = Math.max(segmentSize, JournalSegment.getRecordSize(topicBytes, payload));
+            active = JournalSegment.create(dir, active.getIndex() + 1, size);
+            segments.add(active);
+            active.append(topic, topicBytes, sequence, timestamp, type, payload);
+            logger.debug("rolled journal over to segment {}", active.getIndex());
+        }
+        if (sequence > 0) {
+            lastSequences.merge(topic, sequence, Math::max);
+        }
+    }
+
+    /**
+     * Forces everything appended so far out to disk.
+     */
+    void force() {
+        getActive().force();
+    }
+
+    /**
+     * Deletes every segment but the current one whose newest record is older than the retention period.
+     *
+     * @return the number of segments deleted
+     */
+    int deleteExpired(long now) throws IOException {
+        if (retention.isZero()) {
+            return 0;
+        }
+        long cutoff = now - retention.toMillis();
+        int deleted = 0;
+        while (segments.size() > 1 && segments.get(0).getLastTimestamp() < cutoff) {
+            var oldest = segments.remove(0);
+            oldest.delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Gets the highest sequence number appended for the topic, or 0 if none has been.
+     */
+    long getSequence(String topic) {
+        return lastSequences.getOrDefault(topic, 0L);
+    }
+
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Hands the reader every message on the topic numbered after the given sequence number, oldest first.
+     *
+     * @return the last sequence number read, or the one given if there were none
+     */
+    long read(String topic, long afterSequence, JournalReader reader) {
+        var topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        long last = afterSequence;
+        for (var segment : segments) {
+            var segmentLast = segment.getLastSequences().get(topic);
+            if (segmentLast != null && segmentLast > last) {
+                last = segment.read(topicBytes, last, reader);
+            }
+        }
+        return last;
+    }
+
+    private JournalSegment getActive() {
+        return segments.get(segments.size() - 1);
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.journal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback handed the messages read back from a {@link MessageJournal}, oldest first.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+@FunctionalInterface
+public interface JournalReader {
+    /**
+     * Called for each message read.
+     *
+     * @param sequence  the sequence number its topic gave the message
+     * @param timestamp when it was published, in milliseconds since the epoch
+     * @param binary    true for a binary message, false for UTF-8 text
+     * @param payload   a read-only view of the message straight out of the journal file, which can be passed on
+     *                  without copying, e.g. as {@link wisp.websocket.api.Utf8Text} for a text message
+     */
+    void onMessage(long sequence, long timestamp, boolean binary, ByteBuffer payload);
+}
@@ -0,0 +1,239 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * One file of a {@link Journal}, mapped into memory whole. Records are only ever appended, by the journal's writer
+ * thread, and are laid out as:
+ * <pre>
+ *   int    length of the rest of the record, written last so a reader never sees part of one
+ *   int    CRC32C of the rest of the record
+ *   long   sequence number its topic gave the message, or 0
+ *   long   publish time, milliseconds since the epoch
+ *   byte   1 for text, 2 for binary
+ *   short  topic length
+ *   byte[] topic, UTF-8
+ *   byte[] payload
+ * </pre>
+ * A new file is all zeroes, so a zero length marks the end of the records. Readers stop at {@link #getLimit()},
+ * which only moves past a record once it is complete; on reopening, the records are checked against their CRCs and
+ * anything from the first bad one on, e.g. a write torn by a crash, is treated as free space.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class JournalSegment {
+    static final byte TEXT = 1;
+    static final byte BINARY = 2;
+
+    private static final Logger logger = LoggerFactory.getLogger(JournalSegment.class);
+    private static final int FRAME_HEADER = 8;
+    private static final int RECORD_HEADER = 19;
+    private static final String SUFFIX = ".journal";
+
+    private final Path file;
+    private final long index;
+    private final MappedByteBuffer buffer;
+    private final CRC32C crc = new CRC32C();
+    private final Map<String, Long> lastSequences = new ConcurrentHashMap<>();
+    private volatile int limit;
+    private volatile long lastTimestamp;
+
+    private JournalSegment(Path file, long index, MappedByteBuffer buffer) {
+        this.file = file;
+        this.index = index;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates the segment with the given index, sized to hold at least the given number of bytes of records.
+     */
+    static JournalSegment create(Path dir, long index, int size) throws IOException {
+        var file = dir.resolve(String.format("%020d%s", index, SUFFIX));
+        try (var channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new JournalSegment(file, index, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * Opens an existing segment, finding where its records end.
+     */
+    static JournalSegment open(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var segment = new JournalSegment(file, getIndex(file),
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            segment.recover();
+            return segment;
+        }
+    }
+
+    /**
+     * Whether the file is named as a segment.
+     */
+    static boolean isSegment(Path file) {
+        var name = file.getFileName().toString();
+        return name.endsWith(SUFFIX) && name.length() > SUFFIX.length();
+    }
+
+    /**
+     * Gets the index a segment's file is named for.
+     */
+    static long getIndex(Path file) {
+        var name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Gets the number of bytes a record takes up, framing included.
+     */
+    static int getRecordSize(byte[] topic, ByteBuffer payload) {
+        return FRAME_HEADER + RECORD_HEADER + topic.length + payload.remaining();
+    }
+
+    long getIndex() {
+        return index;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Gets the highest sequence number written for each topic.
+     */
+    Map<String, Long> getLastSequences() {
+        return lastSequences;
+    }
+
+    /**
+     * Appends a record, returning false if there is not enough room left for it.
+     */
+    boolean append(String topic, byte[] topicBytes, long sequence, long timestamp, byte type, ByteBuffer payload) {
+        int position = limit;
+        int length = getRecordSize(topicBytes, payload) - FRAME_HEADER;
+        if (length > buffer.capacity() - position - FRAME_HEADER) {
+            return false;
+        }
+        buffer.duplicate()
+                .position(position + FRAME_HEADER)
+                .putLong(sequence)
+                .putLong(timestamp)
+                .put(type)
+                .putShort((short) topicBytes.length)
+                .put(topicBytes)
+                .put(payload.duplicate());
+        buffer.putInt(position + 4, checksum(position, length));
+        buffer.putInt(position, length);
+
+        if (sequence > 0) {
+            lastSequences.merge(topic, sequence, Math::max);
+        }
+        lastTimestamp = timestamp;
+        limit = position + FRAME_HEADER + length;
+        return true;
+    }
+
+    /**
+     * Hands the reader every record for the topic numbered after the given sequence number, returning the last
+     * sequence number read, or the one given if there were none.
+     */
+    long read(byte[] topic, long afterSequence, JournalReader reader) {
+        var view = buffer.asReadOnlyBuffer();
+        var wanted = ByteBuffer.wrap(topic);
+        int end = limit;
+        long last = afterSequence;
+        for (int position = 0; position < end; ) {
+            int length = view.getInt(position);
+            int body = position + FRAME_HEADER;
+            long sequence = view.getLong(body);
+            int topicLength = view.getShort(body + 17) & 0xFFFF;
+            int payloadStart = body + RECORD_HEADER + topicLength;
+            if (sequence > last && topicLength == topic.length
+                    && view.duplicate().position(body + RECORD_HEADER).limit(payloadStart).equals(wanted)) {
+                var payload = view.duplicate().position(payloadStart).limit(body + length).slice();
+                reader.onMessage(sequence, view.getLong(body + 8), view.get(body + 16) == BINARY, payload);
+                last = sequence;
+            }
+            position = body + length;
+        }
+        return last;
+    }
+
+    /**
+     * Forces everything written so far out to disk.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Deletes the file; readers already holding the mapping can carry on until they let go of it.
+     */
+    void delete() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private void recover() {
+        int position = 0;
+        while (position <= buffer.capacity() - FRAME_HEADER - RECORD_HEADER) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < RECORD_HEADER || length > buffer.capacity() - position - FRAME_HEADER
+                    || buffer.getInt(position + 4) != checksum(position, length)) {
+                logger.warn("discarding unreadable journal records from {} of {}", position, file);
+                break;
+            }
+            int body = position + FRAME_HEADER;
+            long sequence = buffer.getLong(body);
+            if (sequence > 0) {
+                var topic = new byte[buffer.getShort(body + 17) & 0xFFFF];
+                buffer.duplicate().position(body + RECORD_HEADER).get(topic);
+                lastSequences.merge(new String(topic, StandardCharsets.UTF_8), sequence, Math::max);
+            }
+            lastTimestamp = buffer.getLong(body + 8);
+            position = body + length;
+        }
+        limit = position;
+    }
+
+    private int checksum(int position, int length) {
+        crc.reset();
+        crc.update(buffer.duplicate().position(position + FRAME_HEADER).limit(position + FRAME_HEADER + length));
+        return (int) crc.getValue();
+    }
+}
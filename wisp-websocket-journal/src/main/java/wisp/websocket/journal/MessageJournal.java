@@ -0,0 +1,331 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wisp.api.Configuration;
+import wisp.api.Counter;
+import wisp.api.MetricsRegistry;
+import wisp.api.ServiceModule;
+import wisp.websocket.api.BroadcastBridge;
+import wisp.websocket.api.BroadcastRelay;
+import wisp.websocket.api.Broadcaster;
+import wisp.websocket.api.Utf8Text;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Module which writes every message published on this node, or relayed to it from another, to a {@link Journal} on
+ * disk, so clients can catch up on a topic across a restart of the server and there is a record of what was sent.
+ * While it is installed every topic numbers its messages, since only numbered ones can be read back; messages
+ * relayed from a node which did not number them are not journaled. A node only receives another's messages for
+ * topics it has subscribers to, so its journal holds just those. It is both the {@link ServiceModule}
+ * which runs the journal's writer thread and the {@link BroadcastBridge} the server hands its messages to;
+ * {@link #provider()} makes sure the two service lookups get the same instance, which is also how services find it
+ * to {@link #read} from. Publishing threads only queue the message, which the writer thread appends in batches,
+ * forcing them out to disk as the {@link FsyncPolicy} says; if the queue is full the message is dropped and counted
+ * rather than holding up the publisher.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public final class MessageJournal implements ServiceModule, BroadcastBridge {
+    private static final Logger logger = LoggerFactory.getLogger(MessageJournal.class);
+    private static final MessageJournal INSTANCE = new MessageJournal();
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+
+    private final Counter appended = new Counter();
+    private final Counter dropped = new Counter();
+    private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+    private BlockingQueue<Pending> queue;
+    private Journal journal;
+    private volatile boolean running;
+
+    private Path dir = Path.of("journal");
+    private int segmentSize = 64 * 1024 * 1024;
+    private Duration retention = Duration.ofDays(7);
+    private FsyncPolicy fsync = FsyncPolicy.INTERVAL;
+    private Duration fsyncInterval = Duration.ofSeconds(1);
+    private int queueSize = 65536;
+    private int maxBatchSize = 1024;
+
+    MessageJournal() { }
+
+    /**
+     * Gets the one journal shared by the module and broadcast bridge lookups.
+     */
+    public static MessageJournal provider() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void bindMetrics(MetricsRegistry metrics) {
+        metrics.register("wisp_journal_messages_total", "Broadcast messages written to the journal.", Map.of(),
+                appended);
+        metrics.register("wisp_journal_dropped_total",
+                "Broadcast messages not journaled because the write queue was full or the journal stopped.",
+                Map.of(), dropped);
+        metrics.register("wisp_journal_segments", "Segment files in the journal.", Map.of(),
+                () -> journal == null ? 0 : journal.getSegmentCount());
+    }
+
+    @Override
+    public void configure(Configuration config) {
+        if (config.hasPath("wisp.websocket.journal.dir")) {
+            dir = Path.of(config.getString("wisp.websocket.journal.dir"));
+        }
+
+        if (config.hasPath("wisp.websocket.journal.segmentSize")) {
+            segmentSize = config.getInt("wisp.websocket.journal.segmentSize");
+        }
+
+        if (config.hasPath("wisp.websocket.journal.retention")) {
+            retention = config.getDuration("wisp.websocket.journal.retention");
+        }
+
+        if (config.hasPath("wisp.websocket.journal.fsync")) {
+            fsync = FsyncPolicy.fromName(config.getString("wisp.websocket.journal.fsync"));
+        }
+
+        if (config.hasPath("wisp.websocket.journal.fsyncInterval")) {
+            fsyncInterval = config.getDuration("wisp.websocket.journal.fsyncInterval");
+        }
+
+        if (config.hasPath("wisp.websocket.journal.queueSize")) {
+            queueSize = config.getInt("wisp.websocket.journal.queueSize");
+        }
+
+        if (config.hasPath("wisp.websocket.journal.maxBatchSize")) {
+            maxBatchSize = config.getInt("wisp.websocket.journal.maxBatchSize");
+        }
+
+        // opened now rather than on start so topics pick up their numbering before anything can be published
+        queue = new ArrayBlockingQueue<>(queueSize);
+        journal = new Journal(dir, segmentSize, retention);
+        try {
+            journal.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not open journal in " + dir, e);
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> startAsync() {
+        logger.info("starting {} module", getClass().getSimpleName());
+        running = true;
+        var writer = new Thread(this::write, "wisp-journal");
+        writer.setDaemon(true);
+        writer.start();
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletionStage<Void> stopAsync() {
+        if (!running) {
+            return CompletableFuture.completedFuture(null);
+        }
+        running = false;
+        return stopped;
+    }
+
+    /**
+     * Gets the highest sequence number written to the journal for a topic, or 0 if there is none; messages still
+     * queued for writing are not counted.
+     */
+    @Override
+    public long getSequence(String topic) {
+        var journal = this.journal;
+        return journal == null ? 0 : journal.getSequence(topic);
+    }
+
+    /**
+     * Hands the reader every message written to the journal for a topic with a sequence number after the given
+     * one, oldest first. A client reconnecting after a restart can be sent what it missed this way and then
+     * {@link Broadcaster#resume resumed} from the returned sequence number, which picks up any messages published
+     * since that are yet to reach the journal.
+     *
+     * @return the last sequence number read, or the one given if there were none
+     */
+    public long read(String topic, long afterSequence, JournalReader reader) {
+        return journal.read(topic, afterSequence, reader);
+    }
+
+    @Override
+    public void bind(BroadcastRelay local) { }
+
+    @Override
+    public void topicAdded(String topic) { }
+
+    @Override
+    public void topicRemoved(String topic) { }
+
+    @Override
+    public void published(String topic, CharSequence text) {
+        published(topic, 0, text);
+    }
+
+    @Override
+    public void published(String topic, ByteBuffer binary) {
+        published(topic, 0, binary);
+    }
+
+    @Override
+    public void published(String topic, long sequence, CharSequence text) {
+        if (sequence == 0) {
+            return;
+        }
+        Object payload;
+        if (text instanceof String) {
+            payload = text;
+        } else if (text instanceof Utf8Text) {
+            payload = copy(((Utf8Text) text).getBytes());
+        } else {
+            payload = text.toString();
+        }
+        enqueue(new Pending(topic, sequence, JournalSegment.TEXT, payload));
+    }
+
+    @Override
+    public void published(String topic, long sequence, ByteBuffer binary) {
+        if (sequence == 0) {
+            return;
+        }
+        enqueue(new Pending(topic, sequence, JournalSegment.BINARY, copy(binary)));
+    }
+
+    @Override
+    public void relayed(String topic, long sequence, CharSequence text) {
+        published(topic, sequence, text);
+    }
+
+    @Override
+    public void relayed(String topic, long sequence, ByteBuffer binary) {
+        published(topic, sequence, binary);
+    }
+
+    @Override
+    public boolean requiresNumbering() {
+        return true;
+    }
+
+    private void enqueue(Pending pending) {
+        var queue = this.queue;
+        if (!running || queue == null || !queue.offer(pending)) {
+            dropped.increment();
+        }
+    }
+
+    private void write() {
+        var batch = new ArrayList<Pending>(maxBatchSize);
+        long tickMillis = Math.max(1, Math.min(RETENTION_CHECK_MILLIS,
+                fsync == FsyncPolicy.INTERVAL ? fsyncInterval.toMillis() : 1000));
+        long lastForce = System.nanoTime();
+        long lastRetentionCheck = 0;
+        boolean unforced = false;
+        try {
+            while (running || !queue.isEmpty()) {
+                var first = queue.poll(tickMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatchSize - 1);
+                    append(batch);
+                    batch.clear();
+                    unforced = fsync != FsyncPolicy.NEVER;
+                }
+
+                long now = System.nanoTime();
+                if (unforced && (fsync == FsyncPolicy.ALWAYS || now - lastForce >= fsyncInterval.toNanos())) {
+                    journal.force();
+                    lastForce = now;
+                    unforced = false;
+                }
+
+                long wallClock = System.currentTimeMillis();
+                if (wallClock - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+                    lastRetentionCheck = wallClock;
+                    int deleted = journal.deleteExpired(wallClock);
+                    if (deleted > 0) {
+                        logger.info("deleted {} journal segments past retention", deleted);
+                    }
+                }
+            }
+            journal.force();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            logger.error("journal writer failed; no further messages will be journaled", e);
+            running = false;
+        } finally {
+            stopped.complete(null);
+        }
+    }
+
+    private void append(ArrayList<Pending> batch) throws IOException {
+        for (var pending : batch) {
+            ByteBuffer payload;
+            if (pending.payload instanceof String) {
+                payload = ByteBuffer.wrap(((String) pending.payload).getBytes(StandardCharsets.UTF_8));
+            } else {
+                payload = (ByteBuffer) pending.payload;
+            }
+            try {
+                journal.append(pending.topic, pending.sequence, pending.timestamp, pending.type, payload,
+                        fsync != FsyncPolicy.NEVER);
+                appended.increment();
+            } catch (IllegalArgumentException e) {
+                logger.warn("not journaling message: {}", e.getMessage());
+                dropped.increment();
+            }
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        var copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate()).flip();
+        return copy;
+    }
+
+    /**
+     * A message waiting for the writer thread; text payloads are kept as Strings and only encoded when written.
+     */
+    private static final class Pending {
+        private final String topic;
+        private final long sequence;
+        private final long timestamp = System.currentTimeMillis();
+        private final byte type;
+        private final Object payload;
+
+        private Pending(String topic, long sequence, byte type, Object payload) {
+            this.topic = topic;
+            this.sequence = sequence;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.journal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class JournalTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("wisp-journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (var files = Files.walk(dir)) {
+            for (var file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    public void readsBackTopicAfterSequence() throws IOException {
+        var journal = anOpenJournal(4096);
+        journal.append("ticks", 1, 1000, JournalSegment.TEXT, utf8("101.5"), true);
+        journal.append("news", 1, 1001, JournalSegment.BINARY, ByteBuffer.wrap(new byte[] { 42 }), true);
+        journal.append("ticks", 2, 1002, JournalSegment.TEXT, utf8("101.6"), true);
+        journal.append("ticks", 3, 1003, JournalSegment.TEXT, utf8("101.7"), true);
+
+        var read = new ArrayList<String>();
+        assertEquals(3, journal.read("ticks", 1, (sequence, timestamp, binary, payload) ->
+                read.add(sequence + "@" + timestamp + " " + StandardCharsets.UTF_8.decode(payload))));
+        assertEquals(List.of("2@1002 101.6", "3@1003 101.7"), read);
+        assertEquals(3, journal.getSequence("ticks"));
+        assertEquals(1, journal.getSequence("news"));
+        assertEquals(0, journal.getSequence("trades"));
+    }
+
+    @Test
+    public void recoversNumberingAndDropsTornRecord() throws IOException {
+        var journal = anOpenJournal(4096);
+        journal.append("ticks", 1, 1000, JournalSegment.TEXT, utf8("101.5"), true);
+        journal.append("ticks", 2, 1001, JournalSegment.TEXT, utf8("101.6"), true);
+        journal.force();
+
+        // as if the machine failed part way through writing the second record
+        var file = dir.resolve(String.format("%020d.journal", 0));
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7F }), 60);
+        }
+
+        var reopened = anOpenJournal(4096);
+        assertEquals(1, reopened.getSequence("ticks"));
+        reopened.append("ticks", 2, 1002, JournalSegment.TEXT, utf8("101.7"), true);
+        var read = new ArrayList<String>();
+        reopened.read("ticks", 0, (sequence, timestamp, binary, payload) ->
+                read.add(sequence + " " + StandardCharsets.UTF_8.decode(payload)));
+        assertEquals(List.of("1 101.5", "2 101.7"), read);
+    }
+
+    @Test
+    public void rollsSegmentsAndDeletesExpired() throws IOException {
+        var journal = anOpenJournal(80);
+        for (int i = 1; i <= 5; i++) {
+            journal.append("ticks", i, i * 1000, JournalSegment.TEXT, utf8("tick " + i), true);
+        }
+        // each record takes 38 bytes, so two fit in a segment
+        assertEquals(3, journal.getSegmentCount());
+        var oversized = ByteBuffer.allocate(100);
+        journal.append("snapshots", 1, 6000, JournalSegment.BINARY, oversized, true);
+        assertEquals(4, journal.getSegmentCount());
+
+        assertEquals(2, journal.deleteExpired(4500 + Duration.ofDays(7).toMillis()));
+        var read = new ArrayList<Long>();
+        journal.read("ticks", 0, (sequence, timestamp, binary, payload) -> read.add(sequence));
+        assertEquals(List.of(5L), read);
+        assertEquals(5, journal.getSequence("ticks"));
+    }
+
+    @Test
+    public void journalsPublishedMessages() throws Exception {
+        var module = new MessageJournal();
+        module.configure(new MapConfiguration()
+                .with("wisp.websocket.journal.dir", dir.toString())
+                .with("wisp.websocket.journal.fsync", "always"));
+        module.startAsync().toCompletableFuture().get();
+        module.published("ticks", 1, "101.5");
+        module.published("ticks", 2, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        module.relayed("ticks", 3, "101.6");
+        module.published("ticks", "unnumbered");
+        module.relayed("ticks", 0, "unnumbered elsewhere");
+        module.stopAsync().toCompletableFuture().get();
+
+        var read = new ArrayList<String>();
+        assertEquals(3, module.read("ticks", 0, (sequence, timestamp, binary, payload) ->
+                read.add(sequence + (binary ? " binary " : " text ") + payload.remaining())));
+        assertEquals(List.of("1 text 5", "2 binary 3", "3 text 5"), read);
+        assertEquals(3, module.getSequence("ticks"));
+    }
+
+    private Journal anOpenJournal(int segmentSize) throws IOException {
+        var journal = new Journal(dir, segmentSize, Duration.ofDays(7));
+        journal.open();
+        return journal;
+    }
+
+    private static ByteBuffer utf8(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -2,6 +2,7 @@ module wisp.websocket {
     exports wisp.websocket.api;
 
     requires java.net.http;
+    requires jdk.jfr;
     requires io.netty.buffer;
     requires io.netty.codec;
     requires io.netty.codec.http;
@@ -9,10 +10,13 @@ module wisp.websocket {
     requires io.netty.handler;
     requires io.netty.resolver;
     requires io.netty.transport;
+    requires io.netty.transport.epoll;
+    requires io.netty.transport.unix.common;
     requires slf4j.api;
     requires wisp.api;
     requires wisp.logger;
 
     provides wisp.api.ServiceModule with wisp.websocket.WebsocketServer;
+    uses wisp.websocket.api.BroadcastBridge;
     uses wisp.websocket.api.WebSocketService;
 }
\ No newline at end of file
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps how many connections any one remote address may hold open. Each address present has a counter which is
+ * changed by CAS, and which is retired by swinging it from zero to -1 before removing it, so that an address
+ * reconnecting at the same moment as its last connection closes always ends up on a live counter.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class AddressLimiter {
+    private static final int RETIRED = -1;
+
+    private final ConcurrentHashMap<InetAddress, AtomicInteger> connections = new ConcurrentHashMap<>();
+    private final int limit;
+
+    AddressLimiter(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Counts a new connection from the given address unless it already has the maximum open.
+     */
+    boolean tryAcquire(InetAddress address) {
+        while (true) {
+            var count = connections.get(address);
+            if (count == null) {
+                count = connections.computeIfAbsent(address, ignored -> new AtomicInteger());
+            }
+            int n = count.get();
+            if (n == RETIRED) {
+                // the last connection just closed and its counter is on its way out of the map
+                connections.remove(address, count);
+                continue;
+            }
+            if (n >= limit) {
+                return false;
+            }
+            if (count.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release(InetAddress address) {
+        var count = connections.get(address);
+        if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, RETIRED)) {
+            connections.remove(address, count);
+        }
+    }
+
+    /**
+     * Gets the number of addresses with connections open.
+     */
+    int size() {
+        return connections.size();
+    }
+}
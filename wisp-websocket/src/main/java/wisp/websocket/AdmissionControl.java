@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.Channel;
+import wisp.api.Configuration;
+import wisp.api.Counter;
+import wisp.api.MetricsRegistry;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides which connections the server takes on: at accept time it enforces wisp.websocket.admission's cap on
+ * connections per remote IP address, and at upgrade time the server-wide and per-service session caps. Everything
+ * admitted is given back automatically when its channel closes. All checks are lock-free so that a reconnect storm
+ * spread across the event loops never has them queue behind one another.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class AdmissionControl {
+    private final ShardedCounter sessions = new ShardedCounter();
+    private final Map<String, ShardedCounter> serviceSessions = new ConcurrentHashMap<>();
+    private final Counter connectionsRejected = new Counter();
+
+    private int maxSessions = 0;
+    private int maxConnectionsPerIp = 0;
+    private AddressLimiter addresses;
+
+    void configure(Configuration config) {
+        if (config.hasPath("wisp.websocket.admission.maxSessions")) {
+            maxSessions = config.getInt("wisp.websocket.admission.maxSessions");
+        }
+
+        if (config.hasPath("wisp.websocket.admission.maxConnectionsPerIp")) {
+            maxConnectionsPerIp = config.getInt("wisp.websocket.admission.maxConnectionsPerIp");
+        }
+
+        addresses = maxConnectionsPerIp > 0 ? new AddressLimiter(maxConnectionsPerIp) : null;
+    }
+
+    void register(MetricsRegistry registry) {
+        registry.register("wisp_websocket_connections_rejected_total",
+                "Connections closed on accept because their address already had the maximum open.", Map.of(),
+                connectionsRejected);
+    }
+
+    /**
+     * Counts a newly accepted connection against its address's cap, returning false if it should be closed.
+     */
+    boolean admitConnection(Channel ch) {
+        if (addresses == null || !(ch.remoteAddress() instanceof InetSocketAddress)) {
+            return true;
+        }
+        var address = ((InetSocketAddress) ch.remoteAddress()).getAddress();
+        if (!addresses.tryAcquire(address)) {
+            connectionsRejected.increment();
+            return false;
+        }
+        ch.closeFuture().addListener(f -> addresses.release(address));
+        return true;
+    }
+
+    /**
+     * Counts a connection upgrading to the given service against the session caps, returning false if it should be
+     * turned away.
+     */
+    boolean admitSession(Channel ch, ServiceSettings settings) {
+        var service = serviceSessions.computeIfAbsent(settings.getPath(), path -> new ShardedCounter());
+        if (!sessions.tryIncrement(maxSessions)) {
+            return false;
+        }
+        if (!service.tryIncrement(settings.getMaxSessions())) {
+            sessions.decrement();
+            return false;
+        }
+        ch.closeFuture().addListener(f -> {
+            sessions.decrement();
+            service.decrement();
+        });
+        return true;
+    }
+
+    long getSessions() {
+        return sessions.sum();
+    }
+}
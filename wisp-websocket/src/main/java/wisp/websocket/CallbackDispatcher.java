@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wisp.api.Counter;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one service's callbacks according to its {@link DispatchPolicy}. Off the event loop each session gets its
+ * own serial executor layered over the service's shared pool, so callbacks for one connection never overlap or
+ * reorder while different connections proceed in parallel. The total number of queued callbacks is bounded and
+ * anything beyond that is rejected.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class CallbackDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(CallbackDispatcher.class);
+
+    /**
+     * Marker executor for callbacks run directly on the calling event loop.
+     */
+    static final Executor INLINE = Runnable::run;
+
+    // callbacks a session may run before yielding its pool thread to other sessions
+    private static final int MAX_BATCH = 64;
+
+    private final DispatchPolicy policy;
+    private final ExecutorService pool;
+    private final int maxQueued;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Counter rejected;
+
+    CallbackDispatcher(ServiceSettings settings, Counter rejected) {
+        this.rejected = rejected;
+        var requested = settings.getExecutor();
+        ExecutorService selectedPool = null;
+        if (requested == DispatchPolicy.VIRTUAL) {
+            selectedPool = newVirtualThreadExecutor();
+            if (selectedPool == null) {
+                logger.warn("virtual threads not available on this JDK; {} falling back to {}", settings.getPath(),
+                        DispatchPolicy.ORDERED);
+                requested = DispatchPolicy.ORDERED;
+            }
+        }
+        if (requested == DispatchPolicy.ORDERED) {
+            var threadFactory = new DefaultThreadFactory("wisp-callbacks" + settings.getPath().replace('/', '-'));
+            selectedPool = Executors.newFixedThreadPool(settings.getExecutorThreads(), threadFactory);
+        }
+        this.policy = requested;
+        this.pool = selectedPool;
+        this.maxQueued = settings.getExecutorMaxQueued();
+    }
+
+    /**
+     * Creates the executor for a new session's callbacks, which is {@link #INLINE} for {@link
+     * DispatchPolicy#EVENT_LOOP}.
+     */
+    Executor newSessionExecutor() {
+        return pool == null ? INLINE : new SerialExecutor();
+    }
+
+    DispatchPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Gets the number of callbacks accepted but not yet finished across all sessions.
+     */
+    int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Gets the number of callbacks turned away because the queue was full.
+     */
+    long getRejectedCount() {
+        return rejected.get();
+    }
+
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private class SerialExecutor implements Executor, Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        @Override
+        public void execute(Runnable task) {
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.increment();
+                throw new RejectedExecutionException("callback queue full");
+            }
+            tasks.add(task);
+            schedule();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable task;
+                for (int i = 0; i < MAX_BATCH && (task = tasks.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    } finally {
+                        queued.decrementAndGet();
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+            }
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // pool shut down underneath us; drop what is left rather than leak the queue count
+                    scheduled.set(false);
+                    queued.addAndGet(-tasks.size());
+                    tasks.clear();
+                    throw e;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder event covering one service callback, so slow callbacks can be lined up against GC pauses and
+ * other JVM activity in the same recording. Only callbacks over the threshold are recorded unless a recording
+ * overrides it, e.g. with {@code wisp.CallbackDuration#threshold=0 ms}.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+@Name("wisp.CallbackDuration")
+@Label("Callback Duration")
+@Category("Wisp")
+@Description("Time spent in a WebSocketService callback")
+@Threshold("10 ms")
+@StackTrace(false)
+class CallbackDurationEvent extends Event {
+    @Label("Service Path")
+    String path;
+
+    @Label("Service Class")
+    String service;
+
+    @Label("Callback")
+    String callback;
+}
@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandshaker;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
+
+import java.util.HashMap;
+
+/**
+ * Negotiates permessage-deflate for one service according to its {@link ServiceSettings}.
+ *
+ * <p>The server always compresses with zlib's default 15-bit window, since smaller windows need JZlib which Wisp
+ * does not ship; offers which insist on a smaller server window are declined and that client goes uncompressed.
+ * When the service asks for server no context takeover it is declared in the response whether or not the client
+ * offered it, which RFC 7692 allows.</p>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class CompressionHandshaker implements WebSocketServerExtensionHandshaker {
+    private static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+
+    private final PerMessageDeflateServerExtensionHandshaker delegate;
+    private final boolean serverNoContextTakeover;
+
+    CompressionHandshaker(ServiceSettings settings) {
+        this.delegate = new PerMessageDeflateServerExtensionHandshaker(settings.getCompressionLevel(), false,
+                settings.getClientWindowBits(), true, settings.isClientNoContextTakeover());
+        this.serverNoContextTakeover = settings.isServerNoContextTakeover();
+    }
+
+    @Override
+    public WebSocketServerExtension handshakeExtension(WebSocketExtensionData offer) {
+        if (serverNoContextTakeover && PERMESSAGE_DEFLATE.equals(offer.name())
+                && !offer.parameters().containsKey(SERVER_NO_CONTEXT_TAKEOVER)) {
+            var parameters = new HashMap<>(offer.parameters());
+            parameters.put(SERVER_NO_CONTEXT_TAKEOVER, null);
+            offer = new WebSocketExtensionData(offer.name(), parameters);
+        }
+        return delegate.handshakeExtension(offer);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+
+/**
+ * Pair of handlers wrapped around a connection's negotiated permessage-deflate encoder. The one on the tail side
+ * sends messages smaller than the service's minimum straight past the encoder, and times everything else; the one on
+ * the head side sees what the encoder produced and records compressed size and time taken.
+ *
+ * <p>Only the first frame of a message is checked against the minimum. The encoder only compresses continuation
+ * frames of messages it started compressing, so a skipped message stays uncompressed to the end.</p>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class CompressionMonitor {
+    private final ChannelHandlerContext encoder;
+    private final int minSize;
+    private final ServiceMetrics metrics;
+
+    // written by the input side just before the encoder runs and read by the output side as it emits
+    private boolean measuring;
+    private int uncompressedBytes;
+    private long startNanos;
+    private boolean compressingMessage;
+
+    private CompressionMonitor(ChannelHandlerContext encoder, int minSize, ServiceMetrics metrics) {
+        this.encoder = encoder;
+        this.minSize = minSize;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Wraps the given encoder; all handlers involved belong to one channel and run on its event loop.
+     */
+    static void install(ChannelPipeline pipeline, ChannelHandlerContext encoder, int minSize,
+                        ServiceMetrics metrics) {
+        var monitor = new CompressionMonitor(encoder, minSize, metrics);
+        pipeline.addAfter(encoder.name(), null, monitor.new Input());
+        pipeline.addBefore(encoder.name(), null, monitor.new Output());
+    }
+
+    private class Input extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) {
+                int size = ((WebSocketFrame) msg).content().readableBytes();
+                if (size < minSize) {
+                    metrics.compressionSkipped();
+                    encoder.write(msg, promise);
+                    return;
+                }
+                startMeasuring(size);
+            } else if (msg instanceof ContinuationWebSocketFrame && compressingMessage) {
+                startMeasuring(((WebSocketFrame) msg).content().readableBytes());
+            }
+            try {
+                ctx.write(msg, promise);
+            } finally {
+                measuring = false;
+            }
+        }
+
+        private void startMeasuring(int size) {
+            measuring = true;
+            uncompressedBytes = size;
+            startNanos = System.nanoTime();
+        }
+    }
+
+    private class Output extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof WebSocketFrame) {
+                var frame = (WebSocketFrame) msg;
+                if (measuring) {
+                    measuring = false;
+                    metrics.compressed(uncompressedBytes, frame.content().readableBytes(),
+                            System.nanoTime() - startNanos);
+                }
+                if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
+                    compressingMessage = (frame.rsv() & WebSocketExtension.RSV1) != 0 && !frame.isFinalFragment();
+                } else if (frame instanceof ContinuationWebSocketFrame && frame.isFinalFragment()) {
+                    compressingMessage = false;
+                }
+            }
+            ctx.write(msg, promise);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import java.util.Locale;
+
+/**
+ * Where a {@link wisp.websocket.api.WebSocketService}'s callbacks run, selected per service via
+ * wisp.websocket.services.&lt;path&gt;.executor.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+enum DispatchPolicy {
+    /**
+     * Inline on the connection's Netty I/O thread; lowest latency, but the service must never block.
+     */
+    EVENT_LOOP,
+
+    /**
+     * On a bounded, fixed-size thread pool shared by the service, preserving callback order per connection.
+     */
+    ORDERED,
+
+    /**
+     * On virtual threads (JDK 21+), preserving callback order per connection; falls back to {@link #ORDERED}
+     * on older JDKs.
+     */
+    VIRTUAL;
+
+    /**
+     * Parses a policy name as written in config, e.g. event-loop, ordered or virtual.
+     */
+    static DispatchPolicy fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.US).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown executor: " + name);
+        }
+    }
+}
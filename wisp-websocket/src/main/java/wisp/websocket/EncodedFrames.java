@@ -0,0 +1,128 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes complete, unmasked server-to-client websocket frames (RFC 6455 section 5.2) into a single buffer which
+ * can be written as-is to any number of channels, bypassing the per-channel frame encoder.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class EncodedFrames {
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_BINARY = 0x2;
+
+    private static final int FIN = 0x80;
+    private static final int RSV1 = 0x40;
+
+    // longest possible frame header, reserved ahead of compressed output whose length is not yet known
+    private static final int MAX_HEADER_LENGTH = 10;
+
+    // RFC 7692 section 7.2.1: the empty stored block every sync flush ends with is left off the wire
+    private static final int DEFLATE_TAIL_LENGTH = 4;
+
+    private EncodedFrames() { }
+
+    static ByteBuf text(ByteBufAllocator alloc, CharSequence text) {
+        return text(alloc, text, ByteBufUtil.utf8Bytes(text));
+    }
+
+    /**
+     * Encodes a text frame whose UTF-8 length the caller has already worked out.
+     */
+    static ByteBuf text(ByteBufAllocator alloc, CharSequence text, int length) {
+        var buf = alloc.buffer(headerLength(length) + length);
+        writeHeader(buf, OPCODE_TEXT, length);
+        ByteBufUtil.writeUtf8(buf, text);
+        return buf;
+    }
+
+    /**
+     * Encodes a text frame from text which is already UTF-8 encoded.
+     */
+    static ByteBuf utf8(ByteBufAllocator alloc, ByteBuffer utf8) {
+        return frame(alloc, OPCODE_TEXT, utf8);
+    }
+
+    static ByteBuf binary(ByteBufAllocator alloc, ByteBuffer binary) {
+        return frame(alloc, OPCODE_BINARY, binary);
+    }
+
+    private static ByteBuf frame(ByteBufAllocator alloc, int opcode, ByteBuffer payload) {
+        int length = payload.remaining();
+        var buf = alloc.buffer(headerLength(length) + length);
+        writeHeader(buf, opcode, length);
+        buf.writeBytes(payload.duplicate());
+        return buf;
+    }
+
+    /**
+     * Compresses a payload from an empty dictionary into a frame with RSV1 set, as permessage-deflate requires.
+     */
+    static ByteBuf deflated(ByteBufAllocator alloc, int opcode, ByteBuf payload, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(payload.nioBuffer());
+        var buf = alloc.buffer(MAX_HEADER_LENGTH + payload.readableBytes() / 2 + 64);
+        buf.writerIndex(MAX_HEADER_LENGTH);
+        int writable;
+        int written;
+        do {
+            buf.ensureWritable(64);
+            writable = buf.writableBytes();
+            written = deflater.deflate(buf.internalNioBuffer(buf.writerIndex(), writable), Deflater.SYNC_FLUSH);
+            buf.writerIndex(buf.writerIndex() + written);
+        } while (written == writable);
+        buf.writerIndex(buf.writerIndex() - DEFLATE_TAIL_LENGTH);
+
+        int length = buf.writerIndex() - MAX_HEADER_LENGTH;
+        int start = MAX_HEADER_LENGTH - headerLength(length);
+        buf.writerIndex(start);
+        writeHeader(buf, RSV1 | opcode, length);
+        buf.setIndex(start, MAX_HEADER_LENGTH + length);
+        return buf;
+    }
+
+    static int headerLength(int payloadLength) {
+        if (payloadLength < 126) {
+            return 2;
+        } else if (payloadLength <= 0xFFFF) {
+            return 4;
+        } else {
+            return 10;
+        }
+    }
+
+    static void writeHeader(ByteBuf buf, int opcode, int payloadLength) {
+        buf.writeByte(FIN | opcode);
+        if (payloadLength < 126) {
+            buf.writeByte(payloadLength);
+        } else if (payloadLength <= 0xFFFF) {
+            buf.writeByte(126);
+            buf.writeShort(payloadLength);
+        } else {
+            buf.writeByte(127);
+            buf.writeLong(payloadLength);
+        }
+    }
+}
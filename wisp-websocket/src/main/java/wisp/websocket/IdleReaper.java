@@ -0,0 +1,151 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+
+/**
+ * Per-connection handler which closes connections that have gone quiet. Rather than scheduling a task for every
+ * read and write, as Netty's IdleStateHandler does, it stamps them with the current tick of its loop's
+ * {@link TimerWheel} and keeps a single timer in the wheel, which on expiry either acts or moves itself on to the
+ * next deadline the stamps allow.
+ *
+ * <p>With a read timeout the connection is closed once nothing at all has arrived for that long. With a write
+ * timeout a ping is sent once nothing has gone out for that long, and the connection is closed unless the client
+ * sends something back, normally its pong, within the pong timeout. Both close with 1001 (going away) and do not
+ * wait for the client to reply, since a dead peer never will.</p>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class IdleReaper extends ChannelDuplexHandler {
+    private static final int GOING_AWAY = 1001;
+    private static final long NONE = -1;
+
+    private final IdleTimers timers;
+    private final long readTimeout;
+    private final long writeTimeout;
+    private final long pongTimeout;
+    private final ServiceMetrics metrics;
+    private final TimerWheel.Timer timer = new TimerWheel.Timer() {
+        @Override
+        void expired(long now) {
+            check(now);
+        }
+    };
+
+    private ChannelHandlerContext ctx;
+    private TimerWheel wheel;
+    private long lastRead;
+    private long lastWrite;
+    private long pingSent = NONE;
+
+    IdleReaper(IdleTimers timers, ServiceSettings settings, ServiceMetrics metrics) {
+        this.timers = timers;
+        this.readTimeout = timers.toTicks(settings.getReadIdleTimeout());
+        this.writeTimeout = timers.toTicks(settings.getWriteIdleTimeout());
+        this.pongTimeout = timers.toTicks(settings.getPongTimeout());
+        this.metrics = metrics;
+    }
+
+    /**
+     * Whether the service has any idle timeout set, i.e. whether a reaper is needed at all.
+     */
+    static boolean isEnabled(ServiceSettings settings) {
+        return !settings.getReadIdleTimeout().isZero() || !settings.getWriteIdleTimeout().isZero();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        wheel = timers.get(ctx.executor());
+        lastRead = wheel.now();
+        lastWrite = wheel.now();
+        scheduleNext(wheel.now());
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        wheel.cancel(timer);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        wheel.cancel(timer);
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastRead = wheel.now();
+        pingSent = NONE;
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        lastWrite = wheel.now();
+        super.write(ctx, msg, promise);
+    }
+
+    private void check(long now) {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        if (readTimeout > 0 && now - lastRead >= readTimeout) {
+            metrics.idleClosed(false);
+            goAway("idle timeout");
+            return;
+        }
+        if (pingSent != NONE && now - pingSent >= pongTimeout) {
+            metrics.idleClosed(true);
+            goAway("ping timeout");
+            return;
+        }
+        if (writeTimeout > 0 && pingSent == NONE && now - lastWrite >= writeTimeout) {
+            pingSent = now;
+            lastWrite = now;
+            metrics.pingSent();
+            ctx.writeAndFlush(new PingWebSocketFrame());
+        }
+        scheduleNext(now);
+    }
+
+    private void scheduleNext(long now) {
+        long next = Long.MAX_VALUE;
+        if (readTimeout > 0) {
+            next = Math.min(next, lastRead + readTimeout);
+        }
+        if (pingSent != NONE) {
+            next = Math.min(next, pingSent + pongTimeout);
+        } else if (writeTimeout > 0) {
+            next = Math.min(next, lastWrite + writeTimeout);
+        }
+        if (next != Long.MAX_VALUE) {
+            wheel.schedule(timer, next - now);
+        }
+    }
+
+    private void goAway(String reason) {
+        // flushed to the kernel if it has room and dropped otherwise; either way the socket is closed right away
+        ctx.writeAndFlush(new CloseWebSocketFrame(GOING_AWAY, reason));
+        ctx.close();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.util.concurrent.EventExecutor;
+import wisp.api.Configuration;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out the {@link TimerWheel} for each event loop, starting its tick task the first time a connection on that
+ * loop asks for it. The tick length, wisp.websocket.idle.tickDuration, is the resolution of every idle timeout.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class IdleTimers {
+    private final Map<EventExecutor, TimerWheel> wheels = new ConcurrentHashMap<>();
+    private Duration tickDuration = Duration.ofSeconds(1);
+
+    void configure(Configuration config) {
+        if (config.hasPath("wisp.websocket.idle.tickDuration")) {
+            tickDuration = config.getDuration("wisp.websocket.idle.tickDuration");
+        }
+    }
+
+    /**
+     * Gets the wheel for the given loop; only to be used from that loop.
+     */
+    TimerWheel get(EventExecutor loop) {
+        return wheels.computeIfAbsent(loop, this::start);
+    }
+
+    /**
+     * Converts a timeout to whole ticks, rounding up; zero stays zero. Activity is only stamped to the tick, so a
+     * timeout fires anywhere up to one tick either side of its nominal time.
+     */
+    long toTicks(Duration timeout) {
+        long tick = tickDuration.toNanos();
+        return (timeout.toNanos() + tick - 1) / tick;
+    }
+
+    /**
+     * Forgets the wheels once the loops they ran on have shut down.
+     */
+    void stop() {
+        wheels.clear();
+    }
+
+    private TimerWheel start(EventExecutor loop) {
+        var wheel = new TimerWheel();
+        long tick = tickDuration.toNanos();
+        loop.scheduleAtFixedRate(wheel::tick, tick, tick, TimeUnit.NANOSECONDS);
+        return wheel;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets limiting the messages and payload bytes one session may send, refilled lazily from the clock as
+ * frames arrive. Only ever used from the session's event loop, so it needs no synchronization.
+ *
+ * <p>A message larger than the byte burst is let through whenever the bucket is full and leaves it in debt, so the
+ * limit still holds on average without making big messages impossible to send.</p>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class InboundRateLimiter {
+    private final Bucket messages;
+    private final Bucket bytes;
+
+    private InboundRateLimiter(Bucket messages, Bucket bytes) {
+        this.messages = messages;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Creates a limiter for the service's configured rates, or returns null if it has none.
+     */
+    static InboundRateLimiter create(ServiceSettings settings, long nowNanos) {
+        Bucket messages = null;
+        Bucket bytes = null;
+        if (settings.getMessageRate() > 0) {
+            messages = new Bucket(settings.getMessageRate(), settings.getMessageBurst(), nowNanos);
+        }
+        if (settings.getByteRate() > 0) {
+            bytes = new Bucket(settings.getByteRate(), settings.getByteBurst(), nowNanos);
+        }
+        return messages != null || bytes != null ? new InboundRateLimiter(messages, bytes) : null;
+    }
+
+    /**
+     * Takes tokens for an inbound data frame, returning false if the session is over either limit. Continuation
+     * frames count against the byte limit only.
+     */
+    boolean tryAcquire(WebSocketFrame frame, long nowNanos) {
+        if (messages != null && !(frame instanceof ContinuationWebSocketFrame) && !messages.tryTake(1, nowNanos)) {
+            return false;
+        }
+        return bytes == null || bytes.tryTake(frame.content().readableBytes(), nowNanos);
+    }
+
+    private static final class Bucket {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefillNanos;
+
+        private Bucket(long ratePerSecond, long burst, long nowNanos) {
+            this.tokensPerNano = (double) ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = burst > 0 ? burst : ratePerSecond;
+            this.tokens = capacity;
+            this.lastRefillNanos = nowNanos;
+        }
+
+        private boolean tryTake(long n, long nowNanos) {
+            tokens = Math.min(capacity, tokens + (nowNanos - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = nowNanos;
+            if (tokens < Math.min(n, capacity)) {
+                return false;
+            }
+            tokens -= n;
+            return true;
+        }
+    }
+}
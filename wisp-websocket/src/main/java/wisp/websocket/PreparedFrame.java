@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
+
+/**
+ * One broadcast message encoded as a complete frame, plus the same message compressed with permessage-deflate
+ * as a further frame for each compression level in use, built on first use. The compressed forms start from an
+ * empty dictionary, so any sessions whose server side negotiated no context takeover and whose services compress
+ * at the same level can be sent the very same bytes. Reading a frame already built takes no lock, since every
+ * recipient on every event loop does it; only building one does.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class PreparedFrame extends AbstractReferenceCounted {
+    private final ByteBuf plain;
+    private final int payloadLength;
+    private final Compressor compressor;
+    // zlib's levels run from DEFAULT_COMPRESSION, -1, to BEST_COMPRESSION, so level + 1 is the slot
+    private final AtomicReferenceArray<ByteBuf> deflated = new AtomicReferenceArray<>(Deflater.BEST_COMPRESSION + 2);
+
+    /**
+     * @param compressor builds a compressed frame from this frame's payload
+     */
+    PreparedFrame(ByteBuf plain, int payloadLength, Compressor compressor) {
+        this.plain = plain;
+        this.payloadLength = payloadLength;
+        this.compressor = compressor;
+    }
+
+    /**
+     * Gets the uncompressed frame, shared by all recipients.
+     */
+    ByteBuf getPlain() {
+        return plain;
+    }
+
+    /**
+     * Gets the frame compressed at a zlib level, shared by all recipients, compressing on the first call for that
+     * level; if the message is smaller than the given minimum this is the uncompressed frame.
+     */
+    ByteBuf getDeflated(int level, int minSize) {
+        if (payloadLength < minSize) {
+            return plain;
+        }
+        int slot = level + 1;
+        var frame = deflated.get(slot);
+        if (frame == null) {
+            synchronized (this) {
+                frame = deflated.get(slot);
+                if (frame == null) {
+                    frame = compressor.compress(plain.slice(plain.writerIndex() - payloadLength, payloadLength),
+                            level);
+                    deflated.set(slot, frame);
+                }
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Gets the frame to write to a session: compressed as its service says if it can take compressed frames,
+     * otherwise uncompressed.
+     */
+    ByteBuf getFor(WebSocketSessionImpl session) {
+        return session.acceptsDeflatedFrames()
+                ? getDeflated(session.getDeflateLevel(), session.getDeflateMinSize()) : plain;
+    }
+
+    /**
+     * Whether this frame's payload matches the given buffer's remaining bytes.
+     */
+    boolean hasPayload(ByteBuffer binary) {
+        return binary.remaining() == payloadLength
+                && plain.nioBuffer(plain.writerIndex() - payloadLength, payloadLength).equals(binary);
+    }
+
+    /**
+     * Takes another reference unless this frame has already been released, e.g. by another thread evicting it from
+     * a cache between looking it up and calling this.
+     */
+    boolean tryRetain() {
+        try {
+            retain();
+            return true;
+        } catch (IllegalReferenceCountException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected synchronized void deallocate() {
+        plain.release();
+        for (int i = 0; i < deflated.length(); i++) {
+            var frame = deflated.get(i);
+            if (frame != null) {
+                frame.release();
+            }
+        }
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+        plain.touch(hint);
+        return this;
+    }
+
+    /**
+     * Builds a compressed frame from a frame's payload.
+     */
+    @FunctionalInterface
+    interface Compressor {
+        ByteBuf compress(ByteBuf payload, int level);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.util.concurrent.FastThreadLocal;
+import wisp.api.Configuration;
+import wisp.api.Counter;
+import wisp.api.MetricsRegistry;
+import wisp.websocket.api.Utf8Text;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Builds the {@link PreparedFrame}s for broadcast messages and keeps the most recently built ones, so a payload
+ * published over and over, like a snapshot sent to every new subscriber, is encoded and compressed only once.
+ * Strings are looked up by value; binary payloads by the identity of the buffer, checked against the cached bytes
+ * in case the publisher has refilled it since. How much to compress, if at all, is up to each subscriber's service.
+ * Publishers on different threads share the cache without a lock: the oldest frames are evicted first, and a
+ * frame evicted between one thread finding it and retaining it is simply built again.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class PreparedFrameCache {
+    private final ByteBufAllocator alloc;
+    private final Counter compressions = new Counter();
+    private final Counter hits = new Counter();
+    private final Map<Object, PreparedFrame> frames = new ConcurrentHashMap<>();
+    private final Queue<Object> keys = new ConcurrentLinkedQueue<>();
+    private final FastThreadLocal<Deflater[]> deflaters = new FastThreadLocal<>() {
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[Deflater.BEST_COMPRESSION + 2];
+        }
+
+        @Override
+        protected void onRemoval(Deflater[] deflaters) {
+            for (var deflater : deflaters) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+    };
+
+    private int cacheSize = 16;
+
+    PreparedFrameCache(ByteBufAllocator alloc) {
+        this.alloc = alloc;
+    }
+
+    void configure(Configuration config) {
+        if (config.hasPath("wisp.websocket.compression.broadcastCacheSize")) {
+            cacheSize = config.getInt("wisp.websocket.compression.broadcastCacheSize");
+        }
+    }
+
+    void register(MetricsRegistry registry) {
+        registry.register("wisp_websocket_broadcast_compressions_total",
+                "Broadcast messages compressed once for all permessage-deflate subscribers.", Map.of(),
+                compressions);
+        registry.register("wisp_websocket_broadcast_cache_hits_total",
+                "Broadcast messages whose encoded frames were reused from the cache.", Map.of(), hits);
+    }
+
+    /**
+     * Gets the frames for a text message; the caller owns one reference to the result.
+     */
+    PreparedFrame prepare(CharSequence text) {
+        if (!(text instanceof String) || cacheSize <= 0) {
+            return newTextFrame(text);
+        }
+        var frame = frames.get(text);
+        if (frame != null && frame.tryRetain()) {
+            hits.increment();
+            return frame;
+        }
+        return cache(text, newTextFrame(text));
+    }
+
+    /**
+     * Gets the frames for a binary message; the caller owns one reference to the result.
+     */
+    PreparedFrame prepare(ByteBuffer binary) {
+        if (cacheSize <= 0) {
+            return newBinaryFrame(binary);
+        }
+        var key = new IdentityKey(binary);
+        var frame = frames.get(key);
+        if (frame != null && frame.tryRetain()) {
+            if (frame.hasPayload(binary)) {
+                hits.increment();
+                return frame;
+            }
+            frame.release();
+        }
+        return cache(key, newBinaryFrame(binary));
+    }
+
+    /**
+     * Keeps a newly built frame in place of any other for the same key, evicting the oldest beyond the cache size;
+     * the caller keeps the reference it was built with.
+     */
+    private PreparedFrame cache(Object key, PreparedFrame frame) {
+        frame.retain();
+        var replaced = frames.put(key, frame);
+        if (replaced != null) {
+            // the key is already queued for eviction
+            replaced.release();
+        } else {
+            keys.add(key);
+        }
+        while (frames.size() > cacheSize) {
+            var eldest = keys.poll();
+            if (eldest == null) {
+                break;
+            }
+            var evicted = frames.remove(eldest);
+            if (evicted != null) {
+                evicted.release();
+            }
+        }
+        return frame;
+    }
+
+    private PreparedFrame newTextFrame(CharSequence text) {
+        if (text instanceof Utf8Text) {
+            var utf8 = ((Utf8Text) text).getBytes();
+            return newFrame(EncodedFrames.OPCODE_TEXT, EncodedFrames.utf8(alloc, utf8), utf8.remaining());
+        }
+        int length = ByteBufUtil.utf8Bytes(text);
+        return newFrame(EncodedFrames.OPCODE_TEXT, EncodedFrames.text(alloc, text, length), length);
+    }
+
+    private PreparedFrame newBinaryFrame(ByteBuffer binary) {
+        return newFrame(EncodedFrames.OPCODE_BINARY, EncodedFrames.binary(alloc, binary), binary.remaining());
+    }
+
+    private PreparedFrame newFrame(int opcode, ByteBuf plain, int payloadLength) {
+        return new PreparedFrame(plain, payloadLength, (payload, level) -> {
+            compressions.increment();
+            return EncodedFrames.deflated(alloc, opcode, payload, getDeflater(level));
+        });
+    }
+
+    private Deflater getDeflater(int level) {
+        var byLevel = deflaters.get();
+        int slot = level + 1;
+        if (byLevel[slot] == null) {
+            byLevel[slot] = new Deflater(level, true);
+        }
+        return byLevel[slot];
+    }
+
+    /**
+     * Map key comparing buffers by identity rather than by their current contents.
+     */
+    private static final class IdentityKey {
+        private final ByteBuffer buffer;
+
+        private IdentityKey(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof IdentityKey && ((IdentityKey) other).buffer == buffer;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(buffer);
+        }
+    }
+}
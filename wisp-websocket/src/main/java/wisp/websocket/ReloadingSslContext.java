@@ -0,0 +1,289 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.ReferenceCountedOpenSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wisp.api.Configuration;
+
+import javax.net.ssl.KeyManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Server TLS context built from the configured keys, preferring the OpenSSL engine from netty-tcnative when it is
+ * on the module path. The key files are checked periodically and, when any of them changes, a new context is built
+ * for connections accepted from then on; connections already open keep the engine they were created with, so a
+ * certificate rotation drops nobody. A reload which fails, e.g. because only one of a certificate and key pair has
+ * been replaced yet, keeps the previous context and is tried again on the next check.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class ReloadingSslContext implements Supplier<SslContext> {
+    private static final Logger logger = LoggerFactory.getLogger(ReloadingSslContext.class);
+
+    private String provider = "auto";
+    private String certificateChain;
+    private String privateKey;
+    private String privateKeyPassword;
+    private String keyStore;
+    private String keyStorePassword = "";
+    private long sessionCacheSize = 0;
+    private Duration sessionTimeout = Duration.ZERO;
+    private String sessionTicketKeys;
+    private List<String> alpn = List.of();
+    private Duration reloadInterval = Duration.ofSeconds(30);
+
+    private volatile SslContext current;
+    private SslProvider sslProvider;
+    private byte[] ticketKeys;
+    private long[] lastModified;
+    private ScheduledExecutorService reloader;
+
+    void configure(Configuration config) {
+        if (config.hasPath("wisp.websocket.tls.provider")) {
+            provider = config.getString("wisp.websocket.tls.provider").toLowerCase(Locale.ROOT);
+        }
+
+        if (config.hasPath("wisp.websocket.tls.certificateChain")) {
+            certificateChain = config.getString("wisp.websocket.tls.certificateChain");
+        }
+
+        if (config.hasPath("wisp.websocket.tls.privateKey")) {
+            privateKey = config.getString("wisp.websocket.tls.privateKey");
+        }
+
+        if (config.hasPath("wisp.websocket.tls.privateKeyPassword")) {
+            privateKeyPassword = config.getString("wisp.websocket.tls.privateKeyPassword");
+        }
+
+        if (config.hasPath("wisp.websocket.tls.keyStore")) {
+            keyStore = config.getString("wisp.websocket.tls.keyStore");
+        }
+
+        if (config.hasPath("wisp.websocket.tls.keyStorePassword")) {
+            keyStorePassword = config.getString("wisp.websocket.tls.keyStorePassword");
+        }
+
+        if (config.hasPath("wisp.websocket.tls.sessionCacheSize")) {
+            sessionCacheSize = config.getLong("wisp.websocket.tls.sessionCacheSize");
+        }
+
+        if (config.hasPath("wisp.websocket.tls.sessionTimeout")) {
+            sessionTimeout = config.getDuration("wisp.websocket.tls.sessionTimeout");
+        }
+
+        if (config.hasPath("wisp.websocket.tls.sessionTicketKeys")) {
+            sessionTicketKeys = config.getString("wisp.websocket.tls.sessionTicketKeys");
+        }
+
+        if (config.hasPath("wisp.websocket.tls.alpn")) {
+            alpn = new ArrayList<>();
+            for (var protocol : config.getString("wisp.websocket.tls.alpn").split(",")) {
+                if (!protocol.isBlank()) {
+                    alpn.add(protocol.strip());
+                }
+            }
+        }
+
+        if (config.hasPath("wisp.websocket.tls.reloadInterval")) {
+            reloadInterval = config.getDuration("wisp.websocket.tls.reloadInterval");
+        }
+    }
+
+    /**
+     * Gets the context for a newly accepted connection.
+     */
+    @Override
+    public SslContext get() {
+        return current;
+    }
+
+    /**
+     * Builds the initial context and, if there are key files to watch, starts checking them for changes.
+     */
+    synchronized void start() throws IOException, GeneralSecurityException {
+        sslProvider = selectProvider();
+        ticketKeys = loadTicketKeys();
+        lastModified = lastModified();
+        current = build();
+
+        if (!getWatchedFiles().isEmpty() && !reloadInterval.isZero() && reloader == null) {
+            reloader = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("wisp-tls-reload", true));
+            long interval = reloadInterval.toMillis();
+            reloader.scheduleWithFixedDelay(this::reloadIfChanged, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+            reloader = null;
+        }
+    }
+
+    /**
+     * Rebuilds the context if any key file has changed since it was last loaded; returns whether it did.
+     */
+    synchronized boolean reloadIfChanged() {
+        var modified = lastModified();
+        if (Arrays.equals(modified, lastModified)) {
+            return false;
+        }
+        try {
+            current = build();
+            lastModified = modified;
+            logger.info("reloaded TLS keys from {}", getWatchedFiles());
+            return true;
+        } catch (Exception e) {
+            logger.warn("unable to reload TLS keys from {}; still using the previous ones", getWatchedFiles(), e);
+            return false;
+        }
+    }
+
+    private SslContext build() throws IOException, GeneralSecurityException {
+        SslContextBuilder builder;
+        if (keyStore != null) {
+            var store = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(Paths.get(keyStore))) {
+                store.load(in, keyStorePassword.toCharArray());
+            }
+            var keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(store, keyStorePassword.toCharArray());
+            builder = SslContextBuilder.forServer(keyManagers);
+        } else if (certificateChain != null && privateKey != null) {
+            builder = SslContextBuilder.forServer(new File(certificateChain), new File(privateKey), privateKeyPassword);
+        } else {
+            logger.warn("no TLS keys configured; using a self-signed certificate");
+            var ssc = new SelfSignedCertificate();
+            builder = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey());
+        }
+
+        builder.sslProvider(sslProvider)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeout.getSeconds());
+        if (!alpn.isEmpty()) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT, alpn));
+        }
+
+        var sslCtx = builder.build();
+        if (sslCtx instanceof ReferenceCountedOpenSslContext) {
+            // the same keys on every context, so tickets issued before a reload still resume after it
+            ((ReferenceCountedOpenSslContext) sslCtx).sessionContext().setTicketKeys(toTicketKeys(ticketKeys));
+        }
+        return sslCtx;
+    }
+
+    private SslProvider selectProvider() {
+        switch (provider) {
+            case "jdk":
+                return SslProvider.JDK;
+            case "openssl":
+                OpenSsl.ensureAvailability();
+                return SslProvider.OPENSSL;
+            case "auto":
+                if (OpenSsl.isAvailable() && (alpn.isEmpty() || OpenSsl.isAlpnSupported())) {
+                    return SslProvider.OPENSSL;
+                }
+                logger.info("OpenSSL not available ({}); using the JDK TLS engine", OpenSsl.isAvailable()
+                        ? "no ALPN support" : OpenSsl.unavailabilityCause().getMessage());
+                return SslProvider.JDK;
+            default:
+                throw new IllegalArgumentException("unknown TLS provider: " + provider);
+        }
+    }
+
+    /**
+     * Reads the configured ticket key file, whose bytes are split into as many 48-byte name, HMAC key and AES key
+     * triples as it holds, the first being used to issue tickets; without one a random key is made up for the life of
+     * the process, which still resumes sessions across reloads but not across restarts or servers.
+     */
+    private byte[] loadTicketKeys() throws IOException {
+        if (sessionTicketKeys == null) {
+            var keys = new byte[OpenSslSessionTicketKey.TICKET_KEY_SIZE];
+            new SecureRandom().nextBytes(keys);
+            return keys;
+        }
+        var keys = Files.readAllBytes(Paths.get(sessionTicketKeys));
+        if (keys.length == 0 || keys.length % OpenSslSessionTicketKey.TICKET_KEY_SIZE != 0) {
+            throw new IOException(sessionTicketKeys + " must hold a multiple of "
+                    + OpenSslSessionTicketKey.TICKET_KEY_SIZE + " bytes");
+        }
+        return keys;
+    }
+
+    private static OpenSslSessionTicketKey[] toTicketKeys(byte[] bytes) {
+        int size = OpenSslSessionTicketKey.TICKET_KEY_SIZE;
+        var keys = new OpenSslSessionTicketKey[bytes.length / size];
+        for (int i = 0; i < keys.length; i++) {
+            int name = i * size;
+            int hmac = name + OpenSslSessionTicketKey.NAME_SIZE;
+            int aes = hmac + OpenSslSessionTicketKey.HMAC_KEY_SIZE;
+            keys[i] = new OpenSslSessionTicketKey(Arrays.copyOfRange(bytes, name, hmac),
+                    Arrays.copyOfRange(bytes, hmac, aes), Arrays.copyOfRange(bytes, aes, name + size));
+        }
+        return keys;
+    }
+
+    private List<Path> getWatchedFiles() {
+        var files = new ArrayList<Path>();
+        if (keyStore != null) {
+            files.add(Paths.get(keyStore));
+        } else if (certificateChain != null && privateKey != null) {
+            files.add(Paths.get(certificateChain));
+            files.add(Paths.get(privateKey));
+        }
+        return files;
+    }
+
+    private long[] lastModified() {
+        var files = getWatchedFiles();
+        var modified = new long[files.size()];
+        for (int i = 0; i < modified.length; i++) {
+            // a file caught mid-replacement reads as 0 and is picked up on a later check
+            modified[i] = files.get(i).toFile().lastModified();
+        }
+        return modified;
+    }
+}
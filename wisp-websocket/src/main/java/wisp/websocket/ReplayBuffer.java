@@ -0,0 +1,181 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The most recent messages published to one topic, kept as their already-encoded {@link PreparedFrame}s so a
+ * reconnecting session can be sent what it missed without encoding or compressing anything again. The frames live in
+ * pooled direct buffers, so the history is off-heap. Each message gets the next of a monotonically increasing run of
+ * sequence numbers, starting at 1 unless a {@link wisp.websocket.api.BroadcastBridge} remembers the topic from before
+ * a restart; the oldest messages are dropped once either the message or the byte limit is exceeded. Not thread-safe:
+ * callers hold the buffer's monitor, which also orders publishes to the topic.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class ReplayBuffer {
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int maxMessages;
+    private final long maxBytes;
+    private final LongAdder retainedBytes;
+    private long sequence;
+    private long bytes;
+    private boolean conflicted;
+    private boolean retired;
+
+    /**
+     * @param maxMessages  the most messages to keep, or 0 for no limit
+     * @param maxBytes     the most encoded bytes to keep, or 0 for no limit
+     * @param retainedBytes running total of bytes kept across all buffers
+     * @param sequence     the sequence number to carry on from, e.g. one recorded before a restart
+     */
+    ReplayBuffer(int maxMessages, long maxBytes, LongAdder retainedBytes, long sequence) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.retainedBytes = retainedBytes;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Gets the sequence number of the last message published, or 0 if there has been none.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Claims the sequence number of the next message.
+     */
+    long next() {
+        return ++sequence;
+    }
+
+    /**
+     * Takes on the sequence number another node gave a message, returning false if it does not come after the
+     * last, in which case what is held can no longer be trusted. Everything held is dropped unless the number
+     * directly follows the last one, so that messages this node never received are reported as a gap.
+     */
+    boolean follow(long sequence) {
+        if (sequence <= this.sequence) {
+            clear();
+            return false;
+        }
+        if (sequence != this.sequence + 1) {
+            clear();
+        }
+        this.sequence = sequence;
+        return true;
+    }
+
+    /**
+     * Notes that the topic's numbers have been seen to go backwards, returning true the first time.
+     */
+    boolean markConflicted() {
+        boolean first = !conflicted;
+        conflicted = true;
+        return first;
+    }
+
+    /**
+     * Keeps a reference to the frame for the message just numbered by {@link #next()}, then drops the oldest
+     * messages until the buffer is back within its limits.
+     */
+    void add(long sequence, PreparedFrame frame) {
+        if (maxMessages <= 0 && maxBytes <= 0) {
+            return;
+        }
+        int length = frame.getPlain().readableBytes();
+        frame.retain();
+        entries.addLast(new Entry(sequence, frame, length));
+        bytes += length;
+        retainedBytes.add(length);
+        while (!entries.isEmpty()
+                && ((maxMessages > 0 && entries.size() > maxMessages) || (maxBytes > 0 && bytes > maxBytes))) {
+            var oldest = entries.removeFirst();
+            bytes -= oldest.length;
+            retainedBytes.add(-oldest.length);
+            oldest.frame.release();
+        }
+    }
+
+    /**
+     * Drops every message held, keeping the numbering.
+     */
+    void clear() {
+        for (var entry : entries) {
+            retainedBytes.add(-entry.length);
+            entry.frame.release();
+        }
+        entries.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Drops every message held and marks the buffer as no longer the topic's, so that whoever takes its monitor next
+     * looks the topic up again rather than numbering on a buffer nobody else can see.
+     */
+    void retire() {
+        clear();
+        retired = true;
+    }
+
+    boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * Whether every message published after the given sequence number is still held.
+     */
+    boolean covers(long lastSequence) {
+        if (lastSequence < 0 || lastSequence > sequence) {
+            // from before a restart, or made up
+            return false;
+        }
+        long oldest = entries.isEmpty() ? sequence + 1 : entries.getFirst().sequence;
+        return lastSequence >= oldest - 1;
+    }
+
+    /**
+     * Gets the frames of every message held which was published after the given sequence number, oldest first;
+     * the caller owns one reference to each.
+     */
+    List<PreparedFrame> since(long lastSequence) {
+        var frames = new ArrayList<PreparedFrame>();
+        for (var entry : entries) {
+            if (entry.sequence > lastSequence) {
+                frames.add((PreparedFrame) entry.frame.retain());
+            }
+        }
+        return frames;
+    }
+
+    private static final class Entry {
+        private final long sequence;
+        private final PreparedFrame frame;
+        private final int length;
+
+        private Entry(long sequence, PreparedFrame frame, int length) {
+            this.sequence = sequence;
+            this.frame = frame;
+            this.length = length;
+        }
+    }
+}
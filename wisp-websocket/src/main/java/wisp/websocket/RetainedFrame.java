@@ -0,0 +1,49 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.util.ReferenceCounted;
+import wisp.websocket.api.RetainedPayload;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link RetainedPayload} holding one reference to an inbound frame, given up at most once no matter how many times
+ * or from how many threads the service releases it.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class RetainedFrame implements RetainedPayload {
+    /**
+     * Handle for payloads which do not refer to the frame, such as already-decoded text.
+     */
+    static final RetainedPayload NONE = () -> { };
+
+    private final ReferenceCounted frame;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    RetainedFrame(ReferenceCounted frame) {
+        this.frame = frame;
+    }
+
+    @Override
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            frame.release();
+        }
+    }
+}
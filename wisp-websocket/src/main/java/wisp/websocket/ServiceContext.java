@@ -0,0 +1,46 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import wisp.websocket.api.Broadcaster;
+import wisp.websocket.api.SessionRegistry;
+import wisp.websocket.api.WebSocketServiceContext;
+
+/**
+ * Per-service holder for the server facilities handed to {@link wisp.websocket.api.WebSocketService#init}.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class ServiceContext implements WebSocketServiceContext {
+    private final Broadcaster broadcaster;
+    private final SessionRegistry sessions;
+
+    ServiceContext(Broadcaster broadcaster, SessionRegistry sessions) {
+        this.broadcaster = broadcaster;
+        this.sessions = sessions;
+    }
+
+    @Override
+    public Broadcaster getBroadcaster() {
+        return broadcaster;
+    }
+
+    @Override
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+}
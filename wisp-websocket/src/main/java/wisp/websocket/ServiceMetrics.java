@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import wisp.api.Counter;
+import wisp.api.Gauge;
+import wisp.api.LatencyHistogram;
+import wisp.api.MetricsRegistry;
+import wisp.websocket.api.WebSocketService;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics for one {@link wisp.websocket.api.WebSocketService}, updated by its sessions from their event loops.
+ * Everything here is a striped adder so that connections on different loops never contend.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class ServiceMetrics {
+    private final String path;
+    private final StallDetector stallDetector;
+    private final LongAdder activeSessions = new LongAdder();
+    private final Counter handshakes = new Counter();
+    private final Counter textFramesIn = new Counter();
+    private final Counter binaryFramesIn = new Counter();
+    private final Counter continuationFramesIn = new Counter();
+    private final Counter bytesIn = new Counter();
+    private final Counter textFramesOut = new Counter();
+    private final Counter binaryFramesOut = new Counter();
+    private final Counter continuationFramesOut = new Counter();
+    private final Counter controlFramesOut = new Counter();
+    private final Counter broadcastFramesOut = new Counter();
+    private final Counter bytesOut = new Counter();
+    private final Counter unwritable = new Counter();
+    private final Counter callbacksRejected = new Counter();
+    private final LatencyHistogram callbackDuration = new LatencyHistogram();
+    private final Counter uncompressedBytes = new Counter();
+    private final Counter compressedBytes = new Counter();
+    private final Counter compressionSkipped = new Counter();
+    private final LatencyHistogram compressionDuration = new LatencyHistogram();
+    private final Counter sessionsRejected = new Counter();
+    private final Counter rateLimited = new Counter();
+    private final Counter readIdleClosed = new Counter();
+    private final Counter pongTimeoutClosed = new Counter();
+    private final Counter pingsSent = new Counter();
+
+    ServiceMetrics(String path, StallDetector stallDetector) {
+        this.path = path;
+        this.stallDetector = stallDetector;
+    }
+
+    /**
+     * Publishes this service's metrics labelled with its path, along with gauges read from server state.
+     */
+    void register(MetricsRegistry registry, Gauge writeQueueBytes, Gauge callbackQueueDepth) {
+        var service = Map.of("service", path);
+        registry.register("wisp_websocket_sessions_active", "Open websocket sessions.", service,
+                activeSessions::sum);
+        registry.register("wisp_websocket_handshakes_total", "Completed websocket handshakes.", service,
+                handshakes);
+        registerByType(registry, "wisp_websocket_frames_in_total", "Data frames received.", path,
+                Map.of("text", textFramesIn, "binary", binaryFramesIn, "continuation", continuationFramesIn));
+        registry.register("wisp_websocket_bytes_in_total", "Data frame payload bytes received.", service, bytesIn);
+        registerByType(registry, "wisp_websocket_frames_out_total", "Frames sent.", path,
+                Map.of("text", textFramesOut, "binary", binaryFramesOut, "continuation", continuationFramesOut,
+                        "control", controlFramesOut, "broadcast", broadcastFramesOut));
+        registry.register("wisp_websocket_bytes_out_total",
+                "Frame payload bytes sent, or whole frame bytes for broadcasts.", service, bytesOut);
+        registry.register("wisp_websocket_callback_duration_seconds",
+                "Time spent inside service callbacks.", service, callbackDuration);
+        registry.register("wisp_websocket_write_queue_bytes",
+                "Bytes written but not yet flushed to the socket.", service, writeQueueBytes);
+        registry.register("wisp_websocket_unwritable_total",
+                "Times a connection went over its high write-buffer watermark.", service, unwritable);
+        registry.register("wisp_websocket_callback_queue_depth",
+                "Callbacks waiting for an executor thread.", service, callbackQueueDepth);
+        registry.register("wisp_websocket_callbacks_rejected_total",
+                "Callbacks rejected because the executor queue was full.", service, callbacksRejected);
+        registry.register("wisp_websocket_deflate_input_bytes_total",
+                "Payload bytes passed to permessage-deflate.", service, uncompressedBytes);
+        registry.register("wisp_websocket_deflate_output_bytes_total",
+                "Payload bytes produced by permessage-deflate.", service, compressedBytes);
+        registry.register("wisp_websocket_deflate_duration_seconds",
+                "Time spent compressing each outbound frame.", service, compressionDuration);
+        registry.register("wisp_websocket_deflate_skipped_total",
+                "Messages sent uncompressed because they were under the minimum size.", service,
+                compressionSkipped);
+        registry.register("wisp_websocket_sessions_rejected_total",
+                "Upgrade requests turned away because the server or service was at its session limit.", service,
+                sessionsRejected);
+        registry.register("wisp_websocket_rate_limited_total",
+                "Sessions closed for sending faster than the service's message or byte rate.", service,
+                rateLimited);
+        registerByType(registry, "wisp_websocket_idle_closed_total",
+                "Sessions closed for reading nothing within the read timeout or no reply to a keepalive ping.", path,
+                Map.of("read", readIdleClosed, "pong", pongTimeoutClosed));
+        registry.register("wisp_websocket_pings_sent_total",
+                "Keepalive pings sent to sessions idle for the write timeout.", service, pingsSent);
+    }
+
+    void sessionOpened() {
+        handshakes.increment();
+        activeSessions.increment();
+    }
+
+    void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    void frameIn(WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame) {
+            textFramesIn.increment();
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            binaryFramesIn.increment();
+        } else if (frame instanceof ContinuationWebSocketFrame) {
+            continuationFramesIn.increment();
+        }
+        bytesIn.add(frame.content().readableBytes());
+    }
+
+    void frameOut(WebSocketFrame frame) {
+        if (frame instanceof TextWebSocketFrame) {
+            textFramesOut.increment();
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            binaryFramesOut.increment();
+        } else if (frame instanceof ContinuationWebSocketFrame) {
+            continuationFramesOut.increment();
+        } else {
+            controlFramesOut.increment();
+        }
+        bytesOut.add(frame.content().readableBytes());
+    }
+
+    void encodedFrameOut(int frameBytes) {
+        broadcastFramesOut.increment();
+        bytesOut.add(frameBytes);
+    }
+
+    void compressed(int inputBytes, int outputBytes, long durationNanos) {
+        uncompressedBytes.add(inputBytes);
+        compressedBytes.add(outputBytes);
+        compressionDuration.recordNanos(durationNanos);
+    }
+
+    void compressionSkipped() {
+        compressionSkipped.increment();
+    }
+
+    void sessionRejected() {
+        sessionsRejected.increment();
+    }
+
+    void rateLimited() {
+        rateLimited.increment();
+    }
+
+    void idleClosed(boolean pongTimeout) {
+        (pongTimeout ? pongTimeoutClosed : readIdleClosed).increment();
+    }
+
+    void pingSent() {
+        pingsSent.increment();
+    }
+
+    void unwritable() {
+        unwritable.increment();
+    }
+
+    /**
+     * Notes that the named callback is starting on the current thread, returning the start time to pass back to
+     * {@link #callbackCompleted}.
+     */
+    long callbackStarted(WebSocketService service, String callback) {
+        return stallDetector.callbackStarted(path, service, callback);
+    }
+
+    void callbackCompleted(long startNanos) {
+        callbackDuration.recordNanos(stallDetector.callbackCompleted(startNanos));
+    }
+
+    long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    Counter getCallbacksRejected() {
+        return callbacksRejected;
+    }
+
+    private static void registerByType(MetricsRegistry registry, String name, String help, String path,
+                                       Map<String, Counter> counters) {
+        for (var entry : counters.entrySet()) {
+            registry.register(name, help, Map.of("service", path, "type", entry.getKey()), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import wisp.api.Configuration;
+
+import java.time.Duration;
+
+/**
+ * Per-service settings read from wisp.websocket.services.&lt;path&gt;, where &lt;path&gt; is the service's
+ * {@link wisp.websocket.api.WebSocketService#getPath()} without its leading slash, e.g.
+ * wisp.websocket.services.echo.executor for a service on /echo. Compression settings are read from the service's
+ * own compression block if present and otherwise from wisp.websocket.compression, so one service can override
+ * just the settings it cares about; inbound rate limits fall back to wisp.websocket.admission and idle timeouts
+ * to wisp.websocket.idle the same way.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class ServiceSettings {
+    private final String path;
+
+    private DispatchPolicy executor = DispatchPolicy.EVENT_LOOP;
+    private int executorThreads = Runtime.getRuntime().availableProcessors();
+    private int executorMaxQueued = 10_000;
+    private boolean streamFragments = false;
+    private int maxFrameSize = 65536;
+    private int maxMessageSize = 65536;
+    private boolean compressionEnabled = true;
+    private int compressionLevel = 6;
+    private int clientWindowBits = 15;
+    private boolean serverNoContextTakeover = false;
+    private boolean clientNoContextTakeover = false;
+    private int compressionMinSize = 0;
+    private int maxSessions = 0;
+    private long messageRate = 0;
+    private long messageBurst = 0;
+    private long byteRate = 0;
+    private long byteBurst = 0;
+    private int rateLimitCloseCode = 1008;
+    private Duration readIdleTimeout = Duration.ZERO;
+    private Duration writeIdleTimeout = Duration.ZERO;
+    private Duration pongTimeout = Duration.ofSeconds(30);
+
+    ServiceSettings(String path, Configuration config) {
+        this.path = path;
+
+        if (config.hasPath(key("executor"))) {
+            executor = DispatchPolicy.fromName(config.getString(key("executor")));
+        }
+
+        if (config.hasPath(key("executorThreads"))) {
+            executorThreads = config.getInt(key("executorThreads"));
+        }
+
+        if (config.hasPath(key("executorMaxQueued"))) {
+            executorMaxQueued = config.getInt(key("executorMaxQueued"));
+        }
+
+        if (config.hasPath(key("streamFragments"))) {
+            streamFragments = config.getBoolean(key("streamFragments"));
+        }
+
+        if (config.hasPath(key("maxFrameSize"))) {
+            maxFrameSize = config.getInt(key("maxFrameSize"));
+        }
+
+        if (config.hasPath(key("maxMessageSize"))) {
+            maxMessageSize = config.getInt(key("maxMessageSize"));
+        }
+
+        if (config.hasPath(compressionKey(config, "enabled"))) {
+            compressionEnabled = config.getBoolean(compressionKey(config, "enabled"));
+        }
+
+        if (config.hasPath(compressionKey(config, "level"))) {
+            compressionLevel = config.getInt(compressionKey(config, "level"));
+        }
+
+        if (config.hasPath(compressionKey(config, "clientWindowBits"))) {
+            clientWindowBits = config.getInt(compressionKey(config, "clientWindowBits"));
+        }
+
+        if (config.hasPath(compressionKey(config, "serverNoContextTakeover"))) {
+            serverNoContextTakeover = config.getBoolean(compressionKey(config, "serverNoContextTakeover"));
+        }
+
+        if (config.hasPath(compressionKey(config, "clientNoContextTakeover"))) {
+            clientNoContextTakeover = config.getBoolean(compressionKey(config, "clientNoContextTakeover"));
+        }
+
+        if (config.hasPath(compressionKey(config, "minSize"))) {
+            compressionMinSize = config.getInt(compressionKey(config, "minSize"));
+        }
+
+        if (config.hasPath(key("admission.maxSessions"))) {
+            maxSessions = config.getInt(key("admission.maxSessions"));
+        }
+
+        if (config.hasPath(admissionKey(config, "messageRate"))) {
+            messageRate = config.getLong(admissionKey(config, "messageRate"));
+        }
+
+        if (config.hasPath(admissionKey(config, "messageBurst"))) {
+            messageBurst = config.getLong(admissionKey(config, "messageBurst"));
+        }
+
+        if (config.hasPath(admissionKey(config, "byteRate"))) {
+            byteRate = config.getLong(admissionKey(config, "byteRate"));
+        }
+
+        if (config.hasPath(admissionKey(config, "byteBurst"))) {
+            byteBurst = config.getLong(admissionKey(config, "byteBurst"));
+        }
+
+        if (config.hasPath(admissionKey(config, "closeCode"))) {
+            rateLimitCloseCode = config.getInt(admissionKey(config, "closeCode"));
+        }
+
+        if (config.hasPath(idleKey(config, "readTimeout"))) {
+            readIdleTimeout = config.getDuration(idleKey(config, "readTimeout"));
+        }
+
+        if (config.hasPath(idleKey(config, "writeTimeout"))) {
+            writeIdleTimeout = config.getDuration(idleKey(config, "writeTimeout"));
+        }
+
+        if (config.hasPath(idleKey(config, "pongTimeout"))) {
+            pongTimeout = config.getDuration(idleKey(config, "pongTimeout"));
+        }
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    DispatchPolicy getExecutor() {
+        return executor;
+    }
+
+    int getExecutorThreads() {
+        return executorThreads;
+    }
+
+    int getExecutorMaxQueued() {
+        return executorMaxQueued;
+    }
+
+    /**
+     * Whether each fragment of a message is handed to the service as it arrives rather than aggregated first.
+     */
+    boolean isStreamFragments() {
+        return streamFragments;
+    }
+
+    /**
+     * Gets the largest single frame payload accepted from a client: maxFrameSize when streaming fragments,
+     * otherwise maxMessageSize since an unfragmented message is one frame.
+     */
+    int getMaxFramePayloadLength() {
+        return streamFragments ? maxFrameSize : maxMessageSize;
+    }
+
+    /**
+     * Gets the largest complete message accepted from a client when aggregating fragments.
+     */
+    int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Whether permessage-deflate is offered to clients of this service at all.
+     */
+    boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Gets the zlib compression level, 0-9, used for outbound messages.
+     */
+    int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Gets the LZ77 window size, 8-15 bits, which clients that support it are asked to compress with.
+     */
+    int getClientWindowBits() {
+        return clientWindowBits;
+    }
+
+    /**
+     * Whether the server resets its compressor after every message, trading ratio for per-connection memory.
+     */
+    boolean isServerNoContextTakeover() {
+        return serverNoContextTakeover;
+    }
+
+    /**
+     * Whether clients that support it are asked to reset their compressor after every message.
+     */
+    boolean isClientNoContextTakeover() {
+        return clientNoContextTakeover;
+    }
+
+    /**
+     * Gets the smallest outbound message payload worth compressing; anything shorter is sent as is.
+     */
+    int getCompressionMinSize() {
+        return compressionMinSize;
+    }
+
+    /**
+     * Gets the most sessions this service may have open at once, or zero for no limit.
+     */
+    int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Gets the messages per second each session may send on average, or zero for no limit.
+     */
+    long getMessageRate() {
+        return messageRate;
+    }
+
+    /**
+     * Gets how many messages a session may send back to back before the message rate applies; defaults to one
+     * second's worth.
+     */
+    long getMessageBurst() {
+        return messageBurst;
+    }
+
+    /**
+     * Gets the payload bytes per second each session may send on average, or zero for no limit.
+     */
+    long getByteRate() {
+        return byteRate;
+    }
+
+    /**
+     * Gets how many payload bytes a session may send back to back before the byte rate applies; defaults to one
+     * second's worth.
+     */
+    long getByteBurst() {
+        return byteBurst;
+    }
+
+    /**
+     * Gets the close code sent to a session which goes over its message or byte rate.
+     */
+    int getRateLimitCloseCode() {
+        return rateLimitCloseCode;
+    }
+
+    /**
+     * Gets how long a session may go without sending anything before it is closed, or zero to never close it.
+     */
+    Duration getReadIdleTimeout() {
+        return readIdleTimeout;
+    }
+
+    /**
+     * Gets how long a session may go without being sent anything before the server pings it, or zero to never
+     * ping.
+     */
+    Duration getWriteIdleTimeout() {
+        return writeIdleTimeout;
+    }
+
+    /**
+     * Gets how long a session has to answer a keepalive ping before it is closed.
+     */
+    Duration getPongTimeout() {
+        return pongTimeout;
+    }
+
+    private String admissionKey(Configuration config, String name) {
+        var serviceKey = key("admission." + name);
+        return config.hasPath(serviceKey) ? serviceKey : "wisp.websocket.admission." + name;
+    }
+
+    private String idleKey(Configuration config, String name) {
+        var serviceKey = key("idle." + name);
+        return config.hasPath(serviceKey) ? serviceKey : "wisp.websocket.idle." + name;
+    }
+
+    private String compressionKey(Configuration config, String name) {
+        var serviceKey = key("compression." + name);
+        return config.hasPath(serviceKey) ? serviceKey : "wisp.websocket.compression." + name;
+    }
+
+    private String key(String name) {
+        var serviceKey = path.startsWith("/") ? path.substring(1) : path;
+        if (serviceKey.isEmpty()) {
+            serviceKey = "root";
+        }
+        return "wisp.websocket.services." + serviceKey + "." + name;
+    }
+}
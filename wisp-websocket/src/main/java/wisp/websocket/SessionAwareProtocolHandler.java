@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+
+import java.util.List;
+
+/**
+ * Netty's protocol handler answers close frames itself without passing them on; this subclass notes the client's
+ * close status on the session first so the service can be told why the connection ended.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class SessionAwareProtocolHandler extends WebSocketServerProtocolHandler {
+    SessionAwareProtocolHandler(String websocketPath, int maxFramePayloadLength) {
+        super(websocketPath, null, true, maxFramePayloadLength, false, true);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, WebSocketFrame frame, List<Object> out) throws Exception {
+        if (frame instanceof CloseWebSocketFrame) {
+            var session = WebSocketSessionImpl.get(ctx.channel());
+            if (session != null) {
+                var closeFrame = (CloseWebSocketFrame) frame;
+                session.closeReceived(closeFrame.statusCode(), closeFrame.reasonText());
+            }
+        }
+        super.decode(ctx, frame, out);
+    }
+}
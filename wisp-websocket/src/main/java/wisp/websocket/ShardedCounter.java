@@ -0,0 +1,74 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count split into one slot per thread that changes it, in practice one per event loop. A thread only ever writes
+ * its own slot, so changes need neither locks nor CAS and never contend; reading sums every slot. A decrement may
+ * come from a different thread than the matching increment, which just leaves the two slots offsetting each other.
+ *
+ * <p>{@link #tryIncrement} checks the limit and then increments without any coordination between threads, so a
+ * limit can be overshot by up to one for each other thread admitting at the same instant.</p>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class ShardedCounter {
+    private final List<AtomicLong> slots = new CopyOnWriteArrayList<>();
+    private final FastThreadLocal<AtomicLong> slot = new FastThreadLocal<>() {
+        @Override
+        protected AtomicLong initialValue() {
+            var slot = new AtomicLong();
+            slots.add(slot);
+            return slot;
+        }
+    };
+
+    void increment() {
+        var mine = slot.get();
+        mine.lazySet(mine.get() + 1);
+    }
+
+    void decrement() {
+        var mine = slot.get();
+        mine.lazySet(mine.get() - 1);
+    }
+
+    /**
+     * Increments unless the count has already reached the given limit; a limit of zero or less means no limit.
+     */
+    boolean tryIncrement(long limit) {
+        if (limit > 0 && sum() >= limit) {
+            return false;
+        }
+        increment();
+        return true;
+    }
+
+    long sum() {
+        long sum = 0;
+        for (var s : slots) {
+            sum += s.get();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.util.concurrent.EventExecutor;
+import wisp.websocket.api.SessionRegistry;
+import wisp.websocket.api.WebSocketSession;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Default {@link SessionRegistry}, holding one shard per event loop. Each shard is a table of slots which only its
+ * own event loop writes, as sessions open and close there, so registering takes no lock or CAS; other threads
+ * read it through the table's volatile semantics. A session's id packs its shard, its slot and how many times that
+ * slot has been used, so lookup is two array reads and an id left over from a closed session never finds the
+ * session which reused its slot. Iteration walks the tables in place.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class ShardedSessionRegistry implements SessionRegistry {
+    private static final int SHARD_BITS = 12;
+    private static final int SLOT_BITS = 24;
+    private static final int SHARD_MASK = (1 << SHARD_BITS) - 1;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = (1 << (Long.SIZE - 1 - SHARD_BITS - SLOT_BITS)) - 1;
+    private static final int INITIAL_SLOTS = 64;
+
+    private final Map<EventExecutor, Shard> byEventLoop = new ConcurrentHashMap<>();
+    private volatile Shard[] shards = new Shard[0];
+
+    /**
+     * Adds a session and assigns its id; must be called on the session's event loop.
+     */
+    void register(WebSocketSessionImpl session) {
+        var loop = session.getChannel().eventLoop();
+        var shard = byEventLoop.get(loop);
+        if (shard == null) {
+            shard = addShard(loop);
+        }
+        shard.add(session);
+    }
+
+    /**
+     * Removes a session; must be called on the session's event loop.
+     */
+    void unregister(WebSocketSessionImpl session) {
+        long id = session.getId();
+        if (id != 0) {
+            shards[shardIndex(id)].remove(slotIndex(id), session);
+        }
+    }
+
+    @Override
+    public WebSocketSessionImpl get(long id) {
+        var shards = this.shards;
+        int shard = shardIndex(id);
+        if (id <= 0 || shard >= shards.length) {
+            return null;
+        }
+        var session = shards[shard].get(slotIndex(id));
+        return session != null && session.getId() == id ? session : null;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (var shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    @Override
+    public void forEach(Consumer<? super WebSocketSession> action) {
+        for (var shard : shards) {
+            var slots = shard.slots;
+            for (int i = 0; i < slots.length(); i++) {
+                var session = slots.get(i);
+                if (session != null) {
+                    action.accept(session);
+                }
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<WebSocket> sendTo(long id, CharSequence text) {
+        var session = get(id);
+        return session != null ? session.sendText(text, true) : noSuchSession(id);
+    }
+
+    @Override
+    public CompletableFuture<WebSocket> sendTo(long id, ByteBuffer binary) {
+        var session = get(id);
+        return session != null ? session.sendBinary(binary, true) : noSuchSession(id);
+    }
+
+    private synchronized Shard addShard(EventExecutor loop) {
+        var shard = byEventLoop.get(loop);
+        if (shard == null) {
+            int index = shards.length;
+            if (index > SHARD_MASK) {
+                throw new IllegalStateException("too many event loops for one session registry");
+            }
+            shard = new Shard(index);
+            var grown = Arrays.copyOf(shards, index + 1);
+            grown[index] = shard;
+            shards = grown;
+            byEventLoop.put(loop, shard);
+        }
+        return shard;
+    }
+
+    private static CompletableFuture<WebSocket> noSuchSession(long id) {
+        return CompletableFuture.failedFuture(new NoSuchElementException("no open session " + id));
+    }
+
+    private static int shardIndex(long id) {
+        return (int) (id & SHARD_MASK);
+    }
+
+    private static int slotIndex(long id) {
+        return (int) ((id >>> SHARD_BITS) & SLOT_MASK);
+    }
+
+    /**
+     * One event loop's sessions. Everything but the slot table and size is touched only by that loop.
+     */
+    private static final class Shard {
+        private final int index;
+        private volatile AtomicReferenceArray<WebSocketSessionImpl> slots =
+                new AtomicReferenceArray<>(INITIAL_SLOTS);
+        private volatile int size;
+        private int[] generations = new int[INITIAL_SLOTS];
+        private int[] free = new int[INITIAL_SLOTS];
+        private int freeCount;
+        private int used;
+
+        private Shard(int index) {
+            this.index = index;
+        }
+
+        void add(WebSocketSessionImpl session) {
+            int slot;
+            if (freeCount > 0) {
+                slot = free[--freeCount];
+            } else {
+                slot = used++;
+                if (slot > SLOT_MASK) {
+                    throw new IllegalStateException("too many sessions on one event loop");
+                }
+                if (slot == slots.length()) {
+                    grow();
+                }
+            }
+            int generation = (generations[slot] + 1) & GENERATION_MASK;
+            generations[slot] = generation == 0 ? 1 : generation;
+            long id = ((long) generations[slot] << (SHARD_BITS + SLOT_BITS)) | ((long) slot << SHARD_BITS) | index;
+
+            // the id is set before the session is published, so readers which find it see the right id
+            session.setId(id);
+            slots.lazySet(slot, session);
+            size = size + 1;
+        }
+
+        void remove(int slot, WebSocketSessionImpl session) {
+            if (slots.get(slot) != session) {
+                return;
+            }
+            slots.lazySet(slot, null);
+            size = size - 1;
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = slot;
+        }
+
+        WebSocketSessionImpl get(int slot) {
+            var slots = this.slots;
+            return slot < slots.length() ? slots.get(slot) : null;
+        }
+
+        private void grow() {
+            var grown = new AtomicReferenceArray<WebSocketSessionImpl>(slots.length() * 2);
+            for (int i = 0; i < slots.length(); i++) {
+                grown.lazySet(i, slots.get(i));
+            }
+            generations = Arrays.copyOf(generations, grown.length());
+            slots = grown;
+        }
+    }
+}
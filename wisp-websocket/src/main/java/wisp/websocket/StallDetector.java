@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import jdk.jfr.FlightRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wisp.api.Counter;
+import wisp.api.LatencyHistogram;
+import wisp.api.MetricsRegistry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watchdog for code which holds up an event loop. Every thread running service callbacks publishes what it is
+ * currently running, and every few milliseconds a background thread checks two things:
+ *
+ * <ul>
+ *     <li>callbacks which have been running longer than the threshold, which are logged once each along with a
+ *     sample of the offending thread's stack taken while it is still stuck;</li>
+ *     <li>how long a no-op task submitted to each event loop waits before it runs, which is recorded as the loop's
+ *     scheduling delay and logged, with the loop's stack, when it exceeds the threshold.</li>
+ * </ul>
+ *
+ * <p>Callbacks also feed {@link CallbackDurationEvent} once a flight recording has been started.</p>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class StallDetector {
+    private static final Logger logger = LoggerFactory.getLogger(StallDetector.class);
+
+    private final Queue<InFlight> threads = new ConcurrentLinkedQueue<>();
+    private final FastThreadLocal<InFlight> current = new FastThreadLocal<>() {
+        @Override
+        protected InFlight initialValue() {
+            var inFlight = new InFlight(Thread.currentThread());
+            threads.add(inFlight);
+            return inFlight;
+        }
+    };
+
+    private final List<LoopProbe> probes = new ArrayList<>();
+    private final LatencyHistogram loopDelay = new LatencyHistogram();
+    private final Counter loopStalls = new Counter();
+    private volatile long thresholdNanos;
+    private ScheduledExecutorService watchdog;
+
+    StallDetector(Duration threshold) {
+        this.thresholdNanos = threshold.toNanos();
+    }
+
+    /**
+     * Sets how long a callback or event loop task may run before it is reported; zero turns reporting off.
+     */
+    void setThreshold(Duration threshold) {
+        this.thresholdNanos = threshold.toNanos();
+    }
+
+    void register(MetricsRegistry registry) {
+        registry.register("wisp_websocket_event_loop_delay_seconds",
+                "Time a task submitted to an event loop waits before it runs.", Map.of(), loopDelay);
+        registry.register("wisp_websocket_event_loop_stalls_total",
+                "Times an event loop did not run a waiting task within the slow callback threshold.", Map.of(),
+                loopStalls);
+    }
+
+    /**
+     * Starts probing the given event loops; does nothing if the threshold is zero.
+     */
+    synchronized void start(EventLoopGroup... groups) {
+        if (thresholdNanos <= 0 || watchdog != null) {
+            return;
+        }
+        for (var group : groups) {
+            for (var loop : group) {
+                probes.add(new LoopProbe(loop));
+            }
+        }
+        long interval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(thresholdNanos) / 2);
+        watchdog = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("wisp-stall-detector", true));
+        watchdog.scheduleWithFixedDelay(this::check, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+        }
+    }
+
+    /**
+     * Marks the start of a callback on the current thread and returns its start time to pass to {@link
+     * #callbackCompleted}. Callbacks which re-enter the service while another is running are timed but only the
+     * outermost one is watched.
+     */
+    long callbackStarted(String path, Object service, String callback) {
+        var inFlight = current.get();
+        long start = System.nanoTime();
+        if (inFlight.depth++ == 0) {
+            inFlight.path = path;
+            inFlight.callback = callback;
+            inFlight.reported = false;
+            if (FlightRecorder.isInitialized()) {
+                var event = new CallbackDurationEvent();
+                event.path = path;
+                event.service = service.getClass().getName();
+                event.callback = callback;
+                event.begin();
+                inFlight.event = event;
+            }
+            inFlight.startNanos = start;
+        }
+        return start;
+    }
+
+    /**
+     * Marks the end of a callback begun with {@link #callbackStarted} and returns how long it took.
+     */
+    long callbackCompleted(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        var inFlight = current.get();
+        if (--inFlight.depth == 0) {
+            inFlight.startNanos = 0;
+            var event = inFlight.event;
+            if (event != null) {
+                inFlight.event = null;
+                event.commit();
+            }
+            long threshold = thresholdNanos;
+            if (threshold > 0 && elapsed >= threshold && !inFlight.reported) {
+                logger.warn("{} callback for {} took {} ms on {}", inFlight.callback, inFlight.path,
+                        TimeUnit.NANOSECONDS.toMillis(elapsed), inFlight.thread.getName());
+            }
+        }
+        return elapsed;
+    }
+
+    /**
+     * Gets the number of times an event loop was caught holding up a waiting task past the threshold.
+     */
+    long getLoopStalls() {
+        return loopStalls.get();
+    }
+
+    private void check() {
+        long threshold = thresholdNanos;
+        long now = System.nanoTime();
+        for (var inFlight : threads) {
+            if (!inFlight.thread.isAlive()) {
+                threads.remove(inFlight);
+                continue;
+            }
+            long start = inFlight.startNanos;
+            if (start != 0 && now - start >= threshold && !inFlight.reported) {
+                inFlight.reported = true;
+                logger.warn("{} callback for {} has been running for {} ms on {}", inFlight.callback, inFlight.path,
+                        TimeUnit.NANOSECONDS.toMillis(now - start), inFlight.thread.getName(),
+                        stackOf(inFlight.thread));
+            }
+        }
+        for (var probe : probes) {
+            probe.check(now, threshold);
+        }
+    }
+
+    private static Throwable stackOf(Thread thread) {
+        var sample = new Throwable("stack of " + thread.getName());
+        sample.setStackTrace(thread.getStackTrace());
+        return sample;
+    }
+
+    /**
+     * What one thread is currently running; written only by that thread and read by the watchdog.
+     */
+    private static final class InFlight {
+        private final Thread thread;
+        private int depth;
+        private CallbackDurationEvent event;
+        private volatile String path;
+        private volatile String callback;
+        private volatile long startNanos;
+        private volatile boolean reported;
+
+        private InFlight(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * Measures one event loop's scheduling delay with at most one probe task outstanding at a time.
+     */
+    private final class LoopProbe implements Runnable {
+        private final EventExecutor loop;
+        private volatile long submittedNanos;
+        private volatile Thread thread;
+        private volatile boolean reported;
+
+        private LoopProbe(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        private void check(long now, long threshold) {
+            long submitted = submittedNanos;
+            if (submitted == 0) {
+                if (!loop.isShuttingDown()) {
+                    submittedNanos = now;
+                    try {
+                        loop.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        // the loop began shutting down after we looked
+                        submittedNanos = 0;
+                    }
+                }
+            } else if (now - submitted >= threshold && !reported) {
+                reported = true;
+                loopStalls.increment();
+                var loopThread = thread;
+                if (loopThread != null) {
+                    logger.warn("event loop {} has not run a waiting task for {} ms", loopThread.getName(),
+                            TimeUnit.NANOSECONDS.toMillis(now - submitted), stackOf(loopThread));
+                } else {
+                    logger.warn("event loop has not run a waiting task for {} ms",
+                            TimeUnit.NANOSECONDS.toMillis(now - submitted));
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            loopDelay.recordNanos(System.nanoTime() - submittedNanos);
+            thread = Thread.currentThread();
+            reported = false;
+            submittedNanos = 0;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+/**
+ * Hashed timer wheel owned by one event loop and advanced by a single periodic task on it, so that any number of
+ * connection timers cost one scheduled task per loop rather than one each. Timers hang off the bucket for their
+ * deadline tick in intrusive linked lists, making scheduling and cancelling O(1); a deadline further out than one
+ * turn of the wheel just stays in its bucket until the right turn comes round. Not thread-safe: every method must be
+ * called on the owning loop.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class TimerWheel {
+    private static final int DEFAULT_BUCKETS = 512;
+
+    private final Timer[] buckets;
+    private final int mask;
+    private long tick;
+    private int size;
+
+    TimerWheel() {
+        this(DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param buckets number of buckets, rounded up to a power of two
+     */
+    TimerWheel(int buckets) {
+        int n = Integer.highestOneBit(Math.max(1, buckets - 1)) << 1;
+        this.buckets = new Timer[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Gets the current tick, which doubles as a cheap coarse clock for the timers' owners.
+     */
+    long now() {
+        return tick;
+    }
+
+    /**
+     * Gets the number of timers scheduled.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Schedules the timer to expire the given number of ticks from now, at least one; a timer already scheduled is
+     * moved.
+     */
+    void schedule(Timer timer, long delayTicks) {
+        cancel(timer);
+        timer.deadline = tick + Math.max(1, delayTicks);
+        int bucket = (int) (timer.deadline & mask);
+        timer.bucket = bucket;
+        timer.next = buckets[bucket];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        buckets[bucket] = timer;
+        size++;
+    }
+
+    void cancel(Timer timer) {
+        if (timer.bucket < 0) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[timer.bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.bucket = -1;
+        size--;
+    }
+
+    /**
+     * Advances one tick and expires every timer due by then; a timer may reschedule itself from {@link
+     * Timer#expired}.
+     */
+    void tick() {
+        tick++;
+        var timer = buckets[(int) (tick & mask)];
+        while (timer != null) {
+            var next = timer.next;
+            if (timer.deadline <= tick) {
+                cancel(timer);
+                timer.expired(tick);
+            }
+            timer = next;
+        }
+    }
+
+    /**
+     * One entry in the wheel; carries its own list links so scheduling allocates nothing.
+     */
+    abstract static class Timer {
+        private Timer prev;
+        private Timer next;
+        private int bucket = -1;
+        private long deadline;
+
+        boolean isScheduled() {
+            return bucket >= 0;
+        }
+
+        /**
+         * Called on the owning loop once the deadline has passed.
+         */
+        abstract void expired(long now);
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wisp.api.Configuration;
+import wisp.api.Counter;
+import wisp.api.MetricsRegistry;
+import wisp.websocket.api.BroadcastBridge;
+import wisp.websocket.api.BroadcastRelay;
+import wisp.websocket.api.Broadcaster;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+
+/**
+ * Default {@link Broadcaster} which keeps each topic's members bucketed by event loop. A publish encodes the frame
+ * once, then submits one task per event loop which writes a retained duplicate of the shared bytes to each member
+ * on that loop, so no cross-thread handoff happens per subscriber. Members which can take a message compressed
+ * without context takeover are sent a compressed frame, which is likewise built once per message. Any
+ * {@link BroadcastBridge}s are told of topics coming and going on this node and passed each message published or
+ * relayed here.
+ * <p>
+ * Topics which number their messages have a {@link ReplayBuffer}, whose monitor is held from claiming a sequence
+ * number until the message's tasks are queued, so each event loop sees a topic's messages in sequence order. A
+ * resuming session is subscribed by a task queued on its own loop under that same monitor: publishes queued before
+ * it are covered by the replay and those queued after it find the session subscribed, so nothing is lost or sent
+ * twice. Until the task runs the topic holds a reservation for that loop, so later publishes queue a task there.
+ * A topic's buffer is only kept while it has members on this node; once the last leaves, or when a message is
+ * numbered for a topic with none, the buffer is retired and just its last sequence number remembered, in a map of
+ * bounded size. A buffer is looked up again after its monitor is taken, in case it was retired meanwhile.
+ * Messages relayed from other nodes keep the number they were given where they were published.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class TopicBroadcaster implements Broadcaster {
+    private static final Logger logger = LoggerFactory.getLogger(TopicBroadcaster.class);
+    private static final AttributeKey<Set<String>> SUBSCRIPTIONS =
+            AttributeKey.valueOf(TopicBroadcaster.class, "SUBSCRIPTIONS");
+
+    private final ConcurrentMap<String, Topic> topics = new ConcurrentHashMap<>();
+    private final PreparedFrameCache frames;
+    private final List<BroadcastBridge> bridges = new CopyOnWriteArrayList<>();
+    private volatile boolean numberAll;
+    private final BroadcastRelay local = new LocalBroadcaster();
+    private final ConcurrentMap<String, ReplayBuffer> replays = new ConcurrentHashMap<>();
+    private final LongAdder replayBytes = new LongAdder();
+    private final Counter replayed = new Counter();
+    private int replayMaxMessages = 0;
+    private long replayMaxBytes = 0;
+    private int maxIdleTopics = 65536;
+    private final Map<String, Long> idleSequences = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > maxIdleTopics;
+        }
+    };
+
+    TopicBroadcaster(PreparedFrameCache frames) {
+        this.frames = frames;
+    }
+
+    void configure(Configuration config) {
+        if (config.hasPath("wisp.websocket.replay.maxMessages")) {
+            replayMaxMessages = config.getInt("wisp.websocket.replay.maxMessages");
+        }
+
+        if (config.hasPath("wisp.websocket.replay.maxBytes")) {
+            replayMaxBytes = config.getLong("wisp.websocket.replay.maxBytes");
+        }
+
+        if (config.hasPath("wisp.websocket.replay.maxIdleTopics")) {
+            maxIdleTopics = config.getInt("wisp.websocket.replay.maxIdleTopics");
+        }
+    }
+
+    void register(MetricsRegistry registry) {
+        registry.register("wisp_websocket_replay_bytes",
+                "Encoded bytes of recent broadcast messages kept for resuming sessions.", Map.of(),
+                replayBytes::sum);
+        registry.register("wisp_websocket_replayed_messages_total",
+                "Broadcast messages sent again to sessions resuming a topic.", Map.of(), replayed);
+    }
+
+    void addBridge(BroadcastBridge bridge) {
+        bridges.add(bridge);
+        if (bridge.requiresNumbering()) {
+            numberAll = true;
+        }
+        bridge.bind(local);
+    }
+
+    @Override
+    public void subscribe(String topic, WebSocket webSocket) {
+        var session = toSession(webSocket);
+        getSubscriptions(session).add(topic);
+        topics.compute(topic, (name, members) -> {
+            members = orNewTopic(name, members);
+            members.add(session);
+            return members;
+        });
+        unsubscribeIfClosed(topic, session);
+    }
+
+    @Override
+    public void unsubscribe(String topic, WebSocket webSocket) {
+        var session = toSession(webSocket);
+        var remaining = topics.computeIfPresent(topic, (name, members) -> {
+            members.remove(session);
+            return orNoTopic(name, members);
+        });
+        getSubscriptions(session).remove(topic);
+        if (remaining == null) {
+            trimReplay(topic);
+        }
+    }
+
+    @Override
+    public boolean resume(String topic, WebSocket webSocket, long lastSequence) {
+        var session = toSession(webSocket);
+        // a topic numbered before, whose buffer has since been retired, can be resumed from its last number
+        var replay = getReplay(topic, numberAll || replays.containsKey(topic) || getIdleSequence(topic) > 0);
+        if (replay == null) {
+            subscribe(topic, webSocket);
+            return false;
+        }
+        synchronized (replay) {
+            if (replay.isRetired()) {
+                return resume(topic, webSocket, lastSequence);
+            }
+            if (!replay.covers(lastSequence)) {
+                subscribe(topic, webSocket);
+                return false;
+            }
+            var missed = replay.since(lastSequence);
+            var eventLoop = session.getChannel().eventLoop();
+            topics.compute(topic, (name, members) -> {
+                members = orNewTopic(name, members);
+                members.reserve(eventLoop);
+                return members;
+            });
+            eventLoop.execute(() -> {
+                for (var frame : missed) {
+                    try {
+                        session.writeEncoded(frame.getFor(session).retainedDuplicate());
+                    } finally {
+                        frame.release();
+                    }
+                }
+                replayed.add(missed.size());
+                getSubscriptions(session).add(topic);
+                topics.compute(topic, (name, members) -> {
+                    members.add(session);
+                    members.unreserve(eventLoop);
+                    return members;
+                });
+                unsubscribeIfClosed(topic, session);
+            });
+            return true;
+        }
+    }
+
+    @Override
+    public long getSequence(String topic) {
+        var replay = replays.get(topic);
+        if (replay == null) {
+            return getIdleSequence(topic);
+        }
+        synchronized (replay) {
+            return replay.getSequence();
+        }
+    }
+
+    @Override
+    public int getSubscriberCount(String topic) {
+        var members = topics.get(topic);
+        return members == null ? 0 : members.size();
+    }
+
+    @Override
+    public void publish(String topic, CharSequence text) {
+        var replay = getReplay(topic, numberAll);
+        if (replay != null) {
+            publishNumbered(replay, topic, sequence -> prepareBridged(topic, sequence, text));
+            return;
+        }
+        var members = topics.get(topic);
+        if (members != null) {
+            publish(members, frames.prepare(text));
+        }
+        for (var bridge : bridges) {
+            bridge.published(topic, 0, text);
+        }
+    }
+
+    @Override
+    public void publish(String topic, ByteBuffer binary) {
+        var replay = getReplay(topic, numberAll);
+        if (replay != null) {
+            publishNumbered(replay, topic, sequence -> prepareBridged(topic, sequence, binary));
+            return;
+        }
+        var members = topics.get(topic);
+        if (members != null) {
+            publish(members, frames.prepare(binary));
+        }
+        for (var bridge : bridges) {
+            bridge.published(topic, 0, binary);
+        }
+    }
+
+    @Override
+    public long publishText(String topic, LongFunction<? extends CharSequence> message) {
+        return publishNumbered(getReplay(topic, true), topic,
+                sequence -> prepareBridged(topic, sequence, message.apply(sequence)));
+    }
+
+    @Override
+    public long publishBinary(String topic, LongFunction<ByteBuffer> message) {
+        return publishNumbered(getReplay(topic, true), topic,
+                sequence -> prepareBridged(topic, sequence, message.apply(sequence)));
+    }
+
+    private PreparedFrame prepareBridged(String topic, long sequence, CharSequence text) {
+        var frame = frames.prepare(text);
+        for (var bridge : bridges) {
+            bridge.published(topic, sequence, text);
+        }
+        return frame;
+    }
+
+    private PreparedFrame prepareBridged(String topic, long sequence, ByteBuffer binary) {
+        var frame = frames.prepare(binary);
+        for (var bridge : bridges) {
+            bridge.published(topic, sequence, binary);
+        }
+        return frame;
+    }
+
+    private PreparedFrame prepareRelayed(String topic, long sequence, CharSequence text) {
+        var frame = frames.prepare(text);
+        for (var bridge : bridges) {
+            bridge.relayed(topic, sequence, text);
+        }
+        return frame;
+    }
+
+    private PreparedFrame prepareRelayed(String topic, long sequence, ByteBuffer binary) {
+        var frame = frames.prepare(binary);
+        for (var bridge : bridges) {
+            bridge.relayed(topic, sequence, binary);
+        }
+        return frame;
+    }
+
+    /**
+     * Gets the topic's replay buffer, creating it if replay is configured or the caller is about to number a
+     * message; null otherwise.
+     */
+    private ReplayBuffer getReplay(String topic, boolean numbering) {
+        if (numbering || replayMaxMessages > 0 || replayMaxBytes > 0) {
+            return replays.computeIfAbsent(topic,
+                    name -> new ReplayBuffer(replayMaxMessages, replayMaxBytes, replayBytes, getIdleSequence(name)));
+        }
+        return replays.get(topic);
+    }
+
+    /**
+     * Gets the last sequence number of a topic without a replay buffer, as remembered here or by a bridge.
+     */
+    private long getIdleSequence(String topic) {
+        long sequence;
+        synchronized (idleSequences) {
+            sequence = idleSequences.getOrDefault(topic, 0L);
+        }
+        for (var bridge : bridges) {
+            sequence = Math.max(sequence, bridge.getSequence(topic));
+        }
+        return sequence;
+    }
+
+    /**
+     * Drops a topic's replay buffer, remembering only its numbering; the caller holds the buffer's monitor.
+     */
+    private void retire(String topic, ReplayBuffer replay) {
+        replay.retire();
+        synchronized (idleSequences) {
+            idleSequences.put(topic, replay.getSequence());
+        }
+        replays.remove(topic, replay);
+    }
+
+    /**
+     * Numbers, keeps and sends one message built while holding the topic's replay buffer.
+     */
+    private long publishNumbered(ReplayBuffer replay, String topic, LongFunction<PreparedFrame> prepare) {
+        return publishNumbered(replay, topic, 0, prepare);
+    }
+
+    /**
+     * As {@link #publishNumbered(ReplayBuffer, String, LongFunction)}, but for a message relayed from another node
+     * with the number it was given there, if not 0; one numbered out of order is sent but not kept, and is built
+     * as though it had no number.
+     */
+    private long publishNumbered(ReplayBuffer replay, String topic, long relayed,
+                                 LongFunction<PreparedFrame> prepare) {
+        synchronized (replay) {
+            if (replay.isRetired()) {
+                return publishNumbered(getReplay(topic, true), topic, relayed, prepare);
+            }
+            long sequence = relayed;
+            boolean keep = true;
+            if (relayed == 0) {
+                sequence = replay.next();
+            } else if (!replay.follow(relayed)) {
+                keep = false;
+                if (replay.markConflicted()) {
+                    logger.warn("topic {} is numbered by more than one node; sessions resuming it will be told of "
+                            + "a gap", topic);
+                }
+            }
+            var frame = prepare.apply(keep ? sequence : 0);
+            var members = topics.get(topic);
+            if (members != null) {
+                if (keep) {
+                    replay.add(sequence, frame);
+                }
+                publish(members, frame);
+            } else {
+                frame.release();
+                retire(topic, replay);
+            }
+            return sequence;
+        }
+    }
+
+    private Topic orNewTopic(String name, Topic members) {
+        if (members == null) {
+            members = new Topic();
+            for (var bridge : bridges) {
+                bridge.topicAdded(name);
+            }
+        }
+        return members;
+    }
+
+    private Topic orNoTopic(String name, Topic members) {
+        if (!members.isEmpty()) {
+            return members;
+        }
+        for (var bridge : bridges) {
+            bridge.topicRemoved(name);
+        }
+        return null;
+    }
+
+    private void publish(Topic members, PreparedFrame frame) {
+        try {
+            for (var entry : members.byEventLoop.entrySet()) {
+                var sessions = entry.getValue();
+                if (sessions.isEmpty() && !members.reserved.containsKey(entry.getKey())) {
+                    continue;
+                }
+                frame.retain();
+                entry.getKey().execute(() -> {
+                    try {
+                        for (var session : sessions) {
+                            session.writeEncoded(frame.getFor(session).retainedDuplicate());
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                });
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Retires the replay buffer of a topic left without subscribers, keeping only its numbering, so that topics which
+     * come and go, e.g. one per user, hold on to nothing once they are gone. Done outside the topic's compute, since
+     * a resume locks the replay buffer first.
+     */
+    private void trimReplay(String topic) {
+        var replay = replays.get(topic);
+        if (replay == null) {
+            return;
+        }
+        synchronized (replay) {
+            if (!replay.isRetired() && !topics.containsKey(topic)) {
+                retire(topic, replay);
+            }
+        }
+    }
+
+    /**
+     * Takes a session just added to a topic back out if it has closed meanwhile; its close listener may have run
+     * before it was a member, e.g. when subscribing from a callback thread.
+     */
+    private void unsubscribeIfClosed(String topic, WebSocketSessionImpl session) {
+        if (session.getChannel().closeFuture().isDone()) {
+            unsubscribe(topic, session);
+        }
+    }
+
+    private Set<String> getSubscriptions(WebSocketSessionImpl session) {
+        var channel = session.getChannel();
+        var subscriptions = channel.attr(SUBSCRIPTIONS).get();
+        if (subscriptions == null) {
+            Set<String> newSubscriptions = ConcurrentHashMap.newKeySet();
+            subscriptions = channel.attr(SUBSCRIPTIONS).setIfAbsent(newSubscriptions);
+            if (subscriptions == null) {
+                subscriptions = newSubscriptions;
+
+                // one listener per session, however many topics it joins
+                channel.closeFuture().addListener(future -> {
+                    for (var topic : newSubscriptions) {
+                        unsubscribe(topic, session);
+                    }
+                });
+            }
+        }
+        return subscriptions;
+    }
+
+    private static WebSocketSessionImpl toSession(WebSocket webSocket) {
+        if (!(webSocket instanceof WebSocketSessionImpl)) {
+            throw new IllegalArgumentException("not a Wisp session: " + webSocket);
+        }
+        return (WebSocketSessionImpl) webSocket;
+    }
+
+    /**
+     * View handed to bridges which publishes to this node's subscribers only.
+     */
+    private class LocalBroadcaster implements BroadcastRelay {
+        @Override
+        public void subscribe(String topic, WebSocket webSocket) {
+            TopicBroadcaster.this.subscribe(topic, webSocket);
+        }
+
+        @Override
+        public void unsubscribe(String topic, WebSocket webSocket) {
+            TopicBroadcaster.this.unsubscribe(topic, webSocket);
+        }
+
+        @Override
+        public boolean resume(String topic, WebSocket webSocket, long lastSequence) {
+            return TopicBroadcaster.this.resume(topic, webSocket, lastSequence);
+        }
+
+        @Override
+        public int getSubscriberCount(String topic) {
+            return TopicBroadcaster.this.getSubscriberCount(topic);
+        }
+
+        @Override
+        public long getSequence(String topic) {
+            return TopicBroadcaster.this.getSequence(topic);
+        }
+
+        @Override
+        public void publish(String topic, CharSequence text) {
+            relay(topic, 0, text);
+        }
+
+        @Override
+        public void publish(String topic, ByteBuffer binary) {
+            relay(topic, 0, binary);
+        }
+
+        @Override
+        public void relay(String topic, long sequence, CharSequence text) {
+            if (sequence > 0) {
+                publishNumbered(getReplay(topic, true), topic, sequence,
+                        number -> prepareRelayed(topic, number, text));
+                return;
+            }
+            var members = topics.get(topic);
+            if (members != null) {
+                TopicBroadcaster.this.publish(members, frames.prepare(text));
+            }
+            for (var bridge : bridges) {
+                bridge.relayed(topic, 0, text);
+            }
+        }
+
+        @Override
+        public void relay(String topic, long sequence, ByteBuffer binary) {
+            if (sequence > 0) {
+                publishNumbered(getReplay(topic, true), topic, sequence,
+                        number -> prepareRelayed(topic, number, binary));
+                return;
+            }
+            var members = topics.get(topic);
+            if (members != null) {
+                TopicBroadcaster.this.publish(members, frames.prepare(binary));
+            }
+            for (var bridge : bridges) {
+                bridge.relayed(topic, 0, binary);
+            }
+        }
+
+        @Override
+        public long publishText(String topic, LongFunction<? extends CharSequence> message) {
+            return publishNumbered(getReplay(topic, true), topic, sequence -> frames.prepare(message.apply(sequence)));
+        }
+
+        @Override
+        public long publishBinary(String topic, LongFunction<ByteBuffer> message) {
+            return publishNumbered(getReplay(topic, true), topic, sequence -> frames.prepare(message.apply(sequence)));
+        }
+    }
+
+    /**
+     * Members of a single topic; only mutated from within {@link ConcurrentMap#compute} on the topic's entry. A
+     * reservation keeps an event loop's bucket, and the topic, in place for a session that is yet to be added.
+     */
+    private static class Topic {
+        private final Map<EventLoop, Set<WebSocketSessionImpl>> byEventLoop = new ConcurrentHashMap<>();
+        private final Map<EventLoop, Integer> reserved = new ConcurrentHashMap<>();
+        private volatile int size;
+
+        void reserve(EventLoop eventLoop) {
+            byEventLoop.computeIfAbsent(eventLoop, loop -> ConcurrentHashMap.newKeySet());
+            reserved.merge(eventLoop, 1, Integer::sum);
+        }
+
+        void unreserve(EventLoop eventLoop) {
+            reserved.computeIfPresent(eventLoop, (loop, count) -> count == 1 ? null : count - 1);
+        }
+
+        void add(WebSocketSessionImpl session) {
+            var eventLoop = session.getChannel().eventLoop();
+            if (byEventLoop.computeIfAbsent(eventLoop, loop -> ConcurrentHashMap.newKeySet()).add(session)) {
+                size++;
+            }
+        }
+
+        void remove(WebSocketSessionImpl session) {
+            var sessions = byEventLoop.get(session.getChannel().eventLoop());
+            if (sessions != null && sessions.remove(session)) {
+                size--;
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0 && reserved.isEmpty();
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.util.Locale;
+
+/**
+ * Netty I/O transports which the {@link WebsocketServer} can run on, selected via wisp.websocket.transport.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+enum Transport {
+    /**
+     * Picks the fastest transport available on this host, falling back to NIO.
+     */
+    AUTO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        Transport resolve() {
+            return EPOLL.isAvailable() ? EPOLL : NIO;
+        }
+    },
+
+    /**
+     * Portable JDK selector-based transport.
+     */
+    NIO {
+        @Override
+        boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new NioEventLoopGroup(nThreads);
+        }
+
+        @Override
+        Class<? extends ServerChannel> getServerChannelClass() {
+            return NioServerSocketChannel.class;
+        }
+    },
+
+    /**
+     * Linux-only JNI transport; supports edge-triggered mode, SO_REUSEPORT and TCP_FASTOPEN.
+     */
+    EPOLL {
+        @Override
+        boolean isAvailable() {
+            return Epoll.isAvailable();
+        }
+
+        @Override
+        Throwable getUnavailabilityCause() {
+            return Epoll.unavailabilityCause();
+        }
+
+        @Override
+        EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new EpollEventLoopGroup(nThreads);
+        }
+
+        @Override
+        Class<? extends ServerChannel> getServerChannelClass() {
+            return EpollServerSocketChannel.class;
+        }
+    },
+
+    /**
+     * Reserved for the io_uring transport, which requires a newer Netty release than the one Wisp ships with;
+     * always reported as unavailable so selecting it falls back to {@link #AUTO}.
+     */
+    IO_URING {
+        @Override
+        boolean isAvailable() {
+            return false;
+        }
+    };
+
+    abstract boolean isAvailable();
+
+    /**
+     * Gets the reason this transport cannot be used, if known.
+     */
+    Throwable getUnavailabilityCause() {
+        return null;
+    }
+
+    /**
+     * Gets the concrete transport to use, substituting a fallback if this one cannot run on the current host.
+     */
+    Transport resolve() {
+        return isAvailable() ? this : AUTO.resolve();
+    }
+
+    EventLoopGroup newEventLoopGroup(int nThreads) {
+        return resolve().newEventLoopGroup(nThreads);
+    }
+
+    Class<? extends ServerChannel> getServerChannelClass() {
+        return resolve().getServerChannelClass();
+    }
+
+    /**
+     * Parses a transport name as written in config, e.g. auto, nio, epoll or io_uring.
+     */
+    static Transport fromName(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.US).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unknown wisp.websocket.transport: " + name);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a text message delivered as a series of fragments. Fragment boundaries may fall in the middle of a
+ * multi-byte character, so up to three trailing bytes of an incomplete sequence are carried over into the next
+ * fragment rather than decoded as garbage.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+class Utf8FragmentDecoder {
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer carry = ByteBuffer.allocate(4);
+
+    /**
+     * Decodes the next fragment of the current message; the decoder is ready for a new message after the last one.
+     */
+    String decode(ByteBuffer fragment, boolean last) {
+        var in = fragment;
+        if (carry.position() > 0) {
+            carry.flip();
+            in = ByteBuffer.allocate(carry.remaining() + fragment.remaining());
+            in.put(carry).put(fragment).flip();
+            carry.clear();
+        }
+
+        // UTF-8 never yields more chars than bytes
+        var out = CharBuffer.allocate(in.remaining());
+        decoder.decode(in, out, last);
+        if (last) {
+            decoder.flush(out);
+            decoder.reset();
+        } else {
+            carry.put(in);
+        }
+        return out.flip().toString();
+    }
+}
@@ -16,105 +16,126 @@
 
 package wisp.websocket;
 
-import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.http.websocketx.*;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionEncoder;
 import wisp.websocket.api.WebSocketService;
 
-import java.net.http.WebSocket;
-import java.nio.ByteBuffer;
-import java.util.concurrent.CompletableFuture;
-
 /**
- * Handler which dispatches incoming WebSocketFrames to handler code.
+ * Handler which dispatches incoming WebSocketFrames to handler code. A single instance is shared by every
+ * connection to a given {@link WebSocketService}; per-connection state lives in the channel's session attribute.
  *
  * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
  */
+@ChannelHandler.Sharable
 public class WebSocketFrameHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
-    private final WebSocketService wss;
+    // RFC 6455 close code for a message too large to process
+    private static final int MESSAGE_TOO_BIG = 1009;
 
-    WebSocketFrameHandler(WebSocketService wss) {
+    private final WebSocketService wss;
+    private final ServiceSettings settings;
+    private final CallbackDispatcher dispatcher;
+    private final ServiceMetrics metrics;
+    private final ShardedSessionRegistry sessions;
+
+    WebSocketFrameHandler(WebSocketService wss, ServiceSettings settings, CallbackDispatcher dispatcher,
+                          ServiceMetrics metrics, ShardedSessionRegistry sessions) {
+        // the session releases frames itself once the service is finished with them
+        super(false);
         this.wss = wss;
+        this.settings = settings;
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
+        this.sessions = sessions;
     }
 
-    @Override
-    protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) {
-        // ping and pong frames already handled
-        if (frame instanceof TextWebSocketFrame) {
-            wss.onText(new WebSocketImpl(ctx), ((TextWebSocketFrame) frame).text(), true);
-        } else if (frame instanceof BinaryWebSocketFrame) {
-            wss.onBinary(new WebSocketImpl(ctx), frame.content().nioBuffer(), true);
-        } else if (frame instanceof CloseWebSocketFrame) {
-            wss.onClose(new WebSocketImpl(ctx), ((CloseWebSocketFrame) frame).statusCode(),
-                    ((CloseWebSocketFrame) frame).reasonText());
-        } else {
-            String message = "unsupported frame type: " + frame.getClass().getName();
-            throw new UnsupportedOperationException(message);
-        }
+    ServiceSettings getSettings() {
+        return settings;
     }
 
-    private class WebSocketImpl implements WebSocket {
-        private final ChannelHandlerContext ctx;
-
-        WebSocketImpl(ChannelHandlerContext ctx) {
-            this.ctx = ctx;
-        }
-
-        @Override
-        public CompletableFuture<WebSocket> sendText(CharSequence message, boolean isLast) {
-            return writeFrameLater(new TextWebSocketFrame(message.toString()));
-        }
-
-        @Override
-        public CompletableFuture<WebSocket> sendBinary(ByteBuffer message, boolean isLast) {
-            return writeFrameLater(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(message)));
-        }
-
-        @Override
-        public CompletableFuture<WebSocket> sendPing(ByteBuffer message) {
-            return writeFrameLater(new PingWebSocketFrame(Unpooled.wrappedBuffer(message)));
-        }
+    ServiceMetrics getMetrics() {
+        return metrics;
+    }
 
-        @Override
-        public CompletableFuture<WebSocket> sendPong(ByteBuffer message) {
-            return writeFrameLater(new PongWebSocketFrame(Unpooled.wrappedBuffer(message)));
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+            var handshake = (WebSocketServerProtocolHandler.HandshakeComplete) evt;
+            var session = new WebSocketSessionImpl(ctx.channel(), handshake.selectedSubprotocol(), wss,
+                    dispatcher.newSessionExecutor(), metrics);
+            ctx.channel().attr(WebSocketSessionImpl.SESSION).set(session);
+            var encoder = ctx.pipeline().context(WebSocketExtensionEncoder.class);
+            if (encoder != null) {
+                CompressionMonitor.install(ctx.pipeline(), encoder, settings.getCompressionMinSize(), metrics);
+                if (settings.isServerNoContextTakeover()) {
+                    session.acceptDeflatedFrames(settings.getCompressionLevel(), settings.getCompressionMinSize());
+                }
+            }
+            session.setRateLimiter(InboundRateLimiter.create(settings, System.nanoTime()));
+            sessions.register(session);
+            session.open();
         }
+        super.userEventTriggered(ctx, evt);
+    }
 
-        @Override
-        public CompletableFuture<WebSocket> sendClose(int statusCode, String reason) {
-            return writeFrameLater(new CloseWebSocketFrame(statusCode, reason));
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) {
+        // ping, pong and close frames already handled
+        var session = WebSocketSessionImpl.get(ctx.channel());
+        if (session == null) {
+            frame.release();
+            throw new IllegalStateException("frame received before handshake completed");
         }
-
-        @Override
-        public void request(long n) {
-            throw new UnsupportedOperationException();
+        if (session.isInputClosed()) {
+            frame.release();
+            return;
         }
-
-        @Override
-        public String getSubprotocol() {
-            return null;
+        var rateLimiter = session.getRateLimiter();
+        if (rateLimiter != null && !rateLimiter.tryAcquire(frame, System.nanoTime())) {
+            frame.release();
+            metrics.rateLimited();
+            session.refuse(settings.getRateLimitCloseCode(), "rate limit exceeded");
+            return;
         }
+        session.enqueue(frame);
+    }
 
-        @Override
-        public boolean isOutputClosed() {
-            return false;
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        var session = WebSocketSessionImpl.get(ctx.channel());
+        if (session != null) {
+            sessions.unregister(session);
+            session.closed();
         }
+        super.channelInactive(ctx);
+    }
 
-        @Override
-        public boolean isInputClosed() {
-            return false;
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        var session = WebSocketSessionImpl.get(ctx.channel());
+        if (session != null) {
+            session.writabilityChanged();
         }
+        super.channelWritabilityChanged(ctx);
+    }
 
-        @Override
-        public void abort() {
-            throw new UnsupportedOperationException();
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        var session = WebSocketSessionImpl.get(ctx.channel());
+        if (session != null) {
+            session.failed(cause);
         }
-
-        private CompletableFuture<WebSocket> writeFrameLater(WebSocketFrame frame) {
-            var thisFuture = new CompletableFuture<WebSocket>();
-            ctx.channel().writeAndFlush(frame).addListener(future -> thisFuture.complete(WebSocketImpl.this));
-            return thisFuture;
+        if (cause instanceof TooLongFrameException && ctx.channel().isActive()) {
+            ctx.writeAndFlush(new CloseWebSocketFrame(MESSAGE_TOO_BIG, "message too big"))
+                    .addListener(ChannelFutureListener.CLOSE);
+        } else {
+            ctx.close();
         }
     }
-}
\ No newline at end of file
+}
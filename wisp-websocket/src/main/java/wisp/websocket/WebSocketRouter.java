@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Shared handler which looks at the first HTTP request on a channel, finds the
+ * {@link wisp.websocket.api.WebSocketService} registered for its path and installs just that service's handshaker
+ * and frame handler in its own place, with a frame aggregator between them unless the service streams fragments
+ * and a permessage-deflate negotiator in front unless the service has compression turned off, and in front of
+ * everything an {@link IdleReaper} if the service has idle timeouts, where it sees every frame including pongs.
+ * Upgrades which would take the server or the service over its session limit are refused with 503 (service
+ * unavailable).
+ * Lookup is a single hash probe for exact paths; sub-paths like /echo/room1 are matched by walking back one path
+ * segment at a time.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+@ChannelHandler.Sharable
+public class WebSocketRouter extends ChannelInboundHandlerAdapter {
+    private final Map<String, WebSocketFrameHandler> frameHandlers = new HashMap<>();
+    private final Map<String, CompressionHandshaker> compressionHandshakers = new HashMap<>();
+    private final AdmissionControl admission;
+    private final IdleTimers idleTimers;
+
+    WebSocketRouter(Map<String, WebSocketFrameHandler> frameHandlers, AdmissionControl admission,
+                    IdleTimers idleTimers) {
+        this.frameHandlers.putAll(frameHandlers);
+        this.admission = admission;
+        this.idleTimers = idleTimers;
+        for (var entry : frameHandlers.entrySet()) {
+            var settings = entry.getValue().getSettings();
+            if (settings.isCompressionEnabled()) {
+                compressionHandshakers.put(entry.getKey(), new CompressionHandshaker(settings));
+            }
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (!(msg instanceof FullHttpRequest)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        var request = (FullHttpRequest) msg;
+        var path = new QueryStringDecoder(request.uri()).path();
+        var servicePath = route(path);
+        if (servicePath == null) {
+            ReferenceCountUtil.release(msg);
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1, HttpResponseStatus.NOT_FOUND))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+
+        var frameHandler = frameHandlers.get(servicePath);
+        var settings = frameHandler.getSettings();
+        if (!admission.admitSession(ctx.channel(), settings)) {
+            frameHandler.getMetrics().sessionRejected();
+            ReferenceCountUtil.release(msg);
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE))
+                    .addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+
+        var pipeline = ctx.pipeline();
+        pipeline.addAfter(ctx.name(), null, frameHandler);
+        if (!settings.isStreamFragments()) {
+            pipeline.addAfter(ctx.name(), null, new WebSocketFrameAggregator(settings.getMaxMessageSize()));
+        }
+        pipeline.addAfter(ctx.name(), null,
+                new SessionAwareProtocolHandler(servicePath, settings.getMaxFramePayloadLength()));
+        var compression = compressionHandshakers.get(servicePath);
+        if (compression != null) {
+            pipeline.addAfter(ctx.name(), null, new WebSocketServerExtensionHandler(compression));
+        }
+        if (IdleReaper.isEnabled(settings)) {
+            pipeline.addAfter(ctx.name(), null, new IdleReaper(idleTimers, settings, frameHandler.getMetrics()));
+        }
+
+        // the protocol handler has now inserted its handshaker directly after us, so hand over the upgrade request
+        ctx.fireChannelRead(msg);
+        if (pipeline.context(this) != null) {
+            pipeline.remove(this);
+        }
+    }
+
+    /**
+     * Finds the registered service path which best matches the given request path, or null if none does.
+     */
+    String route(String path) {
+        while (!path.isEmpty()) {
+            if (frameHandlers.containsKey(path)) {
+                return path;
+            }
+            int slash = path.lastIndexOf('/');
+            if (slash < 0) {
+                break;
+            }
+            path = path.substring(0, slash);
+        }
+        return frameHandlers.containsKey("/") ? "/" : null;
+    }
+}
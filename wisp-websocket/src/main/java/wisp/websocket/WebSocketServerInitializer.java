@@ -15,46 +15,54 @@
  */
 package wisp.websocket;
 
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.group.ChannelGroup;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
-import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
-import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketServerCompressionHandler;
 import io.netty.handler.ssl.SslContext;
-import wisp.websocket.api.WebSocketService;
 
 import java.util.Map;
+import java.util.function.Supplier;
 
 /**
  * Helper to set up Netty channel pipeline for HTTP, HTTPS and Websockets.
  *
  * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
  */
-public class WebSocketServerInitializer extends ChannelInitializer<SocketChannel> {
-    private final SslContext sslCtx;
-    private final Map<String, WebSocketService> servicePaths;
+public class WebSocketServerInitializer extends ChannelInitializer<Channel> {
+    private final Supplier<SslContext> sslCtx;
+    private final WebSocketRouter router;
+    private final ChannelGroup connections;
+    private final AdmissionControl admission;
 
-    WebSocketServerInitializer(SslContext sslCtx, Map<String, WebSocketService> servicePaths) {
+    WebSocketServerInitializer(Supplier<SslContext> sslCtx, Map<String, WebSocketFrameHandler> frameHandlers,
+                               ChannelGroup connections, AdmissionControl admission, IdleTimers idleTimers) {
         this.sslCtx = sslCtx;
-        this.servicePaths = servicePaths;
+        this.router = new WebSocketRouter(frameHandlers, admission, idleTimers);
+        this.connections = connections;
+        this.admission = admission;
     }
 
     @Override
-    public void initChannel(SocketChannel ch) {
+    public void initChannel(Channel ch) {
+        // turned away before any TLS or HTTP work is spent on it
+        if (!admission.admitConnection(ch)) {
+            ch.close();
+            return;
+        }
+
+        // tracked so the server can drain them on stop; the group drops each channel as it closes
+        connections.add(ch);
+
         ChannelPipeline pipeline = ch.pipeline();
         if (sslCtx != null) {
-            pipeline.addLast(sslCtx.newHandler(ch.alloc()));
+            // read per connection so a reloaded context only affects connections accepted after the reload
+            pipeline.addLast(sslCtx.get().newHandler(ch.alloc()));
         }
         pipeline.addLast(new HttpServerCodec());
         pipeline.addLast(new HttpObjectAggregator(65536));
-        pipeline.addLast(new WebSocketServerCompressionHandler());
-
-        for (var path : servicePaths.keySet()) {
-            var wss = servicePaths.get(path);
-            pipeline.addLast(new WebSocketServerProtocolHandler(path, null, true));
-            pipeline.addLast(new WebSocketFrameHandler(wss));
-        }
+        pipeline.addLast(router);
     }
 }
@@ -0,0 +1,656 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.websocketx.*;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import wisp.websocket.api.RetainedPayload;
+import wisp.websocket.api.Utf8Text;
+import wisp.websocket.api.WebSocketService;
+import wisp.websocket.api.WebSocketSession;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Netty channel-backed {@link WebSocketSession}, created once per connection at handshake completion and stored
+ * as a channel attribute so that every frame on that connection is dispatched against the same instance.
+ *
+ * <p>The session also implements the {@link WebSocket.Listener} demand contract: inbound frames are queued until
+ * the service has {@link #request(long) requested} them, the channel stops reading from the socket whenever
+ * demand runs out, and each frame's buffer is held until the {@link CompletionStage} returned by the callback
+ * completes or, if the service {@link #retain(ByteBuffer) retained} it, until the service releases it. All demand
+ * and queue state is confined to the channel's event loop.</p>
+ *
+ * <p>Outbound frames are written without flushing and a single flush is scheduled per event loop tick, so a burst
+ * of sends costs one syscall rather than one per frame. Send futures stay pending while the channel is above its
+ * high write-buffer watermark so that producers see backpressure. Direct buffers passed to the send methods are
+ * written straight from the caller's memory; heap buffers are copied once into a pooled direct buffer.</p>
+ *
+ * <p>Messages may be fragmented in both directions. Inbound continuation frames are delivered with the type of the
+ * message they continue and the correct last flag, and outbound sends with isLast=false start or continue a
+ * fragmented message; broadcast frames written while one is in progress wait until its final fragment is out.</p>
+ *
+ * <p>Service callbacks run on the executor supplied by the service's {@link CallbackDispatcher}: inline on the
+ * event loop by default, or serially on a worker pool for services which may block.</p>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+final class WebSocketSessionImpl implements WebSocketSession {
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketSessionImpl.class);
+
+    static final AttributeKey<WebSocketSessionImpl> SESSION =
+            AttributeKey.valueOf(WebSocketSessionImpl.class, "SESSION");
+
+    // RFC 6455 reserved codes reported locally when the peer did not send a usable close frame
+    private static final int NO_STATUS_RECEIVED = 1005;
+    private static final int ABNORMAL_CLOSURE = 1006;
+
+    // RFC 6455 codes sent when the server ends a connection
+    private static final int GOING_AWAY = 1001;
+    private static final int TRY_AGAIN_LATER = 1013;
+
+    // type of the data message whose fragments are being sent
+    private static final int NO_MESSAGE = 0;
+    private static final int TEXT_MESSAGE = 1;
+    private static final int BINARY_MESSAGE = 2;
+
+    private final Channel channel;
+    private final String subprotocol;
+    private final WebSocketService wss;
+    private final Executor callbacks;
+    private final ServiceMetrics metrics;
+    private boolean terminated;
+
+    private final Queue<WebSocketFrame> pending = new ArrayDeque<>();
+    private long demand;
+    private boolean delivering;
+    private boolean receivingText;
+    private Utf8FragmentDecoder fragmentDecoder;
+
+    // the frame whose payload is in the hands of the running callback, and the object it was passed as
+    private WebSocketFrame deliveringFrame;
+    private Object deliveringPayload;
+
+    private volatile int sendingMessage = NO_MESSAGE;
+    private boolean writingFragments;
+    private final Queue<ByteBuf> deferredEncoded = new ArrayDeque<>();
+
+    private final Queue<CompletableFuture<WebSocket>> awaitingWritable = new ArrayDeque<>();
+    private final Runnable flushTask = this::flush;
+    private boolean flushScheduled;
+
+    private boolean acceptsDeflatedFrames;
+    private int deflateLevel;
+    private int deflateMinSize;
+    private InboundRateLimiter rateLimiter;
+    private long id;
+
+    private volatile Object attachment;
+    private volatile boolean inputClosed;
+    private volatile boolean outputClosed;
+
+    private int closeStatusCode = ABNORMAL_CLOSURE;
+    private String closeReason = "";
+
+    WebSocketSessionImpl(Channel channel, String subprotocol, WebSocketService wss, Executor callbacks,
+                         ServiceMetrics metrics) {
+        this.channel = channel;
+        this.subprotocol = subprotocol;
+        this.wss = wss;
+        this.callbacks = callbacks;
+        this.metrics = metrics;
+    }
+
+    static WebSocketSessionImpl get(Channel channel) {
+        return channel.attr(SESSION).get();
+    }
+
+    Channel getChannel() {
+        return channel;
+    }
+
+    WebSocketService getService() {
+        return wss;
+    }
+
+    /**
+     * Whether encoded frames compressed from an empty dictionary can be written to this session, i.e. it
+     * negotiated permessage-deflate with no server context takeover.
+     */
+    boolean acceptsDeflatedFrames() {
+        return acceptsDeflatedFrames;
+    }
+
+    /**
+     * Lets encoded frames compressed from an empty dictionary be written to this session, compressed at its
+     * service's level and only for messages of at least its minimum size.
+     */
+    void acceptDeflatedFrames(int level, int minSize) {
+        this.acceptsDeflatedFrames = true;
+        this.deflateLevel = level;
+        this.deflateMinSize = minSize;
+    }
+
+    int getDeflateLevel() {
+        return deflateLevel;
+    }
+
+    int getDeflateMinSize() {
+        return deflateMinSize;
+    }
+
+    /**
+     * Gets the limiter for this session's inbound message and byte rates, or null if its service has none.
+     */
+    InboundRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(InboundRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getAttachment() {
+        return (T) attachment;
+    }
+
+    @Override
+    public <T> void setAttachment(T attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    public CompletableFuture<WebSocket> sendText(CharSequence message, boolean isLast) {
+        if (message instanceof Utf8Text) {
+            return sendUtf8(((Utf8Text) message).getBytes(), isLast);
+        }
+        return sendData(TEXT_MESSAGE, ByteBufUtil.writeUtf8(channel.alloc(), message), isLast);
+    }
+
+    @Override
+    public CompletableFuture<WebSocket> sendUtf8(ByteBuffer utf8, boolean isLast) {
+        return sendData(TEXT_MESSAGE, toByteBuf(utf8), isLast);
+    }
+
+    @Override
+    public CompletableFuture<WebSocket> sendBinary(ByteBuffer message, boolean isLast) {
+        return sendData(BINARY_MESSAGE, toByteBuf(message), isLast);
+    }
+
+    @Override
+    public CompletableFuture<WebSocket> sendPing(ByteBuffer message) {
+        return writeFrameLater(new PingWebSocketFrame(toByteBuf(message)));
+    }
+
+    @Override
+    public CompletableFuture<WebSocket> sendPong(ByteBuffer message) {
+        return writeFrameLater(new PongWebSocketFrame(toByteBuf(message)));
+    }
+
+    @Override
+    public RetainedPayload retain(ByteBuffer payload) {
+        return retainDelivering(payload);
+    }
+
+    @Override
+    public RetainedPayload retain(CharSequence message) {
+        return retainDelivering(message);
+    }
+
+    private RetainedPayload retainDelivering(Object payload) {
+        var frame = deliveringFrame;
+        if (frame == null || payload != deliveringPayload) {
+            throw new IllegalArgumentException("only the payload of the callback in progress can be retained");
+        }
+        if (!(payload instanceof ByteBuffer || payload instanceof Utf8Text)) {
+            return RetainedFrame.NONE;
+        }
+        return new RetainedFrame(frame.retain().touch(wss.getPath()));
+    }
+
+    /**
+     * Wraps a caller's buffer for writing. The transport can only write from direct memory, so a heap buffer
+     * would be copied at flush time anyway; doing it here from the channel's pool frees the caller's buffer
+     * sooner and keeps the copy off the event loop when sending from a worker thread.
+     */
+    private ByteBuf toByteBuf(ByteBuffer message) {
+        if (message.isDirect() || !message.hasRemaining()) {
+            return Unpooled.wrappedBuffer(message);
+        }
+        var buf = channel.alloc().ioBuffer(message.remaining());
+        buf.writeBytes(message.duplicate());
+        return buf;
+    }
+
+    @Override
+    public CompletableFuture<WebSocket> sendClose(int statusCode, String reason) {
+        outputClosed = true;
+        return writeFrameLater(new CloseWebSocketFrame(statusCode, reason));
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("non-positive request: " + n);
+        }
+        if (channel.eventLoop().inEventLoop()) {
+            addDemand(n);
+        } else {
+            channel.eventLoop().execute(() -> addDemand(n));
+        }
+    }
+
+    @Override
+    public String getSubprotocol() {
+        return subprotocol;
+    }
+
+    @Override
+    public boolean isOutputClosed() {
+        return outputClosed;
+    }
+
+    @Override
+    public boolean isInputClosed() {
+        return inputClosed;
+    }
+
+    @Override
+    public void abort() {
+        inputClosed = true;
+        outputClosed = true;
+        channel.close();
+    }
+
+    /**
+     * Starts the close handshake because the server is stopping; the channel closes once the client answers.
+     */
+    void goingAway() {
+        if (!outputClosed) {
+            sendClose(GOING_AWAY, "server shutting down");
+        }
+    }
+
+    /**
+     * Sends a close frame with the given status and closes the connection without waiting for the client's reply,
+     * ignoring anything else it sends meanwhile.
+     */
+    void refuse(int statusCode, String reason) {
+        inputClosed = true;
+        if (!outputClosed) {
+            outputClosed = true;
+            channel.writeAndFlush(new CloseWebSocketFrame(statusCode, reason)).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Records the close handshake status sent by the client so it can be reported via onClose.
+     */
+    void closeReceived(int statusCode, String reason) {
+        inputClosed = true;
+        if (statusCode != -1) {
+            this.closeStatusCode = statusCode;
+            this.closeReason = reason != null ? reason : "";
+        } else {
+            this.closeStatusCode = NO_STATUS_RECEIVED;
+        }
+    }
+
+    /**
+     * Notifies the service that the connection is open and then starts reading frames if it requested any.
+     */
+    void open() {
+        metrics.sessionOpened();
+        if (callbacks == CallbackDispatcher.INLINE) {
+            timedOnOpen();
+        } else {
+            runCallback(this::timedOnOpen);
+        }
+        updateAutoRead();
+    }
+
+    private void timedOnOpen() {
+        long start = metrics.callbackStarted(wss, "onOpen");
+        try {
+            wss.onOpen(this);
+        } finally {
+            metrics.callbackCompleted(start);
+        }
+    }
+
+    /**
+     * Takes ownership of an inbound frame, delivering it now if there is outstanding demand or else queueing it.
+     */
+    void enqueue(WebSocketFrame frame) {
+        metrics.frameIn(frame);
+        pending.add(frame);
+        drain();
+    }
+
+    /**
+     * Releases any frames never delivered and tells the service the connection has gone away.
+     */
+    void closed() {
+        WebSocketFrame frame;
+        while ((frame = pending.poll()) != null) {
+            ReferenceCountUtil.release(frame);
+        }
+        ByteBuf encoded;
+        while ((encoded = deferredEncoded.poll()) != null) {
+            encoded.release();
+        }
+        inputClosed = true;
+        outputClosed = true;
+        completeAwaitingWritable();
+        metrics.sessionClosed();
+        if (!terminated) {
+            terminated = true;
+            runCallback(() -> {
+                long start = metrics.callbackStarted(wss, "onClose");
+                try {
+                    wss.onClose(this, closeStatusCode, closeReason);
+                } finally {
+                    metrics.callbackCompleted(start);
+                }
+            });
+        }
+    }
+
+    /**
+     * Reports a failure on this connection to the service; no further callbacks follow.
+     */
+    void failed(Throwable cause) {
+        if (!terminated) {
+            terminated = true;
+            runCallback(() -> {
+                long start = metrics.callbackStarted(wss, "onError");
+                try {
+                    wss.onError(this, cause);
+                } finally {
+                    metrics.callbackCompleted(start);
+                }
+            });
+        }
+    }
+
+    /**
+     * Releases send futures held back while the channel was over its high watermark once it drains.
+     */
+    void writabilityChanged() {
+        if (channel.isWritable()) {
+            completeAwaitingWritable();
+        } else {
+            metrics.unwritable();
+        }
+    }
+
+    private void addDemand(long n) {
+        demand += n;
+        if (demand < 0) {
+            demand = Long.MAX_VALUE;
+        }
+        drain();
+    }
+
+    private void drain() {
+        // a callback which calls request() re-enters here; the outer loop will pick up the new demand
+        if (delivering) {
+            return;
+        }
+        delivering = true;
+        try {
+            WebSocketFrame frame;
+            while (demand > 0 && (frame = pending.poll()) != null) {
+                if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+                dispatch(frame);
+            }
+        } finally {
+            delivering = false;
+        }
+        updateAutoRead();
+    }
+
+    private void dispatch(WebSocketFrame frame) {
+        // continuation frames carry no type of their own, so remember what the message started as
+        if (frame instanceof TextWebSocketFrame) {
+            receivingText = true;
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            receivingText = false;
+        }
+        boolean text = receivingText;
+
+        if (callbacks == CallbackDispatcher.INLINE) {
+            deliver(frame, text);
+        } else if (!runCallback(() -> deliver(frame, text))) {
+            ReferenceCountUtil.release(frame);
+        }
+    }
+
+    private void deliver(WebSocketFrame frame, boolean text) {
+        CompletionStage<?> stage;
+        boolean continuation = frame instanceof ContinuationWebSocketFrame;
+        boolean isText = frame instanceof TextWebSocketFrame || (continuation && text);
+        long start = metrics.callbackStarted(wss, isText ? "onText" : "onBinary");
+        try {
+            boolean last = frame.isFinalFragment();
+            deliveringFrame = frame;
+            if (isText) {
+                var message = decodeText(frame, last);
+                deliveringPayload = message;
+                stage = wss.onText(this, message, last);
+            } else if (frame instanceof BinaryWebSocketFrame || continuation) {
+                var payload = frame.content().nioBuffer();
+                deliveringPayload = payload;
+                stage = wss.onBinary(this, payload, last);
+            } else {
+                String message = "unsupported frame type: " + frame.getClass().getName();
+                throw new UnsupportedOperationException(message);
+            }
+        } catch (RuntimeException e) {
+            ReferenceCountUtil.release(frame);
+            throw e;
+        } finally {
+            deliveringFrame = null;
+            deliveringPayload = null;
+            metrics.callbackCompleted(start);
+        }
+
+        // the service may still be reading the payload, so hold the buffer until it says it is done
+        if (stage == null) {
+            ReferenceCountUtil.release(frame);
+        } else {
+            stage.whenComplete((result, error) -> ReferenceCountUtil.release(frame));
+        }
+    }
+
+    private CharSequence decodeText(WebSocketFrame frame, boolean last) {
+        var content = frame.content();
+        if (wss.isLazyTextDecoding()) {
+            // fragments are passed through as raw bytes and may split a multi-byte character
+            return Utf8Text.wrap(content.nioBuffer());
+        }
+        if (last && fragmentDecoder == null) {
+            return content.toString(CharsetUtil.UTF_8);
+        }
+        if (fragmentDecoder == null) {
+            fragmentDecoder = new Utf8FragmentDecoder();
+        }
+        var decoded = fragmentDecoder.decode(content.nioBuffer(), last);
+        if (last) {
+            fragmentDecoder = null;
+        }
+        return decoded;
+    }
+
+    /**
+     * Hands a callback to the service's executor, reporting any exception it throws back through the pipeline.
+     * If the executor is saturated the client is told to try again later and disconnected.
+     */
+    private boolean runCallback(Runnable callback) {
+        try {
+            callbacks.execute(() -> {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    channel.pipeline().fireExceptionCaught(e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.warn("{} callbacks saturated; closing {}", wss.getPath(), channel);
+            refuse(TRY_AGAIN_LATER, "service overloaded");
+            return false;
+        }
+    }
+
+    private void updateAutoRead() {
+        boolean autoRead = demand > 0;
+        if (channel.config().isAutoRead() != autoRead) {
+            channel.config().setAutoRead(autoRead);
+        }
+    }
+
+    /**
+     * Writes an already-encoded frame shared with other sessions, taking ownership of the buffer. Must be called
+     * from this session's event loop.
+     */
+    void writeEncoded(ByteBuf encodedFrame) {
+        if (outputClosed || !channel.isActive()) {
+            encodedFrame.release();
+            return;
+        }
+        metrics.encodedFrameOut(encodedFrame.readableBytes());
+        if (writingFragments) {
+            deferredEncoded.add(encodedFrame);
+            return;
+        }
+        channel.write(encodedFrame, channel.voidPromise());
+        scheduleFlush();
+    }
+
+    /**
+     * Builds the frame for one data send, choosing a continuation frame if a fragmented message of the same type
+     * is in progress. As with the JDK client only one data message may be in flight at a time.
+     */
+    private CompletableFuture<WebSocket> sendData(int type, ByteBuf payload, boolean isLast) {
+        int current = sendingMessage;
+        if (current != NO_MESSAGE && current != type) {
+            payload.release();
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("previous fragmented message not yet complete"));
+        }
+        sendingMessage = isLast ? NO_MESSAGE : type;
+
+        WebSocketFrame frame;
+        if (current == type) {
+            frame = new ContinuationWebSocketFrame(isLast, 0, payload);
+        } else if (type == TEXT_MESSAGE) {
+            frame = new TextWebSocketFrame(isLast, 0, payload);
+        } else {
+            frame = new BinaryWebSocketFrame(isLast, 0, payload);
+        }
+        return writeFrameLater(frame);
+    }
+
+    private CompletableFuture<WebSocket> writeFrameLater(WebSocketFrame frame) {
+        var thisFuture = new CompletableFuture<WebSocket>();
+        if (channel.eventLoop().inEventLoop()) {
+            write(frame, thisFuture);
+        } else {
+            channel.eventLoop().execute(() -> write(frame, thisFuture));
+        }
+        return thisFuture;
+    }
+
+    private void write(WebSocketFrame frame, CompletableFuture<WebSocket> thisFuture) {
+        boolean dataFrame = frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame
+                || frame instanceof ContinuationWebSocketFrame;
+        boolean finalFragment = frame.isFinalFragment();
+        metrics.frameOut(frame);
+        channel.write(frame).addListener(future -> {
+            if (!future.isSuccess()) {
+                thisFuture.completeExceptionally(future.cause());
+            } else if (channel.isWritable()) {
+                thisFuture.complete(this);
+            } else {
+                awaitingWritable.add(thisFuture);
+            }
+        });
+        if (dataFrame) {
+            writingFragments = !finalFragment;
+            if (!writingFragments) {
+                writeDeferredEncoded();
+            }
+        }
+        scheduleFlush();
+    }
+
+    private void writeDeferredEncoded() {
+        ByteBuf encoded;
+        while ((encoded = deferredEncoded.poll()) != null) {
+            channel.write(encoded, channel.voidPromise());
+        }
+    }
+
+    private void scheduleFlush() {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            channel.eventLoop().execute(flushTask);
+        }
+    }
+
+    private void flush() {
+        flushScheduled = false;
+        channel.flush();
+    }
+
+    private void completeAwaitingWritable() {
+        CompletableFuture<WebSocket> future;
+        while ((future = awaitingWritable.poll()) != null) {
+            future.complete(this);
+        }
+    }
+}
@@ -17,24 +17,39 @@
 package wisp.websocket;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import wisp.api.Configuration;
+import wisp.api.MetricsRegistry;
 import wisp.api.ServiceModule;
+import wisp.websocket.api.BroadcastBridge;
 import wisp.websocket.api.WebSocketService;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.ServiceLoader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Netty-based async I/O websocket server.
@@ -45,9 +60,42 @@ public class WebsocketServer implements ServiceModule {
     private static final Logger logger = LoggerFactory.getLogger(WebsocketServer.class);
 
     private final Map<String, WebSocketService> servicePaths = new HashMap<>();
+    private final Map<String, ServiceSettings> serviceSettings = new HashMap<>();
+    private final PreparedFrameCache preparedFrames = new PreparedFrameCache(PooledByteBufAllocator.DEFAULT);
+    private final TopicBroadcaster broadcaster = new TopicBroadcaster(preparedFrames);
+    private final Map<String, ServiceMetrics> serviceMetrics = new HashMap<>();
+    private final Map<String, ShardedSessionRegistry> sessionRegistries = new HashMap<>();
+    private final Map<String, CallbackDispatcher> dispatchers = new ConcurrentHashMap<>();
+    private final List<Channel> serverChannels = new ArrayList<>();
+    private final ChannelGroup connections = new DefaultChannelGroup("wisp-websocket", GlobalEventExecutor.INSTANCE);
+    private final StallDetector stallDetector = new StallDetector(Duration.ofMillis(100));
+    private final ReloadingSslContext sslContext = new ReloadingSslContext();
+    private final AdmissionControl admission = new AdmissionControl();
+    private final IdleTimers idleTimers = new IdleTimers();
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    private CompletableFuture<Void> stopped;
+    private MetricsRegistry metricsRegistry;
 
     private boolean ssl = false;
     private int port = 8080;
+    private Transport transport = Transport.AUTO;
+    private boolean edgeTriggered = true;
+    private boolean reusePort = false;
+    private int acceptorThreads = 1;
+    private int tcpFastOpen = 0;
+    private int writeBufferLowWaterMark = WriteBufferWaterMark.DEFAULT.low();
+    private int writeBufferHighWaterMark = WriteBufferWaterMark.DEFAULT.high();
+    private Duration drainTimeout = Duration.ofSeconds(10);
+
+    @Override
+    public void bindMetrics(MetricsRegistry metrics) {
+        this.metricsRegistry = metrics;
+        stallDetector.register(metrics);
+        preparedFrames.register(metrics);
+        broadcaster.register(metrics);
+        admission.register(metrics);
+    }
 
     @Override
     public void configure(Configuration config) {
@@ -61,6 +109,17 @@ public class WebsocketServer implements ServiceModule {
             }
             logger.info("registered {} on path {}", wss.getClass().getSimpleName(), path);
             wss.configure(config);
+            var sessions = new ShardedSessionRegistry();
+            sessionRegistries.put(path, sessions);
+            wss.init(new ServiceContext(broadcaster, sessions));
+            serviceSettings.put(path, new ServiceSettings(path, config));
+            serviceMetrics.put(path, newServiceMetrics(path));
+        }
+
+        // anything carrying broadcasts to other nodes is bound before any session can subscribe
+        for (var bridge : ServiceLoader.load(getClass().getModule().getLayer(), BroadcastBridge.class)) {
+            logger.info("bridging broadcasts via {}", bridge.getClass().getSimpleName());
+            broadcaster.addBridge(bridge);
         }
 
         if (config.hasPath("wisp.websocket.ssl")) {
@@ -70,48 +129,239 @@ public class WebsocketServer implements ServiceModule {
         if (config.hasPath("wisp.websocket.port")) {
             port = config.getInt("wisp.websocket.port");
         }
+
+        if (config.hasPath("wisp.websocket.transport")) {
+            transport = Transport.fromName(config.getString("wisp.websocket.transport"));
+        }
+
+        if (config.hasPath("wisp.websocket.edgeTriggered")) {
+            edgeTriggered = config.getBoolean("wisp.websocket.edgeTriggered");
+        }
+
+        if (config.hasPath("wisp.websocket.reusePort")) {
+            reusePort = config.getBoolean("wisp.websocket.reusePort");
+        }
+
+        if (config.hasPath("wisp.websocket.acceptorThreads")) {
+            acceptorThreads = config.getInt("wisp.websocket.acceptorThreads");
+        }
+
+        if (config.hasPath("wisp.websocket.tcpFastOpen")) {
+            tcpFastOpen = config.getInt("wisp.websocket.tcpFastOpen");
+        }
+
+        if (config.hasPath("wisp.websocket.writeBufferLowWaterMark")) {
+            writeBufferLowWaterMark = config.getInt("wisp.websocket.writeBufferLowWaterMark");
+        }
+
+        if (config.hasPath("wisp.websocket.writeBufferHighWaterMark")) {
+            writeBufferHighWaterMark = config.getInt("wisp.websocket.writeBufferHighWaterMark");
+        }
+
+        if (config.hasPath("wisp.websocket.drainTimeout")) {
+            drainTimeout = config.getDuration("wisp.websocket.drainTimeout");
+        }
+
+        if (config.hasPath("wisp.websocket.leakDetection")) {
+            var level = config.getString("wisp.websocket.leakDetection").toUpperCase(Locale.ROOT);
+            ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.valueOf(level));
+        }
+
+        if (config.hasPath("wisp.websocket.slowCallbackThreshold")) {
+            stallDetector.setThreshold(config.getDuration("wisp.websocket.slowCallbackThreshold"));
+        }
+
+        preparedFrames.configure(config);
+        broadcaster.configure(config);
+        sslContext.configure(config);
+        admission.configure(config);
+        idleTimers.configure(config);
     }
 
     @Override
     public void start() {
+        startAsync().toCompletableFuture().join();
+    }
+
+    @Override
+    public CompletionStage<Void> startAsync() {
         logger.info("starting {} module", getClass().getSimpleName());
 
-        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        Transport selected = transport.resolve();
+        if (selected != transport && transport != Transport.AUTO) {
+            logger.warn("{} transport not available on this host ({}); falling back to {}", transport,
+                    transport.getUnavailabilityCause(), selected);
+        }
+        logger.info("using {} transport", selected);
+
+        // multiple acceptors only make sense when the kernel can load-balance binds with SO_REUSEPORT
+        boolean epoll = selected == Transport.EPOLL;
+        int nAcceptors = 1;
+        if (reusePort && epoll) {
+            nAcceptors = Math.max(1, acceptorThreads);
+        } else if (reusePort || tcpFastOpen > 0) {
+            logger.warn("SO_REUSEPORT and TCP_FASTOPEN require the epoll transport; ignoring");
+        }
+
+        bossGroup = selected.newEventLoopGroup(nAcceptors);
+        workerGroup = selected.newEventLoopGroup(0);
+        stallDetector.start(bossGroup, workerGroup);
         try {
-            final SslContext sslCtx;
+            Map<String, WebSocketFrameHandler> frameHandlers = new HashMap<>();
+            for (var path : servicePaths.keySet()) {
+                var settings = serviceSettings.get(path);
+                var metrics = serviceMetrics.get(path);
+                var dispatcher = new CallbackDispatcher(settings, metrics.getCallbacksRejected());
+                dispatchers.put(path, dispatcher);
+                frameHandlers.put(path, new WebSocketFrameHandler(servicePaths.get(path), settings, dispatcher,
+                        metrics, sessionRegistries.get(path)));
+                logger.info("dispatching {} callbacks via {}", path, dispatcher.getPolicy());
+            }
+
             if (ssl) {
-                SelfSignedCertificate ssc = new SelfSignedCertificate();
-                sslCtx = SslContextBuilder.forServer(ssc.certificate(), ssc.privateKey()).build();
-            } else {
-                sslCtx = null;
+                sslContext.start();
+                logger.info("using {} TLS engine", sslContext.get().getClass().getSimpleName());
             }
 
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(selected.getServerChannelClass())
                     .handler(new LoggingHandler(LogLevel.INFO))
-                    .childHandler(new WebSocketServerInitializer(sslCtx, servicePaths));
-
-            Channel ch = b.bind(port).sync().channel();
-            logger.info("listening on port " + port);
+                    .childHandler(new WebSocketServerInitializer(ssl ? sslContext : null, frameHandlers,
+                            connections, admission, idleTimers))
+                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark));
+            if (epoll) {
+                EpollMode mode = edgeTriggered ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED;
+                b.option(EpollChannelOption.EPOLL_MODE, mode);
+                b.childOption(EpollChannelOption.EPOLL_MODE, mode);
+                if (reusePort) {
+                    b.option(EpollChannelOption.SO_REUSEPORT, true);
+                }
+                if (tcpFastOpen > 0) {
+                    b.option(EpollChannelOption.TCP_FASTOPEN, tcpFastOpen);
+                }
+            }
 
-            ch.closeFuture().sync();
+            var binds = new CompletableFuture<?>[nAcceptors];
+            for (int i = 0; i < nAcceptors; i++) {
+                var bind = b.bind(port);
+                serverChannels.add(bind.channel());
+                binds[i] = toCompletableFuture(bind);
+            }
+            int acceptors = nAcceptors;
+            return CompletableFuture.allOf(binds)
+                    .thenRun(() -> logger.info("listening on port {} with {} acceptor(s)", port, acceptors))
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            logger.error("unable to bind port {}", port, error);
+                            stopAsync();
+                        }
+                    });
         } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
+            stopAsync();
+            return CompletableFuture.failedFuture(e);
         }
     }
 
     @Override
     public void stop() {
-        logger.info("stopping {} module", getClass().getSimpleName());
+        stopAsync().toCompletableFuture().join();
+    }
+
+    /**
+     * Stops accepting connections, asks every open session to close with 1001 (going away) and waits up to the
+     * drain timeout for clients to finish the close handshake before closing whatever is left and shutting down
+     * the event loops and callback executors.
+     */
+    @Override
+    public synchronized CompletionStage<Void> stopAsync() {
+        if (workerGroup == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (stopped != null) {
+            return stopped;
+        }
+        logger.info("stopping {} module; draining {} connection(s) for up to {}", getClass().getSimpleName(),
+                connections.size(), drainTimeout);
+
+        for (Channel ch : serverChannels) {
+            ch.close();
+        }
+        var drained = toCompletableFuture(connections.newCloseFuture());
+        for (Channel ch : connections) {
+            var session = WebSocketSessionImpl.get(ch);
+            if (session != null) {
+                session.goingAway();
+            } else {
+                ch.close();
+            }
+        }
+
+        stopped = drained.exceptionally(error -> null)
+                .completeOnTimeout(null, drainTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .thenCompose(ignored -> {
+                    if (!connections.isEmpty()) {
+                        logger.warn("closing {} connection(s) which did not drain in time", connections.size());
+                    }
+                    return toCompletableFuture(connections.close()).exceptionally(error -> null);
+                })
+                .thenCompose(ignored -> CompletableFuture.allOf(
+                        toCompletableFuture(bossGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS)),
+                        toCompletableFuture(workerGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS))))
+                .whenComplete((ignored, error) -> {
+                    stallDetector.stop();
+                    sslContext.stop();
+                    idleTimers.stop();
+                    for (var dispatcher : dispatchers.values()) {
+                        dispatcher.shutdown();
+                    }
+                    logger.info("stopped {} module", getClass().getSimpleName());
+                });
+        return stopped;
     }
 
     @Override
     public void destroy() {
         logger.info("destroying {} module", getClass().getSimpleName());
     }
+
+    private ServiceMetrics newServiceMetrics(String path) {
+        var metrics = new ServiceMetrics(path, stallDetector);
+        if (metricsRegistry != null) {
+            metrics.register(metricsRegistry, () -> pendingWriteBytes(path), () -> {
+                var dispatcher = dispatchers.get(path);
+                return dispatcher != null ? dispatcher.getQueueDepth() : 0;
+            });
+        }
+        return metrics;
+    }
+
+    /**
+     * Sums the bytes waiting to be flushed across the service's connections; only called when metrics are read.
+     */
+    private long pendingWriteBytes(String path) {
+        long pending = 0;
+        for (Channel ch : connections) {
+            var session = WebSocketSessionImpl.get(ch);
+            var outboundBuffer = ch.unsafe().outboundBuffer();
+            if (session != null && outboundBuffer != null && path.equals(session.getService().getPath())) {
+                pending += outboundBuffer.totalPendingWriteBytes();
+            }
+        }
+        return pending;
+    }
+
+    private static CompletableFuture<Void> toCompletableFuture(Future<?> nettyFuture) {
+        var future = new CompletableFuture<Void>();
+        nettyFuture.addListener(f -> {
+            if (f.isSuccess()) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(f.cause());
+            }
+        });
+        return future;
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Extension point for carrying broadcasts beyond this server, e.g. to the other nodes of a cluster. Implementations
+ * are found with {@link java.util.ServiceLoader} in the server's module layer and bound to its {@link Broadcaster}
+ * when it is configured; from then on they are told as topics gain and lose subscribers on this node and are handed
+ * every message published here.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface BroadcastBridge {
+    /**
+     * Called once with the view of the server's broadcaster used to deliver messages which arrived from elsewhere.
+     */
+    void bind(BroadcastRelay local);
+
+    /**
+     * Called when a topic gains its first subscriber on this node. Calls for any one topic are made in order while
+     * it is locked, so they must not block or call back into the broadcaster.
+     */
+    void topicAdded(String topic);
+
+    /**
+     * Called when a topic loses its last subscriber on this node; the same rules apply as for
+     * {@link #topicAdded(String)}.
+     */
+    void topicRemoved(String topic);
+
+    /**
+     * Called for every text message published on this node, as it is handed to local subscribers.
+     */
+    void published(String topic, CharSequence text);
+
+    /**
+     * Called for every binary message published on this node; the buffer must be copied before this returns.
+     */
+    void published(String topic, ByteBuffer binary);
+
+    /**
+     * Called instead of {@link #published(String, CharSequence)} with the sequence number the topic gave the message,
+     * or 0 if the topic does not number its messages; by default ignores the number.
+     */
+    default void published(String topic, long sequence, CharSequence text) {
+        published(topic, text);
+    }
+
+    /**
+     * Called instead of {@link #published(String, ByteBuffer)} with the sequence number the topic gave the message,
+     * or 0 if the topic does not number its messages; by default ignores the number.
+     */
+    default void published(String topic, long sequence, ByteBuffer binary) {
+        published(topic, binary);
+    }
+
+    /**
+     * Called for every text message which another bridge {@link BroadcastRelay#relay relayed} to this node, with
+     * the sequence number it was given where it was published, or 0 if none; by default does nothing. The text need
+     * only stay valid until this returns, and must not be passed on to other nodes again.
+     */
+    default void relayed(String topic, long sequence, CharSequence text) { }
+
+    /**
+     * Called for every binary message which another bridge relayed to this node, as for text; the buffer must be
+     * copied before this returns.
+     */
+    default void relayed(String topic, long sequence, ByteBuffer binary) { }
+
+    /**
+     * Whether every message published on this node should be numbered while this bridge is bound, even on topics
+     * without replay which are only published to with {@link Broadcaster#publish}; by default false.
+     */
+    default boolean requiresNumbering() {
+        return false;
+    }
+
+    /**
+     * Gets the last sequence number this bridge knows to have been given to a message on the topic, e.g. from
+     * before a restart, so that numbering carries on from there; by default 0.
+     */
+    default long getSequence(String topic) {
+        return 0;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * View of the server's {@link Broadcaster} handed to each {@link BroadcastBridge}, whose publishes reach this node's
+ * subscribers only, for delivering messages which arrived from elsewhere without bridging them back out.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface BroadcastRelay extends Broadcaster {
+    /**
+     * Sends a text message published on another node to this node's subscribers of the topic, keeping the sequence
+     * number the publishing node gave it so a client can resume on either node; 0 if it was not numbered there.
+     */
+    void relay(String topic, long sequence, CharSequence text);
+
+    /**
+     * Sends a binary message published on another node to this node's subscribers of the topic, keeping its
+     * sequence number as for text. The buffer is copied before this returns.
+     */
+    void relay(String topic, long sequence, ByteBuffer binary);
+}
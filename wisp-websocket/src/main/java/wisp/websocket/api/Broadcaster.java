@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.function.LongFunction;
+
+/**
+ * Fan-out facility for sending the same message to every session subscribed to a named topic. Each published
+ * message is encoded into a websocket frame exactly once and the encoded bytes are shared by all recipients,
+ * so the cost of a publish grows with the number of event loops rather than the number of subscribers.
+ * Sessions are unsubscribed from all their topics automatically when they close.
+ * <p>
+ * With {@code wisp.websocket.replay} limits configured, each topic also keeps its most recent messages, numbered
+ * in publish order, so a client which reconnects can {@link #resume} from the last message it saw. Numbers are
+ * assigned on demand otherwise, once a topic is first published to with {@link #publishText} or
+ * {@link #publishBinary}. A message's number travels with it to the other nodes of a cluster, so a client can
+ * resume on any node provided each topic is published to from just one; a node which sees a topic's numbers go
+ * backwards, meaning more than one node publishes there, logs a warning and reports a gap instead. Numbers carry on
+ * across a restart only if a {@link BroadcastBridge} such as a journal remembers them. Messages are only kept while
+ * the topic has subscribers on this node: once the last one leaves its history is dropped and just its last number
+ * kept, so a client which was a topic's only subscriber will find a gap when it resumes. Only the
+ * {@code wisp.websocket.replay.maxIdleTopics} most recently used such numbers are kept; a topic forgotten this way
+ * is numbered again from where its bridges say it got to, or from 1.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface Broadcaster {
+    /**
+     * Adds a session to the named topic; a no-op if it is already subscribed.
+     *
+     * @param webSocket a {@link WebSocketSession} handed to a {@link WebSocketService} callback
+     */
+    void subscribe(String topic, WebSocket webSocket);
+
+    /**
+     * Removes a session from the named topic; a no-op if it was not subscribed.
+     */
+    void unsubscribe(String topic, WebSocket webSocket);
+
+    /**
+     * Gets the number of sessions currently subscribed to the named topic.
+     */
+    int getSubscriberCount(String topic);
+
+    /**
+     * Sends a text message to every current subscriber of the topic.
+     */
+    void publish(String topic, CharSequence text);
+
+    /**
+     * Sends a binary message to every current subscriber of the topic. The buffer is copied before this returns.
+     */
+    void publish(String topic, ByteBuffer binary);
+
+    /**
+     * Sends a text message built from its sequence number, typically by writing the number into an envelope the
+     * client can read back when resuming, to every current subscriber of the topic.
+     *
+     * @return the sequence number the message was given
+     */
+    long publishText(String topic, LongFunction<? extends CharSequence> message);
+
+    /**
+     * Sends a binary message built from its sequence number to every current subscriber of the topic. The buffer
+     * is copied before this returns.
+     *
+     * @return the sequence number the message was given
+     */
+    long publishBinary(String topic, LongFunction<ByteBuffer> message);
+
+    /**
+     * Gets the sequence number of the last message published to the topic, or 0 if none has been numbered.
+     */
+    long getSequence(String topic);
+
+    /**
+     * Subscribes a session to the topic, first sending it every message published after the given sequence number.
+     * If some of those messages are no longer kept the session is subscribed without any being sent, and the
+     * service should instead send it the topic's current state, e.g. a snapshot.
+     *
+     * @param webSocket    a {@link WebSocketSession} handed to a {@link WebSocketService} callback
+     * @param lastSequence the sequence number of the last message the client received, or 0 for none
+     * @return true if the session was sent everything it missed
+     */
+    boolean resume(String topic, WebSocket webSocket, long lastSequence);
+}
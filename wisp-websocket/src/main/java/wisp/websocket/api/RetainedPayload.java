@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+/**
+ * A service's claim on an inbound message payload, obtained from {@link WebSocketSession#retain(java.nio.ByteBuffer)}
+ * while the callback which received it is running. The payload stays valid until this is released, however long
+ * after the callback that is; a payload never released shows up in the leak detector's reports once it is garbage
+ * collected.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface RetainedPayload extends AutoCloseable {
+    /**
+     * Gives up this claim on the payload, after which it must not be read; calling it again has no effect.
+     */
+    void release();
+
+    @Override
+    default void close() {
+        release();
+    }
+}
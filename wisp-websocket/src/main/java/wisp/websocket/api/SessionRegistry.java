@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Directory of a single service's open sessions, keyed by {@link WebSocketSession#getId()}. Sessions are added just
+ * before {@link WebSocketService#onOpen} and removed as soon as their connection closes, so services need not keep
+ * their own maps of sessions just to push messages to particular clients.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface SessionRegistry {
+    /**
+     * Gets the open session with the given id, or null if there is none.
+     */
+    WebSocketSession get(long id);
+
+    /**
+     * Gets the number of open sessions.
+     */
+    int size();
+
+    /**
+     * Calls the action for every open session. No copy is taken, so sessions which open or close while this runs
+     * may or may not be visited, but none is visited twice.
+     */
+    void forEach(Consumer<? super WebSocketSession> action);
+
+    /**
+     * Sends a complete text message to the session with the given id. As with
+     * {@link WebSocket#sendText(CharSequence, boolean)}, this fails if the session is part way through sending a
+     * fragmented message.
+     *
+     * @return the send's future, completed exceptionally with {@link java.util.NoSuchElementException} if there is
+     * no open session with that id
+     */
+    CompletableFuture<WebSocket> sendTo(long id, CharSequence text);
+
+    /**
+     * Sends a complete binary message to the session with the given id; the buffer must not be modified until the
+     * returned future completes.
+     *
+     * @return the send's future, completed exceptionally with {@link java.util.NoSuchElementException} if there is
+     * no open session with that id
+     */
+    CompletableFuture<WebSocket> sendTo(long id, ByteBuffer binary);
+}
@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link CharSequence} view over UTF-8 encoded text which only decodes when it has to. Pure ASCII content is
+ * read directly from the underlying bytes; anything else is decoded to a String on first character access.
+ * Services which just want the raw bytes, e.g. to feed a JSON parser, can call {@link #getBytes()} and skip
+ * decoding entirely, and passing an instance back to {@link java.net.http.WebSocket#sendText(CharSequence, boolean)}
+ * writes the bytes out without re-encoding them.
+ *
+ * <p>When handed to a service as an inbound message the bytes are only valid until the {@link
+ * java.util.concurrent.CompletionStage} returned from onText completes.</p>
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public final class Utf8Text implements CharSequence {
+    private static final int UNKNOWN = 0;
+    private static final int ASCII = 1;
+    private static final int NOT_ASCII = 2;
+
+    private final ByteBuffer bytes;
+    private int encoding = UNKNOWN;
+    private String decoded;
+
+    private Utf8Text(ByteBuffer bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Wraps the remaining bytes of the given buffer, which must be valid UTF-8, without copying them.
+     */
+    public static Utf8Text wrap(ByteBuffer utf8) {
+        return new Utf8Text(utf8.slice().asReadOnlyBuffer());
+    }
+
+    /**
+     * Gets a read-only view of the encoded bytes.
+     */
+    public ByteBuffer getBytes() {
+        return bytes.duplicate();
+    }
+
+    @Override
+    public int length() {
+        return isAscii() ? bytes.remaining() : toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (isAscii()) {
+            if (index < 0 || index >= bytes.remaining()) {
+                throw new IndexOutOfBoundsException("index: " + index + ", length: " + bytes.remaining());
+            }
+            return (char) bytes.get(bytes.position() + index);
+        }
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (isAscii()) {
+            if (start < 0 || end > bytes.remaining() || start > end) {
+                throw new IndexOutOfBoundsException("start: " + start + ", end: " + end);
+            }
+            var slice = bytes.duplicate();
+            slice.position(bytes.position() + start).limit(bytes.position() + end);
+            return new Utf8Text(slice.slice());
+        }
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        if (decoded == null) {
+            decoded = StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+        }
+        return decoded;
+    }
+
+    private boolean isAscii() {
+        if (encoding == UNKNOWN) {
+            encoding = ASCII;
+            for (int i = bytes.position(); i < bytes.limit(); i++) {
+                if (bytes.get(i) < 0) {
+                    encoding = NOT_ASCII;
+                    break;
+                }
+            }
+        }
+        return encoding == ASCII;
+    }
+}
@@ -41,6 +41,12 @@ import java.net.http.WebSocket;
  * When first registered to listen on a particular wss:// URI it will receive an
  * {@link #onOpen(WebSocket)} callback and then subsequently will receive ping,
  * pong, text &amp; binary frame messages via {@link WebSocket.Listener} callbacks.
+ * The {@link WebSocket} passed to each callback is the connection's {@link WebSocketSession},
+ * the same instance for the life of the connection.
+ *
+ * <p>As with any {@link WebSocket.Listener}, frames are only delivered against outstanding demand: the default
+ * {@link #onOpen(WebSocket)} requests one message, and services must call {@link WebSocket#request(long)} again
+ * to receive more. While a service has no outstanding demand Wisp stops reading from that client's socket.</p>
  *
  * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
  */
@@ -48,6 +54,11 @@ public interface WebSocketService extends WebSocket.Listener, Configurable, Dest
     @Override
     default void configure(Configuration config) { }
 
+    /**
+     * Called once after {@link #configure(Configuration)} with the server facilities available to this service.
+     */
+    default void init(WebSocketServiceContext context) { }
+
     @Override
     default void destroy() { }
 
@@ -55,4 +66,12 @@ public interface WebSocketService extends WebSocket.Listener, Configurable, Dest
      * Gets the distinct relative path that this service listens on.
      */
     String getPath();
+
+    /**
+     * Whether this service wants inbound text frames delivered as {@link Utf8Text} views over the received bytes
+     * rather than decoded Strings; off by default since the view is only valid until onText's stage completes.
+     */
+    default boolean isLazyTextDecoding() {
+        return false;
+    }
 }
@@ -0,0 +1,35 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+/**
+ * Server facilities made available to a {@link WebSocketService} via {@link WebSocketService#init}, much like a
+ * servlet's ServletConfig.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface WebSocketServiceContext {
+    /**
+     * Gets the server-wide topic broadcaster shared by all services.
+     */
+    Broadcaster getBroadcaster();
+
+    /**
+     * Gets the registry of this service's open sessions.
+     */
+    SessionRegistry getSessions();
+}
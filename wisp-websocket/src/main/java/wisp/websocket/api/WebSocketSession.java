@@ -0,0 +1,71 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Server-side view of a single websocket connection. Exactly one session is created per connection when the
+ * handshake completes and the same instance is passed to every {@link WebSocketService} callback, so it is safe
+ * to use as a map key or to hang per-connection state off of it via its attachment.
+ *
+ * @author <a href="mailto:kyle.downey@gmail.com">Kyle F. Downey</a>
+ */
+public interface WebSocketSession extends WebSocket {
+    /**
+     * Gets this session's id, unique among the open sessions of its service and never zero, by which it can be
+     * found again in the service's {@link SessionRegistry}.
+     */
+    long getId();
+
+    /**
+     * Gets the service-defined object attached to this session, or null if none.
+     */
+    <T> T getAttachment();
+
+    /**
+     * Attaches an arbitrary service-defined object to this session, replacing any previous one.
+     */
+    <T> void setAttachment(T attachment);
+
+    /**
+     * Sends a text message whose content is already UTF-8 encoded, skipping the transcoding done by
+     * {@link #sendText(CharSequence, boolean)}. As with sendBinary the buffer must not be modified until the
+     * returned future completes.
+     */
+    CompletableFuture<WebSocket> sendUtf8(ByteBuffer utf8, boolean isLast);
+
+    /**
+     * Keeps the payload passed to the onBinary callback in progress valid after that callback returns, until the
+     * returned handle is released. This is an alternative to returning a {@link java.util.concurrent.CompletionStage}
+     * for services which hand payloads off to other threads or hold on to several at once.
+     *
+     * @throws IllegalArgumentException if the buffer is not the payload of the callback currently running
+     */
+    RetainedPayload retain(ByteBuffer payload);
+
+    /**
+     * Keeps the message passed to the onText callback in progress valid after that callback returns, until the
+     * returned handle is released. Only {@link Utf8Text} messages refer to the inbound buffer; for anything else
+     * the handle does nothing.
+     *
+     * @throws IllegalArgumentException if the text is not the message of the callback currently running
+     */
+    RetainedPayload retain(CharSequence message);
+}
@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.Test;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControlTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void capsSessionsAcrossServices() {
+        var admission = anAdmissionControl(new MapConfiguration().with("wisp.websocket.admission.maxSessions", 2));
+        var echo = new ServiceSettings("/echo", new MapConfiguration());
+        var chat = new ServiceSettings("/chat", new MapConfiguration());
+        var first = new EmbeddedChannel();
+
+        assertTrue(admission.admitSession(first, echo));
+        assertTrue(admission.admitSession(new EmbeddedChannel(), chat));
+        assertFalse(admission.admitSession(new EmbeddedChannel(), chat));
+
+        first.close();
+        assertEquals(1, admission.getSessions());
+        assertTrue(admission.admitSession(new EmbeddedChannel(), chat));
+    }
+
+    @Test
+    public void givesBackServerSessionWhenServiceIsFull() {
+        var admission = anAdmissionControl(new MapConfiguration());
+        var echo = new ServiceSettings("/echo", new MapConfiguration()
+                .with("wisp.websocket.services.echo.admission.maxSessions", 1));
+
+        assertTrue(admission.admitSession(new EmbeddedChannel(), echo));
+        assertFalse(admission.admitSession(new EmbeddedChannel(), echo));
+        assertEquals(1, admission.getSessions());
+    }
+
+    @Test
+    public void capsConnectionsPerAddress() throws Exception {
+        var limiter = new AddressLimiter(2);
+        var address = InetAddress.getByName("192.0.2.1");
+
+        assertTrue(limiter.tryAcquire(address));
+        assertTrue(limiter.tryAcquire(address));
+        assertFalse(limiter.tryAcquire(address));
+        assertTrue(limiter.tryAcquire(InetAddress.getByName("192.0.2.2")));
+
+        limiter.release(address);
+        assertTrue(limiter.tryAcquire(address));
+        limiter.release(address);
+        limiter.release(address);
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    public void limitsMessageRate() {
+        var limiter = InboundRateLimiter.create(aSettings("messageRate", 10, "messageBurst", 2), 0);
+
+        assertTrue(limiter.tryAcquire(aTextFrame(1), 0));
+        assertTrue(limiter.tryAcquire(aTextFrame(1), 0));
+        assertFalse(limiter.tryAcquire(aTextFrame(1), 0));
+        assertTrue(limiter.tryAcquire(aTextFrame(1), SECOND / 10));
+    }
+
+    @Test
+    public void countsContinuationsAgainstBytesOnly() {
+        var limiter = InboundRateLimiter.create(aSettings("messageRate", 1, "byteRate", 100), 0);
+
+        assertTrue(limiter.tryAcquire(new BinaryWebSocketFrame(false, 0, Unpooled.buffer(40).writeZero(40)), 0));
+        assertTrue(limiter.tryAcquire(new ContinuationWebSocketFrame(true, 0, Unpooled.buffer(40).writeZero(40)),
+                0));
+        assertFalse(limiter.tryAcquire(new ContinuationWebSocketFrame(true, 0, Unpooled.buffer(40).writeZero(40)),
+                0));
+    }
+
+    @Test
+    public void letsOversizedMessageThroughIntoDebt() {
+        var limiter = InboundRateLimiter.create(aSettings("byteRate", 100, "byteBurst", 100), 0);
+
+        assertTrue(limiter.tryAcquire(aTextFrame(300), 0));
+        assertFalse(limiter.tryAcquire(aTextFrame(1), SECOND));
+        assertTrue(limiter.tryAcquire(aTextFrame(1), 3 * SECOND));
+    }
+
+    @Test
+    public void hasNoLimiterByDefault() {
+        assertNull(InboundRateLimiter.create(new ServiceSettings("/echo", new MapConfiguration()), 0));
+    }
+
+    private AdmissionControl anAdmissionControl(MapConfiguration config) {
+        var admission = new AdmissionControl();
+        admission.configure(config);
+        return admission;
+    }
+
+    private ServiceSettings aSettings(Object... namesAndValues) {
+        var config = new MapConfiguration();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            config.with("wisp.websocket.services.echo.admission." + namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return new ServiceSettings("/echo", config);
+    }
+
+    private TextWebSocketFrame aTextFrame(int length) {
+        return new TextWebSocketFrame("x".repeat(length));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import org.junit.Test;
+import wisp.api.Counter;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CallbackDispatcherTest {
+    @Test
+    public void runsInlineByDefault() {
+        var dispatcher = new CallbackDispatcher(new ServiceSettings("/echo", new MapConfiguration()), new Counter());
+        assertEquals(DispatchPolicy.EVENT_LOOP, dispatcher.getPolicy());
+        assertSame(CallbackDispatcher.INLINE, dispatcher.newSessionExecutor());
+    }
+
+    @Test
+    public void preservesOrderPerSession() throws Exception {
+        var config = new MapConfiguration()
+                .with("wisp.websocket.services.echo.executor", "ordered")
+                .with("wisp.websocket.services.echo.executorThreads", 4);
+        var dispatcher = new CallbackDispatcher(new ServiceSettings("/echo", config), new Counter());
+        try {
+            var executor = dispatcher.newSessionExecutor();
+            List<Integer> seen = new CopyOnWriteArrayList<>();
+            var done = new CountDownLatch(1000);
+            for (int i = 0; i < 1000; i++) {
+                int n = i;
+                executor.execute(() -> {
+                    seen.add(n);
+                    done.countDown();
+                });
+            }
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, (int) seen.get(i));
+            }
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void rejectsBeyondMaxQueued() throws Exception {
+        var config = new MapConfiguration()
+                .with("wisp.websocket.services.echo.executor", "ordered")
+                .with("wisp.websocket.services.echo.executorThreads", 1)
+                .with("wisp.websocket.services.echo.executorMaxQueued", 2);
+        var dispatcher = new CallbackDispatcher(new ServiceSettings("/echo", config), new Counter());
+        var blocker = new CountDownLatch(1);
+        try {
+            var executor = dispatcher.newSessionExecutor();
+            executor.execute(() -> awaitQuietly(blocker));
+            executor.execute(() -> { });
+            assertEquals(2, dispatcher.getQueueDepth());
+            try {
+                executor.execute(() -> { });
+                fail("expected rejection");
+            } catch (RejectedExecutionException e) {
+                assertEquals(1, dispatcher.getRejectedCount());
+            }
+        } finally {
+            blocker.countDown();
+            dispatcher.shutdown();
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
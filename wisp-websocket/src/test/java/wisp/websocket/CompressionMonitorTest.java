@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionData;
+import org.junit.Test;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionMonitorTest {
+    @Test
+    public void declaresServerNoContextTakeover() {
+        var settings = aSettings(new MapConfiguration()
+                .with("wisp.websocket.compression.serverNoContextTakeover", true));
+        var extension = new CompressionHandshaker(settings).handshakeExtension(anOffer(Map.of()));
+        assertTrue(extension.newReponseData().parameters().containsKey("server_no_context_takeover"));
+    }
+
+    @Test
+    public void declinesSmallerServerWindow() {
+        var handshaker = new CompressionHandshaker(aSettings(new MapConfiguration()));
+        assertNull(handshaker.handshakeExtension(anOffer(Map.of("server_max_window_bits", "10"))));
+    }
+
+    @Test
+    public void prefersServiceOverride() {
+        var config = new MapConfiguration()
+                .with("wisp.websocket.compression.minSize", 100)
+                .with("wisp.websocket.services.test.compression.minSize", 10);
+        assertEquals(10, aSettings(config).getCompressionMinSize());
+    }
+
+    @Test
+    public void skipsMessagesUnderMinimumSize() {
+        var channel = aCompressingChannel(16);
+
+        channel.writeOutbound(new TextWebSocketFrame("tiny"));
+        WebSocketFrame small = channel.readOutbound();
+        assertEquals(0, small.rsv() & WebSocketExtension.RSV1);
+        small.release();
+
+        channel.writeOutbound(new TextWebSocketFrame("a".repeat(1024)));
+        WebSocketFrame large = channel.readOutbound();
+        assertEquals(WebSocketExtension.RSV1, large.rsv() & WebSocketExtension.RSV1);
+        large.release();
+    }
+
+    @Test
+    public void leavesSkippedFragmentedMessageUncompressed() {
+        var channel = aCompressingChannel(16);
+
+        channel.writeOutbound(new TextWebSocketFrame(false, 0, "tiny"));
+        channel.writeOutbound(new ContinuationWebSocketFrame(true, 0, "a".repeat(1024)));
+        WebSocketFrame first = channel.readOutbound();
+        ContinuationWebSocketFrame last = channel.readOutbound();
+        assertEquals(0, first.rsv() & WebSocketExtension.RSV1);
+        assertEquals(1024, last.content().readableBytes());
+        first.release();
+        last.release();
+    }
+
+    private EmbeddedChannel aCompressingChannel(int minSize) {
+        var settings = aSettings(new MapConfiguration());
+        var extension = new CompressionHandshaker(settings).handshakeExtension(anOffer(Map.of()));
+        var channel = new EmbeddedChannel(extension.newExtensionEncoder());
+        var encoder = channel.pipeline().firstContext();
+        CompressionMonitor.install(channel.pipeline(), encoder, minSize,
+                new ServiceMetrics("/test", new StallDetector(Duration.ZERO)));
+        return channel;
+    }
+
+    private ServiceSettings aSettings(MapConfiguration config) {
+        return new ServiceSettings("/test", config);
+    }
+
+    private WebSocketExtensionData anOffer(Map<String, String> parameters) {
+        return new WebSocketExtensionData("permessage-deflate", parameters);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.Test;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IdleReaperTest {
+    private final IdleTimers timers = new IdleTimers();
+
+    @Test
+    public void expiresTimersMoreThanOneTurnOut() {
+        var wheel = new TimerWheel(4);
+        var expired = new ArrayList<Long>();
+        var timer = new TimerWheel.Timer() {
+            @Override
+            void expired(long now) {
+                expired.add(now);
+            }
+        };
+
+        wheel.schedule(timer, 10);
+        for (int i = 0; i < 9; i++) {
+            wheel.tick();
+        }
+        assertTrue(expired.isEmpty());
+        wheel.tick();
+        assertEquals(List.of(10L), expired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void closesConnectionIdlePastReadTimeout() {
+        var channel = aChannel(new MapConfiguration().with("wisp.websocket.idle.readTimeout", "PT3S"));
+
+        tick(channel, 2);
+        channel.writeInbound(new TextWebSocketFrame("still here"));
+        tick(channel, 2);
+        assertTrue(channel.isOpen());
+        tick(channel, 1);
+
+        var close = (CloseWebSocketFrame) channel.readOutbound();
+        assertEquals(1001, close.statusCode());
+        close.release();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void pingsWhenWriteIdleAndKeepsConnectionThatAnswers() {
+        var channel = aChannel(new MapConfiguration()
+                .with("wisp.websocket.idle.writeTimeout", "PT2S")
+                .with("wisp.websocket.idle.pongTimeout", "PT2S"));
+
+        tick(channel, 2);
+        ((PingWebSocketFrame) channel.readOutbound()).release();
+        channel.writeInbound(new PongWebSocketFrame());
+        tick(channel, 2);
+        ((PingWebSocketFrame) channel.readOutbound()).release();
+        assertTrue(channel.isOpen());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void closesConnectionWhichDoesNotAnswerPing() {
+        var channel = aChannel(new MapConfiguration()
+                .with("wisp.websocket.services.echo.idle.writeTimeout", "PT2S")
+                .with("wisp.websocket.idle.pongTimeout", "PT1S"));
+
+        channel.writeOutbound(new TextWebSocketFrame("hello"));
+        ((TextWebSocketFrame) channel.readOutbound()).release();
+        tick(channel, 2);
+        ((PingWebSocketFrame) channel.readOutbound()).release();
+        assertTrue(channel.isOpen());
+        tick(channel, 1);
+
+        var close = (CloseWebSocketFrame) channel.readOutbound();
+        assertEquals("ping timeout", close.reasonText());
+        close.release();
+        assertFalse(channel.isOpen());
+        assertNull(channel.readOutbound());
+    }
+
+    private EmbeddedChannel aChannel(MapConfiguration config) {
+        timers.configure(config);
+        var settings = new ServiceSettings("/echo", config);
+        assertTrue(IdleReaper.isEnabled(settings));
+        return new EmbeddedChannel(new IdleReaper(timers, settings,
+                new ServiceMetrics("/test", new StallDetector(Duration.ZERO))));
+    }
+
+    private void tick(EmbeddedChannel channel, int ticks) {
+        var wheel = timers.get(channel.eventLoop());
+        for (int i = 0; i < ticks; i++) {
+            wheel.tick();
+        }
+    }
+}
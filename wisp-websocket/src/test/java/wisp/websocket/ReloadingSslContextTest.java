@@ -0,0 +1,138 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReloadingSslContextTest {
+    private Path dir;
+    private ReloadingSslContext sslContext;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("wisp-tls");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (sslContext != null) {
+            sslContext.stop();
+        }
+        try (var files = Files.list(dir)) {
+            for (var file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void loadsPemKeys() throws Exception {
+        aPemKeyPair("first");
+        sslContext = aStartedContext(new MapConfiguration()
+                .with("wisp.websocket.tls.certificateChain", dir.resolve("cert.pem").toString())
+                .with("wisp.websocket.tls.privateKey", dir.resolve("key.pem").toString()));
+
+        assertTrue(sslContext.get().isServer());
+        assertFalse(sslContext.reloadIfChanged());
+    }
+
+    @Test
+    public void loadsPkcs12KeyStore() throws Exception {
+        var ssc = new SelfSignedCertificate("pkcs12");
+        var store = KeyStore.getInstance("PKCS12");
+        store.load(null, null);
+        store.setKeyEntry("wisp", ssc.key(), "secret".toCharArray(), new Certificate[]{ssc.cert()});
+        try (var out = Files.newOutputStream(dir.resolve("keys.p12"))) {
+            store.store(out, "secret".toCharArray());
+        }
+        ssc.delete();
+
+        sslContext = aStartedContext(new MapConfiguration()
+                .with("wisp.websocket.tls.keyStore", dir.resolve("keys.p12").toString())
+                .with("wisp.websocket.tls.keyStorePassword", "secret"));
+        assertTrue(sslContext.get().isServer());
+    }
+
+    @Test
+    public void reloadsChangedKeys() throws Exception {
+        aPemKeyPair("first");
+        sslContext = aStartedContext(new MapConfiguration()
+                .with("wisp.websocket.tls.certificateChain", dir.resolve("cert.pem").toString())
+                .with("wisp.websocket.tls.privateKey", dir.resolve("key.pem").toString()));
+        var before = sslContext.get();
+
+        aPemKeyPair("second");
+        touch(dir.resolve("cert.pem"));
+        assertTrue(sslContext.reloadIfChanged());
+        assertNotSame(before, sslContext.get());
+        assertFalse(sslContext.reloadIfChanged());
+    }
+
+    @Test
+    public void keepsPreviousKeysWhenReloadFails() throws Exception {
+        aPemKeyPair("first");
+        sslContext = aStartedContext(new MapConfiguration()
+                .with("wisp.websocket.tls.certificateChain", dir.resolve("cert.pem").toString())
+                .with("wisp.websocket.tls.privateKey", dir.resolve("key.pem").toString()));
+        var before = sslContext.get();
+
+        Files.writeString(dir.resolve("key.pem"), "not a key");
+        touch(dir.resolve("key.pem"));
+        assertFalse(sslContext.reloadIfChanged());
+        assertSame(before, sslContext.get());
+    }
+
+    private ReloadingSslContext aStartedContext(MapConfiguration config) throws Exception {
+        var context = new ReloadingSslContext();
+        context.configure(config
+                .with("wisp.websocket.tls.provider", "jdk")
+                .with("wisp.websocket.tls.reloadInterval", "PT0S"));
+        context.start();
+        return context;
+    }
+
+    private void aPemKeyPair(String name) throws Exception {
+        var ssc = new SelfSignedCertificate(name);
+        Files.copy(ssc.certificate().toPath(), dir.resolve("cert.pem"), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(ssc.privateKey().toPath(), dir.resolve("key.pem"), StandardCopyOption.REPLACE_EXISTING);
+        ssc.delete();
+    }
+
+    private void touch(Path file) throws IOException {
+        // file times may be too coarse to tell two writes in the same second apart
+        var later = Files.getLastModifiedTime(file).toMillis() + 2000;
+        Files.setLastModifiedTime(file, FileTime.fromMillis(later));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedSessionRegistryTest {
+    private final ShardedSessionRegistry registry = new ShardedSessionRegistry();
+
+    @Test
+    public void findsSessionsById() {
+        var first = aRegisteredSession(new EmbeddedChannel());
+        var second = aRegisteredSession(new EmbeddedChannel());
+        assertNotEquals(0, first.getId());
+        assertNotEquals(first.getId(), second.getId());
+
+        assertSame(first, registry.get(first.getId()));
+        assertSame(second, registry.get(second.getId()));
+        assertNull(registry.get(Long.MAX_VALUE));
+        assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void visitsEverySessionOnce() {
+        var channel = new EmbeddedChannel();
+        var ids = new HashSet<Long>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(aRegisteredSession(i % 2 == 0 ? channel : new EmbeddedChannel()).getId());
+        }
+
+        var visited = new HashSet<Long>();
+        registry.forEach(session -> assertTrue(visited.add(session.getId())));
+        assertEquals(ids, visited);
+    }
+
+    @Test
+    public void forgetsUnregisteredSessions() {
+        var channel = new EmbeddedChannel();
+        var closed = aRegisteredSession(channel);
+        registry.unregister(closed);
+        assertNull(registry.get(closed.getId()));
+        assertEquals(0, registry.size());
+
+        // the new session takes over the closed one's slot, but not its id
+        var reopened = aRegisteredSession(channel);
+        assertNotEquals(closed.getId(), reopened.getId());
+        assertNull(registry.get(closed.getId()));
+        assertSame(reopened, registry.get(reopened.getId()));
+    }
+
+    @Test
+    public void sendsToSessionById() {
+        var channel = new EmbeddedChannel();
+        var session = aRegisteredSession(channel);
+
+        registry.sendTo(session.getId(), "hello");
+        channel.runPendingTasks();
+        TextWebSocketFrame frame = channel.readOutbound();
+        assertEquals("hello", frame.text());
+        frame.release();
+    }
+
+    @Test
+    public void failsSendToUnknownId() throws InterruptedException {
+        var session = aRegisteredSession(new EmbeddedChannel());
+        registry.unregister(session);
+
+        try {
+            registry.sendTo(session.getId(), "hello").get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof NoSuchElementException);
+            return;
+        }
+        throw new AssertionError("sent to a closed session");
+    }
+
+    private WebSocketSessionImpl aRegisteredSession(EmbeddedChannel channel) {
+        var session = new WebSocketSessionImpl(channel, null, () -> "/test", CallbackDispatcher.INLINE,
+                new ServiceMetrics("/test", new StallDetector(Duration.ZERO)));
+        registry.register(session);
+        return session;
+    }
+}
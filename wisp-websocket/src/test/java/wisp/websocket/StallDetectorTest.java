@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.channel.DefaultEventLoopGroup;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StallDetectorTest {
+    @Test
+    public void timesNestedCallbacksIndependently() throws InterruptedException {
+        var detector = new StallDetector(Duration.ZERO);
+        long outer = detector.callbackStarted("/echo", this, "onText");
+        long inner = detector.callbackStarted("/echo", this, "onClose");
+        Thread.sleep(5);
+        long innerElapsed = detector.callbackCompleted(inner);
+        long outerElapsed = detector.callbackCompleted(outer);
+        assertTrue(innerElapsed >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue(outerElapsed >= innerElapsed);
+    }
+
+    @Test
+    public void countsBlockedEventLoop() throws Exception {
+        var group = new DefaultEventLoopGroup(1);
+        var detector = new StallDetector(Duration.ofMillis(20));
+        try {
+            detector.start(group);
+            Thread.sleep(50);
+            assertEquals(0, detector.getLoopStalls());
+
+            group.submit(() -> {
+                Thread.sleep(200);
+                return null;
+            }).get();
+            assertEquals(1, detector.getLoopStalls());
+        } finally {
+            detector.stop();
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocket13FrameDecoder;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+import org.junit.Test;
+import wisp.websocket.api.BroadcastBridge;
+import wisp.websocket.api.BroadcastRelay;
+import wisp.websocket.api.Utf8Text;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TopicBroadcasterTest {
+    private final PreparedFrameCache frames = new PreparedFrameCache(UnpooledByteBufAllocator.DEFAULT);
+    private final TopicBroadcaster broadcaster = new TopicBroadcaster(frames);
+
+    @Test
+    public void publishesToAllSubscribers() {
+        var first = aSession();
+        var second = aSession();
+        broadcaster.subscribe("ticks", first);
+        broadcaster.subscribe("ticks", second);
+        assertEquals(2, broadcaster.getSubscriberCount("ticks"));
+
+        broadcaster.publish("ticks", "101.5");
+        assertEquals("101.5", this.<TextWebSocketFrame>readFrame(first).text());
+        assertEquals("101.5", this.<TextWebSocketFrame>readFrame(second).text());
+    }
+
+    @Test
+    public void encodesLargeBinaryFrames() {
+        var session = aSession();
+        broadcaster.subscribe("snapshots", session);
+
+        var payload = new byte[70_000];
+        payload[69_999] = 42;
+        broadcaster.publish("snapshots", ByteBuffer.wrap(payload));
+
+        BinaryWebSocketFrame frame = readFrame(session);
+        assertEquals(70_000, frame.content().readableBytes());
+        assertEquals(42, frame.content().getByte(69_999));
+    }
+
+    @Test
+    public void sendsCompressedFrameToDeflateSessions() throws DataFormatException {
+        var plain = aSession();
+        var deflate = aSession();
+        deflate.acceptDeflatedFrames(6, 0);
+        broadcaster.subscribe("snapshots", plain);
+        broadcaster.subscribe("snapshots", deflate);
+
+        var snapshot = "bid 101.5 ask 101.6 ".repeat(50);
+        broadcaster.publish("snapshots", snapshot);
+        assertEquals(snapshot, this.<TextWebSocketFrame>readFrame(plain).text());
+
+        TextWebSocketFrame compressed = readFrame(deflate);
+        assertEquals(WebSocketExtension.RSV1, compressed.rsv() & WebSocketExtension.RSV1);
+        assertTrue(compressed.content().readableBytes() < snapshot.length());
+        assertEquals(snapshot, inflate(compressed.content()));
+    }
+
+    @Test
+    public void reusesFramesForRepeatedPayloads() {
+        var first = frames.prepare("snapshot");
+        var second = frames.prepare(new String("snapshot"));
+        assertSame(first, second);
+        assertSame(first.getDeflated(6, 0), second.getDeflated(6, 0));
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void compressesAsEachServiceSays() {
+        var frame = frames.prepare("bid 101.5 ask 101.6 ".repeat(50));
+        assertSame(frame.getDeflated(1, 0), frame.getDeflated(1, 0));
+        assertNotSame(frame.getDeflated(1, 0), frame.getDeflated(9, 0));
+        assertTrue(frame.getDeflated(1, 0).readableBytes() < frame.getPlain().readableBytes());
+        assertSame(frame.getPlain(), frame.getDeflated(9, 10_000));
+        frame.release();
+    }
+
+    @Test
+    public void reencodesRefilledBuffer() {
+        var buffer = ByteBuffer.wrap(new byte[] { 1 });
+        var first = frames.prepare(buffer);
+        buffer.put(0, (byte) 2);
+        var second = frames.prepare(buffer);
+        assertNotSame(first, second);
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void evictsOldestFramesBeyondCacheSize() {
+        frames.configure(new MapConfiguration().with("wisp.websocket.compression.broadcastCacheSize", 2));
+        var first = frames.prepare("first");
+        frames.prepare("second").release();
+        frames.prepare("third").release();
+        assertEquals(1, first.refCnt());
+        first.release();
+        assertFalse(first.tryRetain());
+
+        var again = frames.prepare("first");
+        assertNotSame(first, again);
+        assertSame(again, frames.prepare("first"));
+        assertEquals(3, again.refCnt());
+        again.release();
+        again.release();
+    }
+
+    @Test
+    public void skipsUnsubscribedSessions() {
+        var session = aSession();
+        broadcaster.subscribe("ticks", session);
+        broadcaster.unsubscribe("ticks", session);
+        assertEquals(0, broadcaster.getSubscriberCount("ticks"));
+
+        broadcaster.publish("ticks", "101.5");
+        runPendingTasks(session);
+        assertNull(channel(session).readOutbound());
+    }
+
+    @Test
+    public void unsubscribesOnClose() {
+        var session = aSession();
+        broadcaster.subscribe("ticks", session);
+        broadcaster.subscribe("news", session);
+
+        channel(session).close();
+        assertEquals(0, broadcaster.getSubscriberCount("ticks"));
+        assertEquals(0, broadcaster.getSubscriberCount("news"));
+    }
+
+    @Test
+    public void dropsSessionsClosedBeforeSubscribing() {
+        var session = aSession();
+        channel(session).close();
+
+        broadcaster.subscribe("ticks", session);
+        assertEquals(0, broadcaster.getSubscriberCount("ticks"));
+    }
+
+    @Test
+    public void dropsReplayWhenTopicEmpties() {
+        broadcaster.configure(new MapConfiguration().with("wisp.websocket.replay.maxMessages", 2));
+        var session = aSession();
+        broadcaster.subscribe("orders/42", session);
+        broadcaster.publishText("orders/42", sequence -> "filled " + sequence);
+        channel(session).close();
+
+        // numbered but not kept with nobody subscribed
+        assertEquals(2, broadcaster.publishText("orders/42", sequence -> "settled " + sequence));
+        assertFalse(broadcaster.resume("orders/42", aSession(), 0));
+        assertTrue(broadcaster.resume("orders/42", aSession(), 2));
+    }
+
+    @Test
+    public void remembersNumberingOfIdleTopicsUpToLimit() {
+        broadcaster.configure(new MapConfiguration()
+                .with("wisp.websocket.replay.maxMessages", 2)
+                .with("wisp.websocket.replay.maxIdleTopics", 1));
+        assertEquals(1, broadcaster.publishText("users/1", sequence -> "hello " + sequence));
+        assertEquals(2, broadcaster.publishText("users/1", sequence -> "hello " + sequence));
+        assertEquals(2, broadcaster.getSequence("users/1"));
+
+        // a second idle topic pushes out the first, which starts again
+        assertEquals(1, broadcaster.publishText("users/2", sequence -> "hello " + sequence));
+        assertEquals(0, broadcaster.getSequence("users/1"));
+        assertEquals(1, broadcaster.publishText("users/1", sequence -> "hello " + sequence));
+    }
+
+    @Test
+    public void dropsSessionsClosedBeforeResuming() {
+        broadcaster.configure(new MapConfiguration().with("wisp.websocket.replay.maxMessages", 2));
+        broadcaster.subscribe("ticks", aSession());
+        broadcaster.publishText("ticks", sequence -> "{\"seq\":" + sequence + "}");
+        var session = aSession();
+        channel(session).close();
+
+        assertTrue(broadcaster.resume("ticks", session, 0));
+        runPendingTasks(session);
+        assertEquals(1, broadcaster.getSubscriberCount("ticks"));
+        assertNull(channel(session).readOutbound());
+    }
+
+    @Test
+    public void bridgesTopicsAndMessages() {
+        var events = new ArrayList<String>();
+        var local = new AtomicReference<BroadcastRelay>();
+        broadcaster.addBridge(new BroadcastBridge() {
+            @Override
+            public void bind(BroadcastRelay broadcaster) {
+                local.set(broadcaster);
+            }
+
+            @Override
+            public void topicAdded(String topic) {
+                events.add("added " + topic);
+            }
+
+            @Override
+            public void topicRemoved(String topic) {
+                events.add("removed " + topic);
+            }
+
+            @Override
+            public void published(String topic, CharSequence text) {
+                events.add("published " + topic + " " + text);
+            }
+
+            @Override
+            public void published(String topic, ByteBuffer binary) {
+                events.add("published " + topic + " " + binary.remaining() + " bytes");
+            }
+        });
+        var first = aSession();
+        var second = aSession();
+        broadcaster.subscribe("ticks", first);
+        broadcaster.subscribe("ticks", second);
+        broadcaster.publish("ticks", "101.5");
+        broadcaster.publish("news", ByteBuffer.allocate(3));
+        assertEquals("101.5", this.<TextWebSocketFrame>readFrame(first).text());
+
+        // messages from other nodes reach local subscribers without going back out
+        local.get().publish("ticks", Utf8Text.wrap(ByteBuffer.wrap("101.6".getBytes(StandardCharsets.UTF_8))));
+        assertEquals("101.6", this.<TextWebSocketFrame>readFrame(first).text());
+
+        broadcaster.unsubscribe("ticks", first);
+        channel(second).close();
+        assertEquals(List.of("added ticks", "published ticks 101.5", "published news 3 bytes", "removed ticks"),
+                events);
+    }
+
+    @Test
+    public void resumesFromLastSequence() {
+        broadcaster.configure(new MapConfiguration().with("wisp.websocket.replay.maxMessages", 2));
+        var live = aSession();
+        broadcaster.subscribe("ticks", live);
+        for (int i = 0; i < 3; i++) {
+            broadcaster.publishText("ticks", sequence -> "{\"seq\":" + sequence + "}");
+        }
+        assertEquals(3, broadcaster.getSequence("ticks"));
+
+        var resumed = aSession();
+        assertTrue(broadcaster.resume("ticks", resumed, 1));
+        assertEquals("{\"seq\":2}", this.<TextWebSocketFrame>readFrame(resumed).text());
+        assertEquals("{\"seq\":3}", this.<TextWebSocketFrame>readFrame(resumed).text());
+        broadcaster.publish("ticks", "{\"seq\":4}");
+        assertEquals("{\"seq\":4}", this.<TextWebSocketFrame>readFrame(resumed).text());
+        assertEquals(4, broadcaster.getSequence("ticks"));
+        assertEquals(2, broadcaster.getSubscriberCount("ticks"));
+
+        // the first message has been dropped, so a client which missed it needs a snapshot instead
+        var tooLate = aSession();
+        assertFalse(broadcaster.resume("ticks", tooLate, 1));
+        assertFalse(broadcaster.resume("ticks", aSession(), 99));
+        runPendingTasks(tooLate);
+        assertNull(channel(tooLate).readOutbound());
+        assertEquals(4, broadcaster.getSubscriberCount("ticks"));
+    }
+
+    @Test
+    public void carriesNumberingOnFromBridge() {
+        var published = new ArrayList<String>();
+        broadcaster.addBridge(new BroadcastBridge() {
+            @Override
+            public void bind(BroadcastRelay broadcaster) { }
+
+            @Override
+            public void topicAdded(String topic) { }
+
+            @Override
+            public void topicRemoved(String topic) { }
+
+            @Override
+            public void published(String topic, CharSequence text) { }
+
+            @Override
+            public void published(String topic, ByteBuffer binary) { }
+
+            @Override
+            public void published(String topic, long sequence, CharSequence text) {
+                published.add(sequence + " " + text);
+            }
+
+            @Override
+            public long getSequence(String topic) {
+                return topic.equals("ticks") ? 41 : 0;
+            }
+        });
+        assertEquals(42, broadcaster.publishText("ticks", sequence -> "tick " + sequence));
+        assertEquals(1, broadcaster.publishText("news", sequence -> "story " + sequence));
+        broadcaster.publish("trades", "unnumbered");
+
+        // a client which saw the last message before the restart has missed nothing
+        assertTrue(broadcaster.resume("ticks", aSession(), 42));
+        assertFalse(broadcaster.resume("ticks", aSession(), 40));
+        assertEquals(List.of("42 tick 42", "1 story 1", "0 unnumbered"), published);
+    }
+
+    @Test
+    public void numbersEveryMessageForBridgesWhichNeedIt() {
+        var events = new ArrayList<String>();
+        var local = new AtomicReference<BroadcastRelay>();
+        broadcaster.addBridge(new BroadcastBridge() {
+            @Override
+            public void bind(BroadcastRelay broadcaster) {
+                local.set(broadcaster);
+            }
+
+            @Override
+            public void topicAdded(String topic) { }
+
+            @Override
+            public void topicRemoved(String topic) { }
+
+            @Override
+            public void published(String topic, CharSequence text) { }
+
+            @Override
+            public void published(String topic, ByteBuffer binary) { }
+
+            @Override
+            public void published(String topic, long sequence, CharSequence text) {
+                events.add("published " + sequence + " " + text);
+            }
+
+            @Override
+            public void relayed(String topic, long sequence, CharSequence text) {
+                events.add("relayed " + sequence + " " + text);
+            }
+
+            @Override
+            public boolean requiresNumbering() {
+                return true;
+            }
+        });
+        broadcaster.subscribe("ticks", aSession());
+        broadcaster.publish("trades", "101.5");
+        local.get().relay("ticks", 5, "101.6");
+        local.get().relay("ticks", 3, "101.7");
+        local.get().relay("ticks", 0, "101.8");
+        assertEquals(List.of("published 1 101.5", "relayed 5 101.6", "relayed 0 101.7", "relayed 0 101.8"), events);
+    }
+
+    @Test
+    public void keepsSequenceFromPublishingNode() {
+        broadcaster.configure(new MapConfiguration().with("wisp.websocket.replay.maxMessages", 4));
+        var local = new AtomicReference<BroadcastRelay>();
+        broadcaster.addBridge(new BroadcastBridge() {
+            @Override
+            public void bind(BroadcastRelay broadcaster) {
+                local.set(broadcaster);
+            }
+
+            @Override
+            public void topicAdded(String topic) { }
+
+            @Override
+            public void topicRemoved(String topic) { }
+
+            @Override
+            public void published(String topic, CharSequence text) { }
+
+            @Override
+            public void published(String topic, ByteBuffer binary) { }
+        });
+        var live = aSession();
+        broadcaster.subscribe("ticks", live);
+        local.get().relay("ticks", 7, "{\"seq\":7}");
+        local.get().relay("ticks", 8, "{\"seq\":8}");
+        assertEquals(8, broadcaster.getSequence("ticks"));
+
+        var resumed = aSession();
+        assertTrue(broadcaster.resume("ticks", resumed, 7));
+        assertEquals("{\"seq\":8}", this.<TextWebSocketFrame>readFrame(resumed).text());
+
+        // a message this node never saw leaves a gap nobody can resume across
+        local.get().relay("ticks", 10, "{\"seq\":10}");
+        assertFalse(broadcaster.resume("ticks", aSession(), 8));
+        assertEquals("{\"seq\":10}", this.<TextWebSocketFrame>readFrame(resumed).text());
+
+        // numbers going backwards are still delivered, but not kept or taken on
+        local.get().relay("ticks", 3, "{\"seq\":3}");
+        assertEquals("{\"seq\":3}", this.<TextWebSocketFrame>readFrame(resumed).text());
+        assertEquals(10, broadcaster.getSequence("ticks"));
+        assertFalse(broadcaster.resume("ticks", aSession(), 9));
+    }
+
+    @Test
+    public void dropsOldestReplayBeyondByteLimit() {
+        var replay = new ReplayBuffer(0, 40, new LongAdder(), 0);
+        for (int i = 0; i < 5; i++) {
+            var frame = frames.prepare(ByteBuffer.allocate(10));
+            replay.add(replay.next(), frame);
+            frame.release();
+        }
+        // each frame is a 2 byte header and 10 bytes of payload
+        assertFalse(replay.covers(1));
+        assertTrue(replay.covers(2));
+        var missed = replay.since(2);
+        assertEquals(3, missed.size());
+        missed.forEach(PreparedFrame::release);
+    }
+
+    private WebSocketSessionImpl aSession() {
+        return new WebSocketSessionImpl(new EmbeddedChannel(), null, () -> "/test", CallbackDispatcher.INLINE,
+                new ServiceMetrics("/test", new StallDetector(Duration.ZERO)));
+    }
+
+    private EmbeddedChannel channel(WebSocketSessionImpl session) {
+        return (EmbeddedChannel) session.getChannel();
+    }
+
+    private void runPendingTasks(WebSocketSessionImpl session) {
+        // once for the publish task and once for the flush it schedules
+        channel(session).runPendingTasks();
+        channel(session).runPendingTasks();
+    }
+
+    private String inflate(ByteBuf compressed) throws DataFormatException {
+        var inflater = new Inflater(true);
+        var input = new byte[compressed.readableBytes() + 4];
+        compressed.getBytes(compressed.readerIndex(), input, 0, compressed.readableBytes());
+        input[input.length - 2] = (byte) 0xFF;
+        input[input.length - 1] = (byte) 0xFF;
+        inflater.setInput(input);
+        var output = new byte[4096];
+        int length = inflater.inflate(output);
+        inflater.end();
+        return new String(output, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private <T> T readFrame(WebSocketSessionImpl session) {
+        runPendingTasks(session);
+        ByteBuf encoded = channel(session).readOutbound();
+        var decoder = new EmbeddedChannel(new WebSocket13FrameDecoder(false, true, 1 << 20));
+        decoder.writeInbound(encoded);
+        return decoder.readInbound();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+import wisp.websocket.api.WebSocketService;
+import wisp.websocket.testing.MapConfiguration;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class WebSocketRouterTest {
+    @Test
+    public void routesExactPath() {
+        var router = aRouter();
+        assertEquals("/echo", router.route("/echo"));
+        assertEquals("/echo/admin", router.route("/echo/admin"));
+    }
+
+    @Test
+    public void routesSubPathToLongestPrefix() {
+        var router = aRouter();
+        assertEquals("/echo", router.route("/echo/room1"));
+        assertEquals("/echo/admin", router.route("/echo/admin/users/1"));
+    }
+
+    @Test
+    public void doesNotMatchPartialSegment() {
+        var router = aRouter();
+        assertNull(router.route("/echoes"));
+        assertNull(router.route("/"));
+    }
+
+    @Test
+    public void respondsNotFoundForUnknownPath() {
+        var channel = new EmbeddedChannel(aRouter());
+        channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/missing"));
+        FullHttpResponse response = channel.readOutbound();
+        assertEquals(HttpResponseStatus.NOT_FOUND, response.status());
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void refusesUpgradeOverSessionLimit() {
+        var router = aRouter(new MapConfiguration().with("wisp.websocket.services.echo.admission.maxSessions", 1));
+        var first = anHttpChannel(router);
+        assertEquals("HTTP/1.1 101", anUpgradeStatus(first));
+
+        var second = anHttpChannel(router);
+        assertEquals("HTTP/1.1 503", anUpgradeStatus(second));
+        assertFalse(second.isOpen());
+
+        first.close();
+        assertEquals("HTTP/1.1 101", anUpgradeStatus(anHttpChannel(router)));
+    }
+
+    private WebSocketRouter aRouter() {
+        return aRouter(new MapConfiguration());
+    }
+
+    private WebSocketRouter aRouter(MapConfiguration config) {
+        WebSocketService echo = () -> "/echo";
+        WebSocketService admin = () -> "/echo/admin";
+        var admission = new AdmissionControl();
+        admission.configure(config);
+        return new WebSocketRouter(Map.of(
+                echo.getPath(), aFrameHandler(echo, config),
+                admin.getPath(), aFrameHandler(admin, config)), admission, new IdleTimers());
+    }
+
+    private WebSocketFrameHandler aFrameHandler(WebSocketService service, MapConfiguration config) {
+        var settings = new ServiceSettings(service.getPath(), config);
+        var metrics = new ServiceMetrics("/test", new StallDetector(Duration.ZERO));
+        var dispatcher = new CallbackDispatcher(settings, metrics.getCallbacksRejected());
+        return new WebSocketFrameHandler(service, settings, dispatcher, metrics, new ShardedSessionRegistry());
+    }
+
+    private EmbeddedChannel anHttpChannel(WebSocketRouter router) {
+        return new EmbeddedChannel(new HttpServerCodec(), new HttpObjectAggregator(65536), router);
+    }
+
+    private String anUpgradeStatus(EmbeddedChannel channel) {
+        channel.writeInbound(Unpooled.copiedBuffer("GET /echo HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n", CharsetUtil.US_ASCII));
+        ByteBuf response = channel.readOutbound();
+        var status = response.toString(0, 12, CharsetUtil.US_ASCII);
+        response.release();
+        return status;
+    }
+}
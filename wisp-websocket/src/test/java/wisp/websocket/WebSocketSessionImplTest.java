@@ -0,0 +1,261 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.Test;
+import wisp.websocket.api.RetainedPayload;
+import wisp.websocket.api.WebSocketService;
+
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WebSocketSessionImplTest {
+    @Test
+    public void deliversOnlyAgainstDemand() {
+        var service = new RecordingService();
+        var session = anOpenSession(service);
+
+        session.enqueue(new TextWebSocketFrame("a"));
+        session.enqueue(new TextWebSocketFrame("b"));
+        session.enqueue(new TextWebSocketFrame("c"));
+        assertEquals(List.of("a"), service.messages);
+
+        session.request(2);
+        assertEquals(List.of("a", "b", "c"), service.messages);
+    }
+
+    @Test
+    public void pausesReadingWhenDemandRunsOut() {
+        var service = new RecordingService();
+        var session = anOpenSession(service);
+        var channel = session.getChannel();
+        assertTrue(channel.config().isAutoRead());
+
+        session.enqueue(new TextWebSocketFrame("a"));
+        assertFalse(channel.config().isAutoRead());
+
+        session.request(1);
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    @Test
+    public void holdsBufferUntilStageCompletes() {
+        var service = new RecordingService();
+        var session = anOpenSession(service);
+        var stage = new CompletableFuture<Void>();
+        service.nextStage = stage;
+
+        var frame = new BinaryWebSocketFrame(Unpooled.copiedBuffer(new byte[] { 1, 2, 3 }));
+        session.enqueue(frame);
+        assertEquals(1, frame.refCnt());
+
+        stage.complete(null);
+        assertEquals(0, frame.refCnt());
+    }
+
+    @Test
+    public void holdsRetainedPayloadUntilReleased() {
+        var service = new RecordingService();
+        var session = anOpenSession(service);
+        service.retainFrom = session;
+
+        var frame = new BinaryWebSocketFrame(Unpooled.copiedBuffer(new byte[] { 1, 2, 3 }));
+        session.enqueue(frame);
+        assertEquals(1, frame.refCnt());
+
+        service.retained.release();
+        service.retained.release();
+        assertEquals(0, frame.refCnt());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesToRetainOutsideCallback() {
+        var session = anOpenSession(new RecordingService());
+        session.retain(ByteBuffer.allocate(1));
+    }
+
+    @Test
+    public void copiesHeapBuffersOnSend() {
+        var session = anOpenSession(new RecordingService());
+        var channel = (EmbeddedChannel) session.getChannel();
+        var message = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+
+        session.sendBinary(message, true);
+        message.put(0, (byte) 9);
+        channel.runPendingTasks();
+
+        BinaryWebSocketFrame sent = channel.readOutbound();
+        assertEquals(1, sent.content().getByte(0));
+        assertEquals(3, message.remaining());
+        sent.release();
+    }
+
+    @Test
+    public void releasesUndeliveredFramesOnClose() {
+        var service = new RecordingService();
+        var session = anOpenSession(service);
+        session.enqueue(new TextWebSocketFrame("a"));
+
+        var frame = new TextWebSocketFrame("b");
+        session.enqueue(frame);
+        session.closed();
+        assertEquals(0, frame.refCnt());
+        assertTrue(service.closed);
+    }
+
+    @Test
+    public void defersFlushToEndOfTick() {
+        var session = anOpenSession(new RecordingService());
+        var channel = (EmbeddedChannel) session.getChannel();
+
+        var sent = session.sendText("a", true);
+        assertTrue(channel.outboundMessages().isEmpty());
+        assertFalse(sent.isDone());
+
+        channel.runPendingTasks();
+        assertEquals(1, channel.outboundMessages().size());
+        assertTrue(sent.isDone());
+    }
+
+    @Test
+    public void streamsFragmentsWithLastFlag() {
+        var service = new RecordingService();
+        var session = anOpenSession(service);
+        session.request(Long.MAX_VALUE);
+
+        // U+00E9 is 0xC3 0xA9, split across the fragment boundary
+        var first = Unpooled.copiedBuffer(new byte[] { 'c', 'a', 'f', (byte) 0xC3 });
+        var second = Unpooled.copiedBuffer(new byte[] { (byte) 0xA9, '!' });
+        session.enqueue(new TextWebSocketFrame(false, 0, first));
+        session.enqueue(new ContinuationWebSocketFrame(true, 0, second));
+        assertEquals(List.of("caf", "\u00e9!"), service.messages);
+        assertEquals(List.of(false, true), service.lastFlags);
+    }
+
+    @Test
+    public void sendsContinuationFramesUntilLast() {
+        var session = anOpenSession(new RecordingService());
+        var channel = (EmbeddedChannel) session.getChannel();
+
+        session.sendText("a", false);
+        session.sendText("b", false);
+        session.sendText("c", true);
+        session.sendText("d", true);
+        channel.runPendingTasks();
+
+        assertTrue(channel.readOutbound() instanceof TextWebSocketFrame);
+        ContinuationWebSocketFrame middle = channel.readOutbound();
+        assertFalse(middle.isFinalFragment());
+        ContinuationWebSocketFrame last = channel.readOutbound();
+        assertTrue(last.isFinalFragment());
+        TextWebSocketFrame next = channel.readOutbound();
+        assertTrue(next.isFinalFragment());
+    }
+
+    @Test
+    public void rejectsBinaryWhileTextFragmentsPending() {
+        var session = anOpenSession(new RecordingService());
+        session.sendText("a", false);
+        assertTrue(session.sendBinary(ByteBuffer.allocate(1), true).isCompletedExceptionally());
+    }
+
+    @Test
+    public void defersBroadcastUntilFragmentedMessageEnds() {
+        var session = anOpenSession(new RecordingService());
+        var channel = (EmbeddedChannel) session.getChannel();
+
+        session.sendText("a", false);
+        var broadcast = Unpooled.copiedBuffer(new byte[] { 1 });
+        session.writeEncoded(broadcast);
+        session.sendText("b", true);
+        channel.runPendingTasks();
+
+        assertTrue(channel.readOutbound() instanceof TextWebSocketFrame);
+        assertTrue(channel.readOutbound() instanceof ContinuationWebSocketFrame);
+        assertEquals(broadcast, channel.readOutbound());
+    }
+
+    @Test
+    public void tracksActiveSessions() {
+        var metrics = new ServiceMetrics("/test", new StallDetector(Duration.ZERO));
+        var session = anOpenSession(new RecordingService(), metrics);
+        assertEquals(1, metrics.getActiveSessions());
+
+        session.closed();
+        assertEquals(0, metrics.getActiveSessions());
+    }
+
+    private WebSocketSessionImpl anOpenSession(WebSocketService service) {
+        return anOpenSession(service, new ServiceMetrics("/test", new StallDetector(Duration.ZERO)));
+    }
+
+    private WebSocketSessionImpl anOpenSession(WebSocketService service, ServiceMetrics metrics) {
+        var session = new WebSocketSessionImpl(new EmbeddedChannel(), null, service, CallbackDispatcher.INLINE,
+                metrics);
+        session.open();
+        return session;
+    }
+
+    private static class RecordingService implements WebSocketService {
+        private final List<String> messages = new ArrayList<>();
+        private final List<Boolean> lastFlags = new ArrayList<>();
+        private CompletionStage<?> nextStage;
+        private WebSocketSessionImpl retainFrom;
+        private RetainedPayload retained;
+        private boolean closed;
+
+        @Override
+        public String getPath() {
+            return "/test";
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            messages.add(data.toString());
+            lastFlags.add(last);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            if (retainFrom != null) {
+                retained = retainFrom.retain(data);
+            }
+            return nextStage;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            closed = true;
+            return null;
+        }
+    }
+}
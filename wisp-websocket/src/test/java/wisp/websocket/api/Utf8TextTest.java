@@ -0,0 +1,58 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.api;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class Utf8TextTest {
+    @Test
+    public void readsAsciiWithoutDecoding() {
+        var text = aUtf8Text("{\"px\":101.5}");
+        assertEquals(12, text.length());
+        assertEquals('p', text.charAt(2));
+        assertEquals("px", text.subSequence(2, 4).toString());
+    }
+
+    @Test
+    public void decodesMultiByteCharacters() {
+        var text = aUtf8Text("caf\u00e9 \u20ac5");
+        assertEquals(7, text.length());
+        assertEquals('\u00e9', text.charAt(3));
+        assertEquals("caf\u00e9 \u20ac5", text.toString());
+    }
+
+    @Test
+    public void exposesOriginalBytes() {
+        var bytes = "caf\u00e9".getBytes(StandardCharsets.UTF_8);
+        var text = Utf8Text.wrap(ByteBuffer.wrap(bytes));
+        assertEquals(ByteBuffer.wrap(bytes), text.getBytes());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsOutOfRangeIndex() {
+        aUtf8Text("abc").charAt(3);
+    }
+
+    private Utf8Text aUtf8Text(String value) {
+        return Utf8Text.wrap(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+    }
+}
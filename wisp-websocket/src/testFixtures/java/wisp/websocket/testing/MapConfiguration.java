@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2017 Kyle F. Downey.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package wisp.websocket.testing;
+
+import wisp.api.Configuration;
+
+import java.time.Duration;
+import java.time.Period;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal in-memory {@link Configuration} for tests, shared by the websocket modules' test source sets.
+ */
+public class MapConfiguration implements Configuration {
+    private final Map<String, String> values = new HashMap<>();
+
+    public MapConfiguration with(String path, Object value) {
+        values.put(path, String.valueOf(value));
+        return this;
+    }
+
+    @Override
+    public boolean hasPath(String path) {
+        return values.containsKey(path);
+    }
+
+    @Override
+    public boolean getBoolean(String path) {
+        return Boolean.parseBoolean(getString(path));
+    }
+
+    @Override
+    public int getInt(String path) {
+        return Integer.parseInt(getString(path));
+    }
+
+    @Override
+    public long getLong(String path) {
+        return Long.parseLong(getString(path));
+    }
+
+    @Override
+    public double getDouble(String path) {
+        return Double.parseDouble(getString(path));
+    }
+
+    @Override
+    public String getString(String path) {
+        return values.get(path);
+    }
+
+    @Override
+    public <T extends Enum<T>> T getEnum(Class<T> enumClass, String path) {
+        return Enum.valueOf(enumClass, getString(path));
+    }
+
+    @Override
+    public Duration getDuration(String path) {
+        return Duration.parse(getString(path));
+    }
+
+    @Override
+    public Period getPeriod(String path) {
+        return Period.parse(getString(path));
+    }
+}